@@ -108,6 +108,10 @@ public abstract class AbstractProcessor<T> implements Processor<T> {
             case HttpStatus.SC_NO_CONTENT:
                 return RS_SUCCESS;
 
+            // 304 Not Modified
+            case HttpStatus.SC_NOT_MODIFIED:
+                return RS_SUCCESS;
+
             // 401 Unauthorized
             case HttpStatus.SC_UNAUTHORIZED:
                 return RS_UNAUTHORIZED;
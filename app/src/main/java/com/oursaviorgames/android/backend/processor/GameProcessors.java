@@ -24,6 +24,7 @@ import com.oursaviorgames.android.data.BaseGameColumns;
 import com.oursaviorgames.android.data.ExtraGamesHelper;
 import com.oursaviorgames.android.data.GameContract;
 import com.oursaviorgames.android.data.metastore.MetaStore;
+import com.oursaviorgames.android.data.metastore.StringMetaKey;
 import com.oursaviorgames.android.util.DateUtils;
 
 import static com.oursaviorgames.android.util.LogUtils.LOGD;
@@ -103,10 +104,17 @@ public class GameProcessors {
                         nextPageToken = store.getMeta(GameContract.HotGameEntry.META_NEXT_PAGE_TOKEN);
                     }
                     request.put(PARAM_NEXT_PAGE_TOKEN, nextPageToken);
+                } else {
+                    // Revalidates the first page, which is usually unchanged.
+                    // Server responds with 304 Not Modified and no body if it is.
+                    request.getRequestHeaders().setIfNoneMatch(store.getMeta(getETagKey()));
                 }
 
                 // Executes the request.
                 response = request.execute();
+                if (!loadMore) {
+                    store.putMeta(getETagKey(), request.getLastResponseHeaders().getETag());
+                }
                 return request;
             }
             return null;
@@ -114,6 +122,7 @@ public class GameProcessors {
 
         @Override
         protected void onSuccess(HandlerService context) {
+            // Response is null if the request was skipped, or the first page was not modified.
             if (response != null) {
                 // TODO: have to differentiate between the case token is null or not.
                 if (!loadMore) {
@@ -134,6 +143,15 @@ public class GameProcessors {
             }
         }
 
+        /**
+         * Returns meta key of the ETag of the first page of this sort order.
+         */
+        private StringMetaKey getETagKey() {
+            return SORT_VALUE_NEW.equals(sortOrder)
+                    ? GameContract.NewGameEntry.META_ETAG
+                    : GameContract.HotGameEntry.META_ETAG;
+        }
+
         /**
          * Helper method for inserting games into database.
          * @param context
@@ -242,6 +242,13 @@ public final class GameContract {
         public static final StringMetaKey META_NEXT_PAGE_TOKEN =
                 new StringMetaKey(CONTENT_URI, "nextPageToken", null);
 
+        /**
+         * ETag of the first page.
+         * <P>Default: null</P>
+         */
+        public static final StringMetaKey META_ETAG =
+                new StringMetaKey(CONTENT_URI, "etag", null);
+
         public static Uri buildNewGameUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -270,6 +277,13 @@ public final class GameContract {
         public static final StringMetaKey META_NEXT_PAGE_TOKEN =
                 new StringMetaKey(CONTENT_URI, "nextPageToken", null);
 
+        /**
+         * ETag of the first page.
+         * <P>Default: null</P>
+         */
+        public static final StringMetaKey META_ETAG =
+                new StringMetaKey(CONTENT_URI, "etag", null);
+
         public static Uri buildHotGameUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -0,0 +1,51 @@
+package com.oursaviorgames.backend.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Records latencies of a benchmarked operation and reports their percentiles.
+ */
+class LatencyRecorder {
+
+    private long[] nanos;
+    private int    count;
+
+    LatencyRecorder(int expectedCount) {
+        nanos = new long[Math.max(expectedCount, 1)];
+        count = 0;
+    }
+
+    void record(long elapsedNanos) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = elapsedNanos;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the {@code percentile} latency in milliseconds.
+     * @param percentile From 0 to 100.
+     */
+    double getPercentileMillis(double percentile) {
+        if (count == 0) {
+            return 0.0;
+        }
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))] / 1e6;
+    }
+
+    long getTotalNanos() {
+        long total = 0l;
+        for (int i = 0; i < count; i++) {
+            total += nanos[i];
+        }
+        return total;
+    }
+
+}
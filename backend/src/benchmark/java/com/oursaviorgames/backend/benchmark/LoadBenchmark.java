@@ -0,0 +1,368 @@
+package com.oursaviorgames.backend.benchmark;
+
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.oursaviorgames.backend.auth.IdentityProvider;
+import com.oursaviorgames.backend.memcache.LocalCache;
+import com.oursaviorgames.backend.model.datastore.Comment;
+import com.oursaviorgames.backend.model.datastore.Developer;
+import com.oursaviorgames.backend.model.datastore.Game;
+import com.oursaviorgames.backend.model.datastore.PlayToken;
+import com.oursaviorgames.backend.model.datastore.UserProfile;
+import com.oursaviorgames.backend.model.types.ValidatedUsername;
+import com.oursaviorgames.backend.model.types.ValidationException;
+import com.oursaviorgames.backend.service.CommentService;
+import com.oursaviorgames.backend.service.ExtraGameService;
+import com.oursaviorgames.backend.service.GameService;
+import com.oursaviorgames.backend.service.PlayCounterService;
+import com.oursaviorgames.backend.servlet.AggregatePlayTokensWorker;
+import com.oursaviorgames.backend.servlet.ProcessPlayTokensCron;
+import com.oursaviorgames.backend.stats.ApiStats;
+import com.oursaviorgames.backend.stats.StatsApiProxyDelegate;
+
+import static com.oursaviorgames.backend.service.OfyService.factory;
+import static com.oursaviorgames.backend.service.OfyService.ofy;
+
+/**
+ * Load benchmark of the backend services against the local
+ * datastore, memcache and task queue stubs.
+ * <p>
+ * Populates the datastore with synthetic games, comments and play tokens,
+ * runs each scenario and reports its throughput, latency percentiles
+ * and API calls per operation. Sizes are set with the system properties
+ * {@code benchmark.games}, {@code benchmark.comments}, {@code benchmark.tokens}
+ * and {@code benchmark.iterations}.
+ * <p>
+ * The stubs are in-memory, so latencies are only comparable between runs
+ * on the same machine. API call counts are exact.
+ */
+public class LoadBenchmark {
+
+    private static final int GAMES      = Integer.getInteger("benchmark.games", 2000);
+    private static final int COMMENTS   = Integer.getInteger("benchmark.comments", 5000);
+    private static final int TOKENS     = Integer.getInteger("benchmark.tokens", 200000);
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 500);
+
+    /**
+     * Number of games the comments are spread over.
+     */
+    private static final int COMMENTED_GAMES = 10;
+
+    /**
+     * Size of the populating batches.
+     */
+    private static final int SAVE_BATCH_SIZE = 500;
+
+    private static final String DEFAULT_QUEUE = "default";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(
+                    new LocalDatastoreServiceTestConfig()
+                            .setApplyAllHighRepJobPolicy()
+                            .setNoStorage(true),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig()
+                            .setDisableAutoTaskExecution(true));
+
+    private final Random random = new Random(42);
+    private final List<Long> gameIds = new ArrayList<>(GAMES);
+    private Key<UserProfile> userKey;
+
+    /**
+     * An operation run once per iteration.
+     */
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadBenchmark().run();
+    }
+
+    private void run() throws Exception {
+        helper.setUp();
+        StatsApiProxyDelegate.install();
+        try {
+            Closeable session = ObjectifyService.begin();
+            try {
+                populate();
+            } finally {
+                session.close();
+            }
+            ApiStats.reset();
+            LocalCache.clearAll();
+            runScenarios();
+        } finally {
+            helper.tearDown();
+        }
+    }
+
+    private void populate() throws ValidationException {
+        long start = System.nanoTime();
+        Key<Developer> developerKey = factory().allocateId(Developer.class);
+        ofy().save().entity(new Developer(developerKey.getId(), "developer",
+                "developer@example.com", "http://example.com")).now();
+        UserProfile user = new UserProfile(new ValidatedUsername("benchmark_user"), "benchmark_user",
+                IdentityProvider.FACEBOOK, UserProfile.Gender.MALE, "Benchmark User", "device_id");
+        ofy().save().entity(user).now();
+        userKey = user.getKey();
+
+        List<Object> batch = new ArrayList<>(SAVE_BATCH_SIZE);
+        for (int i = 0; i < GAMES; i++) {
+            Game game = new Game(factory().allocateId(Game.class).getId(), developerKey, "game " + i);
+            game.setOriginUrl("http://example.com/game/" + i);
+            game.setPublished(true);
+            game.setHotScore(random.nextInt(10000));
+            gameIds.add(game.getKey().getId());
+            batch = saveBatch(batch, game);
+        }
+        for (int i = 0; i < COMMENTS; i++) {
+            long gameId = gameIds.get(i % Math.min(COMMENTED_GAMES, GAMES));
+            batch = saveBatch(batch, new Comment(userKey, Game.createKeyFromId(gameId), "comment " + i));
+        }
+        for (int i = 0; i < TOKENS; i++) {
+            batch = saveBatch(batch, new PlayToken(createPlay(), userKey, "127.0.0.1"));
+        }
+        if (!batch.isEmpty()) {
+            ofy().save().entities(batch).now();
+        }
+        GameService.GameServiceFactory.createInstance().reCache();
+        ofy().clear();
+
+        System.out.printf("Populated %d games, %d comments and %d play tokens in %.1fs%n%n",
+                GAMES, COMMENTS, TOKENS, (System.nanoTime() - start) / 1e9);
+    }
+
+    private List<Object> saveBatch(List<Object> batch, Object entity) {
+        batch.add(entity);
+        if (batch.size() < SAVE_BATCH_SIZE) {
+            return batch;
+        }
+        ofy().save().entities(batch).now();
+        return new ArrayList<>(SAVE_BATCH_SIZE);
+    }
+
+    private PlayToken.PlayTokenForm createPlay() {
+        PlayToken.PlayTokenForm play = new PlayToken.PlayTokenForm();
+        play.setGameId(gameIds.get(random.nextInt(gameIds.size())));
+        play.setPlayDuration(1 + random.nextInt(600));
+        play.setTimestamp(new Date());
+        return play;
+    }
+
+    private void runScenarios() throws Exception {
+        final GameService gameService = GameService.GameServiceFactory.createInstance();
+        final CommentService commentService = CommentService.CommentServiceFactory.createInstance();
+        final ExtraGameService extraGameService = ExtraGameService.ExtraGameServiceFactory.getInstance();
+        final PlayCounterService playCounterService = PlayCounterService.PlayCounterServiceFactory.createInstance();
+        final Key<Game> commentedGame = Game.createKeyFromId(gameIds.get(0));
+
+        System.out.printf("%-20s %8s %10s %8s %8s %8s %10s %10s %8s%n", "operation", "ops",
+                "ops/s", "p50 ms", "p90 ms", "p99 ms", "ds/op", "mc/op", "hit %");
+
+        benchmark("getPopularGames", new Operation() {
+            @Override
+            public void run() throws Exception {
+                gameService.getPopularGames(null);
+            }
+        });
+        benchmark("getNewGames", new Operation() {
+            @Override
+            public void run() throws Exception {
+                gameService.getNewGames(null);
+            }
+        });
+        benchmark("getGames", new Operation() {
+            @Override
+            public void run() throws Exception {
+                gameService.getGames(randomGameIds(10));
+            }
+        });
+        benchmark("getComments", new Operation() {
+            @Override
+            public void run() throws Exception {
+                commentService.getComments(null, commentedGame);
+            }
+        });
+        benchmark("getSpotlightGame", new Operation() {
+            @Override
+            public void run() throws Exception {
+                extraGameService.getSpotlightGame(Collections.<Long>emptyList());
+            }
+        });
+        benchmark("getRandomGame", new Operation() {
+            @Override
+            public void run() throws Exception {
+                extraGameService.getRandomGame();
+            }
+        });
+        benchmark("recordPlays", new Operation() {
+            @Override
+            public void run() throws Exception {
+                List<PlayToken.PlayTokenForm> plays = new ArrayList<>(10);
+                for (int i = 0; i < 10; i++) {
+                    plays.add(createPlay());
+                }
+                playCounterService.recordPlays(plays, userKey, "127.0.0.1");
+            }
+        });
+
+        benchmarkPlayTokensRun();
+    }
+
+    /**
+     * Runs {@code operation} {@link #ITERATIONS} times,
+     * each as a separate request, and prints its results.
+     */
+    private void benchmark(String name, Operation operation) throws Exception {
+        LatencyRecorder latencies = new LatencyRecorder(ITERATIONS);
+        for (int i = 0; i < ITERATIONS; i++) {
+            latencies.record(runRequest(name, operation));
+        }
+        report(name, latencies);
+    }
+
+    /**
+     * Runs a whole {@link ProcessPlayTokensCron} run, executing
+     * the {@link AggregatePlayTokensWorker} tasks in process until the queue is empty.
+     */
+    private void benchmarkPlayTokensRun() throws Exception {
+        final LocalTaskQueue taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+        final AggregatePlayTokensWorker worker = new AggregatePlayTokensWorker();
+        LatencyRecorder taskLatencies = new LatencyRecorder(TOKENS / 5000 + 8);
+
+        long start = System.nanoTime();
+        runRequest("processPlayTokens", new Operation() {
+            @Override
+            public void run() throws Exception {
+                new ProcessPlayTokensCron().service(
+                        ServletStubs.createRequest("GET", Collections.<String, String>emptyMap()),
+                        ServletStubs.createResponse());
+            }
+        });
+        List<QueueStateInfo.TaskStateInfo> tasks;
+        while (!(tasks = getDefaultQueueTasks(taskQueue)).isEmpty()) {
+            for (QueueStateInfo.TaskStateInfo task : tasks) {
+                taskQueue.deleteTask(DEFAULT_QUEUE, task.getTaskName());
+                final Map<String, String> params = parseParams(task.getBody());
+                taskLatencies.record(runRequest("aggregatePlayTokens", new Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        worker.service(ServletStubs.createRequest("POST", params),
+                                ServletStubs.createResponse());
+                    }
+                }));
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        report("aggregatePlayTokens", taskLatencies);
+        System.out.printf("%nCounted %d play tokens in %d tasks in %.1fs (%.0f tokens/s)%n",
+                TOKENS, taskLatencies.getCount(), seconds, TOKENS / seconds);
+    }
+
+    private static List<QueueStateInfo.TaskStateInfo> getDefaultQueueTasks(LocalTaskQueue taskQueue) {
+        QueueStateInfo queue = taskQueue.getQueueStateInfo().get(DEFAULT_QUEUE);
+        if (queue == null) {
+            return Collections.emptyList();
+        }
+        return queue.getTaskInfo();
+    }
+
+    /**
+     * Runs {@code operation} as a single request with a fresh Objectify session.
+     * @return Latency in nanoseconds.
+     */
+    private static long runRequest(String name, Operation operation) throws Exception {
+        Closeable session = ObjectifyService.begin();
+        ApiStats.RequestStats stats = ApiStats.beginRequest(name);
+        long start = System.nanoTime();
+        try {
+            operation.run();
+            return System.nanoTime() - start;
+        } finally {
+            ApiStats.endRequest(stats);
+            session.close();
+        }
+    }
+
+    private List<Long> randomGameIds(int count) {
+        List<Long> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(gameIds.get(random.nextInt(gameIds.size())));
+        }
+        return ids;
+    }
+
+    private static Map<String, String> parseParams(String body) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (body == null || body.isEmpty()) {
+            return params;
+        }
+        for (String pair : body.split("&")) {
+            int split = pair.indexOf('=');
+            if (split > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, split), "UTF-8"),
+                        URLDecoder.decode(pair.substring(split + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static void report(String name, LatencyRecorder latencies) {
+        Map<String, Long> counters = ApiStats.getOperations().get(name);
+        if (counters == null) {
+            counters = Collections.emptyMap();
+        }
+        double ops = Math.max(latencies.getCount(), 1);
+        long hits = getCounter(counters, ApiStats.CACHE_HITS);
+        long lookups = hits + getCounter(counters, ApiStats.CACHE_MISSES);
+        System.out.printf("%-20s %8d %10.1f %8.2f %8.2f %8.2f %10.2f %10.2f %8.1f%n",
+                name,
+                latencies.getCount(),
+                latencies.getCount() / Math.max(latencies.getTotalNanos() / 1e9, 1e-9),
+                latencies.getPercentileMillis(50),
+                latencies.getPercentileMillis(90),
+                latencies.getPercentileMillis(99),
+                sumCounters(counters, "datastore_v3.", "." + ApiStats.CALLS) / ops,
+                sumCounters(counters, "memcache.", "." + ApiStats.CALLS) / ops,
+                lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+    }
+
+    private static long getCounter(Map<String, Long> counters, String name) {
+        Long value = counters.get(name);
+        return (value == null) ? 0l : value;
+    }
+
+    /**
+     * Sums the counters of all methods of an API, such as {@code datastore_v3.Get.calls}.
+     */
+    private static long sumCounters(Map<String, Long> counters, String prefix, String suffix) {
+        long sum = 0l;
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            if (counter.getKey().startsWith(prefix) && counter.getKey().endsWith(suffix)) {
+                sum += counter.getValue();
+            }
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.oursaviorgames.backend.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal servlet request and response stubs for invoking servlets in process.
+ */
+class ServletStubs {
+
+    /**
+     * Returns a request with {@code method} and {@code params}.
+     * Other methods return null, zero or false.
+     */
+    static HttpServletRequest createRequest(final String method, final Map<String, String> params) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args) {
+                        switch (m.getName()) {
+                            case "getMethod":
+                                return method;
+                            case "getProtocol":
+                                return "HTTP/1.1";
+                            case "getParameter":
+                                return params.get((String) args[0]);
+                            default:
+                                return defaultValue(m.getReturnType());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Returns a response that discards everything written to it.
+     */
+    static HttpServletResponse createResponse() {
+        return (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args) {
+                        return defaultValue(m.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0l;
+        }
+        return null;
+    }
+
+}
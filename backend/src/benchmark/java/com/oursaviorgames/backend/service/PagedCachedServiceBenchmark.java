@@ -0,0 +1,43 @@
+package com.oursaviorgames.backend.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmark of parsing page tokens by {@link PagedCachedService}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PagedCachedServiceBenchmark {
+
+    private PagedCachedService<?, ?> service;
+
+    @Setup
+    public void setUp() {
+        service = (PagedCachedService<?, ?>) CommentService.CommentServiceFactory.createInstance();
+    }
+
+    @Benchmark
+    public int parseFirstPageToken() {
+        return service.parseToken(null);
+    }
+
+    @Benchmark
+    public int parsePageToken() {
+        return service.parseToken("page2");
+    }
+
+    @Benchmark
+    public int parseCursorToken() {
+        return service.parseToken("E-ABAIICJGoQZGV2fm91cnNhdmlvcmdhbWVzchALEgdDb21tZW50GICAgICA8JMKDBQ");
+    }
+
+}
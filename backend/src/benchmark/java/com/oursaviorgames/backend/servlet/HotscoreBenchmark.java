@@ -0,0 +1,30 @@
+package com.oursaviorgames.backend.servlet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmark of {@link AggregatePlayTokensWorker#hotscore(Date, long)},
+ * which is computed for every game with new plays.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HotscoreBenchmark {
+
+    private Date publishedDate = new Date(1420070400000l);
+    private long playCount     = 123456l;
+
+    @Benchmark
+    public long hotscore() {
+        return AggregatePlayTokensWorker.hotscore(publishedDate, playCount);
+    }
+
+}
@@ -8,5 +8,8 @@ public interface CacheNameSpace {
     public static final String GAME_SERVICE_NAMESPACE = "games";
     public static final String COMMENT_SERVICE_NAMESPACE = "comments";
     public static final String EXTRA_GAME_SERVICE_NAMESPACE = "extra_games";
+    public static final String PLAY_TOKENS_NAMESPACE = "play_tokens";
+    public static final String ADMIN_SERVICE_NAMESPACE = "admins";
+    public static final String USER_SERVICE_NAMESPACE = "users";
 
 }
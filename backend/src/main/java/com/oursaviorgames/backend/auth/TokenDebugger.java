@@ -5,7 +5,19 @@ import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpStatusCodes;
 
+import com.google.appengine.api.urlfetch.FetchOptions;
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
+
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.oursaviorgames.backend.Constants;
 import com.oursaviorgames.backend.auth.response.GPlusTokenDebugResponse;
@@ -27,6 +39,16 @@ public class TokenDebugger{
      */
     public static final long TOKEN_VALIDITY_THRESHOLD = 5l * 60l;
 
+    /**
+     * Deadline of asynchronous token debugging requests, in seconds.
+     */
+    private static final double FETCH_DEADLINE = 5.0;
+
+    /**
+     * Not defined by {@link HttpStatusCodes}.
+     */
+    private static final int STATUS_CODE_TOO_MANY_REQUESTS = 429;
+
     /**
      * Validates access {@code token} against {@code identityProvider}.
      * Callers should check for null in case the authentication fails.
@@ -43,6 +65,77 @@ public class TokenDebugger{
         return null;
     }
 
+    /**
+     * Starts validating access {@code token} against {@code identityProvider}
+     * without waiting for the identity provider to respond.
+     * <p>
+     * The returned future holds a {@link ValidatedToken}, or null if the token
+     * is invalid. It fails with an {@link IOException} if the identity provider
+     * could not be reached, failed or throttled the request.
+     * @param identityProvider The {@link IdentityProvider} to check the {@code token} against.
+     * @param token The access token to check. Must be the token itself.
+     * @return Future {@link ValidatedToken}.
+     */
+    public Future<ValidatedToken> authenticateAsync(final IdentityProvider identityProvider, final String token) {
+        final Class<? extends TokenDebugResponse> dataClass = getResponseClass(identityProvider);
+        final Future<HTTPResponse> pendingResponse;
+        try {
+            HTTPRequest httpRequest = new HTTPRequest(new URL(buildUrl(identityProvider, token).build()),
+                    HTTPMethod.GET, FetchOptions.Builder.withDeadline(FETCH_DEADLINE));
+            pendingResponse = URLFetchServiceFactory.getURLFetchService().fetchAsync(httpRequest);
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+        return new Future<ValidatedToken>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return pendingResponse.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return pendingResponse.isCancelled();
+            }
+
+            @Override
+            public boolean isDone() {
+                return pendingResponse.isDone();
+            }
+
+            @Override
+            public ValidatedToken get() throws InterruptedException, ExecutionException {
+                return parseResponse(pendingResponse.get());
+            }
+
+            @Override
+            public ValidatedToken get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+                return parseResponse(pendingResponse.get(timeout, unit));
+            }
+
+            private ValidatedToken parseResponse(HTTPResponse httpResponse) throws ExecutionException {
+                final int responseCode = httpResponse.getResponseCode();
+                // Provider failures and throttling say nothing about the token.
+                if (responseCode >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR
+                        || responseCode == STATUS_CODE_TOO_MANY_REQUESTS) {
+                    throw new ExecutionException(new IOException("Got (" + responseCode +
+                            ") from (" + identityProvider + ")"));
+                }
+                if (responseCode != HttpStatusCodes.STATUS_CODE_OK) {
+                    DEBUG_LOGI(TAG, "Failed debugging token. Got (" + httpResponse.getResponseCode() +
+                            ") from (" + identityProvider + ").");
+                    return null;
+                }
+                try {
+                    TokenDebugResponse response = SimpleHttpRequestFactory.parseJson(httpResponse.getContent(), dataClass);
+                    return validateResponse(identityProvider, token, response);
+                } catch (IOException e) {
+                    throw new ExecutionException(e);
+                }
+            }
+        };
+    }
+
     /**
      * <pre>
      * For a token to be valid:
@@ -58,20 +151,46 @@ public class TokenDebugger{
      */
     private static ValidatedToken debugToken(final IdentityProvider identityProvider, final String token) {
         // Performs debugging against the identity provider.
-        TokenDebugResponse response = null;
+        TokenDebugResponse response = performHttpRequest(
+                buildUrl(identityProvider, token), getResponseClass(identityProvider));
+        return validateResponse(identityProvider, token, response);
+    }
+
+    /**
+     * Returns token debugging url of {@code identityProvider}.
+     */
+    private static GenericUrl buildUrl(IdentityProvider identityProvider, String token) {
         switch (identityProvider) {
-            case GOOGLE_PLUS: {
-                GPlusTokenDebugUrl url = GPlusTokenDebugUrl.buildUrl(token);
-                response = performHttpRequest(url, GPlusTokenDebugResponse.class);
-                break;
-            }
-            case FACEBOOK: {
-                FacebookTokenDebugUrl url = FacebookTokenDebugUrl.buildUrl(token);
-                response = performHttpRequest(url, FacebookTokenDebugResponse.class);
-                break;
-            }
+            case GOOGLE_PLUS:
+                return GPlusTokenDebugUrl.buildUrl(token);
+            case FACEBOOK:
+                return FacebookTokenDebugUrl.buildUrl(token);
+            default:
+                throw new IllegalArgumentException("Unknown identity provider: " + identityProvider);
         }
-        // Checks validity of the token.
+    }
+
+    /**
+     * Returns the class token debugging responses of {@code identityProvider} parse as.
+     */
+    private static Class<? extends TokenDebugResponse> getResponseClass(IdentityProvider identityProvider) {
+        switch (identityProvider) {
+            case GOOGLE_PLUS:
+                return GPlusTokenDebugResponse.class;
+            case FACEBOOK:
+                return FacebookTokenDebugResponse.class;
+            default:
+                throw new IllegalArgumentException("Unknown identity provider: " + identityProvider);
+        }
+    }
+
+    /**
+     * Checks validity of the token.
+     * @param response Token debugging response, or null.
+     * @return ValidatedToken if the token is validated, null otherwise.
+     */
+    private static ValidatedToken validateResponse(IdentityProvider identityProvider, String token,
+                                                   TokenDebugResponse response) {
         if (response != null) {
             boolean isValid = response.isValid();
             isValid &= TimeUtils.compareToNow(response.getExpiryTime(), TOKEN_VALIDITY_THRESHOLD);
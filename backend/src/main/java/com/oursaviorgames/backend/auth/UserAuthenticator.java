@@ -2,18 +2,37 @@ package com.oursaviorgames.backend.auth;
 
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
-
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.googlecode.objectify.LoadResult;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.oursaviorgames.backend.memcache.Cachable;
+import com.oursaviorgames.backend.memcache.LocalCache;
 import com.oursaviorgames.backend.model.datastore.UserProfile;
 import com.oursaviorgames.backend.service.UserService;
 import com.oursaviorgames.backend.utils.LogUtils;
 import com.oursaviorgames.backend.utils.MemcacheUtils;
 import com.oursaviorgames.backend.utils.TimeUtils;
 
+import static com.oursaviorgames.backend.service.OfyService.ofy;
 import static com.oursaviorgames.backend.utils.LogUtils.DEBUG_LOGI;
+import static com.oursaviorgames.backend.utils.LogUtils.LOGW;
 
 /**
  * Authenticator for users.
  * Authentication is based on the HTTP headers from the client.
+ * <p>
+ * Results are cached in an in-instance {@link LocalCache} and in memcache,
+ * keyed by a hash of the access token. Invalid tokens are cached for
+ * {@link #INVALID_TOKEN_TTL} seconds. Concurrent requests on this instance
+ * with the same access token share a single authentication.
  */
 public class UserAuthenticator implements Authenticator {
 
@@ -21,74 +40,171 @@ public class UserAuthenticator implements Authenticator {
 
     private static final String MEMCACHE_NAMESPACE = "ValidatedUsers";
 
-    @Override
-    public User authenticate(Authorization authorization) {
+    /**
+     * How long an invalid access token is cached, in seconds.
+     */
+    private static final int INVALID_TOKEN_TTL = 60;
 
-        MemcacheService memcache = MemcacheUtils.getSyncMemcacheWithLog(MEMCACHE_NAMESPACE);
+    /**
+     * Authentications in progress on this instance, keyed like the cache.
+     */
+    private static final ConcurrentMap<String, Future<AuthResult>> sInFlight = new ConcurrentHashMap<>();
 
-        final User user = (User) memcache.get(getCacheKey(authorization));
+    @Override
+    public User authenticate(final Authorization authorization) {
+        final String cacheKey = getCacheKey(authorization);
+        final LocalCache localCache = LocalCache.getInstance(MEMCACHE_NAMESPACE);
+        final MemcacheService memcache = MemcacheUtils.getSyncMemcacheWithLog(MEMCACHE_NAMESPACE);
+
+        // Entries are never invalidated, only expired.
+        AuthResult result = (AuthResult) localCache.get(cacheKey, 0l);
+        if (result == null || result.isExpired()) {
+            result = (AuthResult) memcache.get(cacheKey);
+            if (result != null) {
+                localCache.put(cacheKey, result, 0l);
+            }
+        }
 
-        // If user is not cached, try authentication against the identity provider.
-        if (user != null) {
+        if (result != null && !result.isExpired()) {
             DEBUG_LOGI(TAG, "authenticated user cache hit");
             // Cache hit.
-            return user;
-        } else { // Cache miss.
-            DEBUG_LOGI(TAG, "authenticated user cache miss");
-            TokenDebugger tokenDebugger = new TokenDebugger();
-            final ValidatedToken validatedToken = tokenDebugger.authenticate(
-                    authorization.getIdentityProvider(), authorization.getAccessToken());
-            // If debugging token against identity provider succeeds.
-            if (validatedToken != null) {
-
-                DEBUG_LOGI(TAG, "Access token validated");
-
-                // Access token is valid.
-                // Checks if the user this access token belongs to is already registered.
-                final String identityProviderUserId = validatedToken.getDebugResponse().getUserId();
-                final IdentityProvider identityProvider = validatedToken.getIdentityProvider();
-
-                // Tries to get the user profile from the datastore,
-                // either using the userId or querying the database.
-                UserService userService = UserService.UserServiceFactory.createInstance();
-                UserProfile userProfile;
-                if (authorization.getUserId() != null) {
-                    DEBUG_LOGI(TAG, "using 'X-UserId' to find the user");
-                    long userId = authorization.getUserId();
-                    userProfile = userService.getUserProfile(UserProfile.createKey(userId));
-                } else {
-                    DEBUG_LOGI(TAG, "querying the datastore to find the user");
-                    userProfile = userService.queryForExistingUser(identityProvider, identityProviderUserId);
-                }
-
-                // A UserProfile has been found on the record.
-                if (userProfile != null) {
-                    // Checks if the user identityProviderUserId matches the id
-                    // returned by TokenDebugger the reason for this is if the user
-                    // is only queried using 'X-UserId', we have to make sure the
-                    // access token actually belongs to that user.
-                    // This operation is redundant when using UserService.queryForExistingUser().
-                    if (userProfile.getAuthorityUserId().equals(validatedToken.getDebugResponse().getUserId())) {
-                        DEBUG_LOGI(TAG, "user found, authentication complete");
-                        User authenticatedUser = new User(userProfile.getId());
-                        Expiration expiration = Expiration.onDate(TimeUtils.getDateFromUnixTime(validatedToken.getDebugResponse().getExpiryTime()));
-                        memcache.put(getCacheKey(authorization), authenticatedUser, expiration);
-                        return authenticatedUser;
-                    }
-                }
-            }
+            return result.user;
+        }
+
+        // Cache miss.
+        DEBUG_LOGI(TAG, "authenticated user cache miss");
+        result = authenticateOnce(cacheKey, authorization);
+        if (result != null) {
+            memcache.put(cacheKey, result, Expiration.onDate(TimeUtils.getDateFromUnixTime(result.expiryTime)));
+            localCache.put(cacheKey, result, 0l);
+            return result.user;
         }
         // Authentication has failed.
         return null;
     }
 
+    /**
+     * Authenticates against the identity provider,
+     * sharing the result with concurrent calls for the same {@code cacheKey}.
+     * @return Result to cache or null if authentication failed and shouldn't be cached.
+     */
+    private AuthResult authenticateOnce(String cacheKey, final Authorization authorization) {
+        FutureTask<AuthResult> task = new FutureTask<>(new Callable<AuthResult>() {
+            @Override
+            public AuthResult call() throws Exception {
+                return authenticateWithIdentityProvider(authorization);
+            }
+        });
+        Future<AuthResult> inFlight = sInFlight.putIfAbsent(cacheKey, task);
+        if (inFlight == null) {
+            try {
+                task.run();
+            } finally {
+                sInFlight.remove(cacheKey, task);
+            }
+            inFlight = task;
+        }
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOGW(TAG, "Failed authenticating user: " + e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Debugs the access token against the identity provider and finds its user.
+     * @return Result to cache or null if no user is registered with the access token.
+     * @throws ExecutionException If the identity provider could not be reached.
+     */
+    private static AuthResult authenticateWithIdentityProvider(Authorization authorization)
+            throws ExecutionException, InterruptedException {
+        TokenDebugger tokenDebugger = new TokenDebugger();
+        final Future<ValidatedToken> pendingToken = tokenDebugger.authenticateAsync(
+                authorization.getIdentityProvider(), authorization.getAccessToken());
+
+        // Loads the user profile of 'X-UserId' while the token is being debugged.
+        LoadResult<UserProfile> pendingProfile = null;
+        if (authorization.getUserId() != null) {
+            DEBUG_LOGI(TAG, "using 'X-UserId' to find the user");
+            pendingProfile = ofy().load().key(UserProfile.createKey(authorization.getUserId()));
+        }
+
+        final ValidatedToken validatedToken = pendingToken.get();
+        // If debugging token against identity provider fails.
+        if (validatedToken == null) {
+            return AuthResult.invalid();
+        }
+
+        DEBUG_LOGI(TAG, "Access token validated");
+
+        // Access token is valid.
+        // Checks if the user this access token belongs to is already registered.
+        final String identityProviderUserId = validatedToken.getDebugResponse().getUserId();
+        final IdentityProvider identityProvider = validatedToken.getIdentityProvider();
+
+        // Tries to get the user profile from the datastore,
+        // either using the userId or the user's identity.
+        UserProfile userProfile;
+        if (pendingProfile != null) {
+            userProfile = pendingProfile.now();
+        } else {
+            DEBUG_LOGI(TAG, "looking up the user's identity");
+            UserService userService = UserService.UserServiceFactory.createInstance();
+            userProfile = userService.findExistingUser(identityProvider, identityProviderUserId);
+        }
+
+        // A UserProfile has been found on the record.
+        if (userProfile != null) {
+            // Checks if the user identityProviderUserId matches the id
+            // returned by TokenDebugger the reason for this is if the user
+            // is only queried using 'X-UserId', we have to make sure the
+            // access token actually belongs to that user.
+            // This operation is redundant when using UserService.findExistingUser().
+            if (userProfile.getAuthorityUserId().equals(identityProviderUserId)) {
+                DEBUG_LOGI(TAG, "user found, authentication complete");
+                return new AuthResult(new User(userProfile.getId()),
+                        validatedToken.getDebugResponse().getExpiryTime());
+            }
+        }
+        // Not cached, since the user may still register with this access token.
+        return null;
+    }
+
     /**
      * Returns memcache key based on 'Authorization' header.
      * @param authorization
      * @return
      */
     private static String getCacheKey(Authorization authorization) {
-        return authorization.getAccessToken();
+        return Hashing.sha256().hashString(
+                authorization.getIdentityProvider() + ":" + authorization.getAccessToken(),
+                Charsets.UTF_8).toString();
+    }
+
+    /**
+     * Cached result of authenticating an access token.
+     */
+    private static class AuthResult implements Cachable {
+
+        final User user;        // null if the access token is invalid.
+        final long expiryTime;  // unix time in seconds.
+
+        AuthResult(User user, long expiryTime) {
+            this.user = user;
+            this.expiryTime = expiryTime;
+        }
+
+        static AuthResult invalid() {
+            return new AuthResult(null, TimeUtils.getUnixTime() + INVALID_TOKEN_TTL);
+        }
+
+        boolean isExpired() {
+            return TimeUtils.getUnixTime() >= expiryTime;
+        }
     }
 
 }
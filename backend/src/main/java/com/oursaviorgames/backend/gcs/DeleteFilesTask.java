@@ -0,0 +1,55 @@
+package com.oursaviorgames.backend.gcs;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.oursaviorgames.backend.utils.LogUtils.LOGW;
+import static com.oursaviorgames.backend.utils.LogUtils.makeLogTag;
+
+/**
+ * Deletes files from Google Cloud Storage on the task queue.
+ * <p>
+ * A failed deletion is retried by the task queue.
+ */
+public class DeleteFilesTask implements DeferredTask {
+
+    private static final String TAG = makeLogTag(DeleteFilesTask.class);
+
+    private final List<GcsFilename> files;
+
+    private DeleteFilesTask(List<GcsFilename> files) {
+        this.files = files;
+    }
+
+    /**
+     * Queues deletion of {@code files}.
+     */
+    public static void enqueue(GcsFilename... files) {
+        QueueFactory.getDefaultQueue().add(
+                TaskOptions.Builder.withPayload(new DeleteFilesTask(Arrays.asList(files))));
+    }
+
+    @Override
+    public void run() {
+        GcsService gcsService = GcsServiceFactory.createGcsService();
+        try {
+            for (GcsFilename file : files) {
+                if (!gcsService.delete(file)) {
+                    LOGW(TAG, "File not found: " + file);
+                }
+            }
+        } catch (IOException e) {
+            // Throws, so that the task is retried.
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -8,7 +8,9 @@ import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.common.base.Charsets;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 
 /**
@@ -45,4 +47,16 @@ public final class SimpleHttpRequestFactory {
         return requestFactory.buildGetRequest(url);
     }
 
+    /**
+     * Parses JSON {@code content} as {@code dataClass}.
+     * @param content UTF-8 encoded JSON.
+     * @param dataClass Parse data class.
+     * @return Parsed JSON.
+     * @throws IOException
+     */
+    public static <T> T parseJson(byte[] content, Class<T> dataClass) throws IOException {
+        return new JsonObjectParser(JSON_FACTORY).parseAndClose(
+                new ByteArrayInputStream(content), Charsets.UTF_8, dataClass);
+    }
+
 }
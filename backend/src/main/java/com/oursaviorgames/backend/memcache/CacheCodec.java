@@ -0,0 +1,20 @@
+package com.oursaviorgames.backend.memcache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Compact binary format of a cached type, used by {@link CacheSerializer}
+ * instead of Java serialization.
+ * <p>
+ * A codec must keep reading what it wrote before, otherwise
+ * it has to be registered under a new type id.
+ */
+public interface CacheCodec<T> {
+
+    public void write(DataOutput out, T value) throws IOException;
+
+    public T read(DataInput in) throws IOException;
+
+}
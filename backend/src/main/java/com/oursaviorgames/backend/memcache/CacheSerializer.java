@@ -0,0 +1,251 @@
+package com.oursaviorgames.backend.memcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import static com.oursaviorgames.backend.utils.LogUtils.LOGW;
+import static com.oursaviorgames.backend.utils.LogUtils.makeLogTag;
+
+/**
+ * Encodes cached values with the {@link CacheCodec} registered for their class.
+ * <p>
+ * Encoded values are byte arrays of a format version byte, a flags byte,
+ * the type id of the codec and the codec's output, deflated if it is larger than
+ * {@link #COMPRESSION_THRESHOLD} bytes. Values of other classes are left
+ * to memcache's Java serialization.
+ * <p>
+ * Values that can't be decoded, such as values written by a newer format
+ * version during a rollout, are treated as cache misses.
+ */
+public final class CacheSerializer {
+
+    private static final String TAG = makeLogTag(CacheSerializer.class);
+
+    /**
+     * Version of the encoded format, bumped on incompatible changes to the header.
+     */
+    static final byte FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 3;
+
+    private static final byte FLAG_DEFLATED = 1;
+
+    /**
+     * Encoded values larger than this many bytes are deflated.
+     */
+    static final int COMPRESSION_THRESHOLD = 1024;
+
+    /**
+     * Codec of game id arrays, such as ranked game lists.
+     */
+    public static final CacheCodec<long[]> LONG_ARRAY = new CacheCodec<long[]>() {
+        @Override
+        public void write(DataOutput out, long[] value) throws IOException {
+            out.writeInt(value.length);
+            for (long l : value) {
+                out.writeLong(l);
+            }
+        }
+
+        @Override
+        public long[] read(DataInput in) throws IOException {
+            long[] value = new long[in.readInt()];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = in.readLong();
+            }
+            return value;
+        }
+    };
+
+    private final Map<Class<?>, Registration<?>> byType;
+    private final Registration<?>[]              byId;
+
+    private CacheSerializer(Builder builder) {
+        byType = new HashMap<>(builder.byType);
+        byId = Arrays.copyOf(builder.byId, builder.byId.length);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns {@code value} encoded by its codec,
+     * or {@code value} itself if its class has no codec.
+     */
+    public Object encode(Object value) {
+        if (value == null) {
+            return null;
+        }
+        Registration<?> registration = byType.get(value.getClass());
+        if (registration == null) {
+            return value;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.write(new byte[HEADER_SIZE]);
+            registration.write(new DataOutputStream(bytes), value);
+            byte[] encoded = bytes.toByteArray();
+            byte flags = 0;
+            if (encoded.length - HEADER_SIZE > COMPRESSION_THRESHOLD) {
+                byte[] deflated = deflate(encoded);
+                if (deflated.length < encoded.length) {
+                    encoded = deflated;
+                    flags |= FLAG_DEFLATED;
+                }
+            }
+            encoded[0] = FORMAT_VERSION;
+            encoded[1] = flags;
+            encoded[2] = registration.typeId;
+            return encoded;
+        } catch (IOException e) {
+            // Never thrown by in-memory streams.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the value of {@code cached}, as read from memcache.
+     * @return Decoded value, {@code cached} itself if it isn't encoded,
+     *          or null if it can't be decoded.
+     */
+    public Object decode(Object cached) {
+        if (!(cached instanceof byte[])) {
+            return cached;
+        }
+        final byte[] encoded = (byte[]) cached;
+        if (encoded.length < HEADER_SIZE || encoded[0] != FORMAT_VERSION) {
+            LOGW(TAG, "Unknown cached value format: " + (encoded.length > 0 ? encoded[0] : -1));
+            return null;
+        }
+        Registration<?> registration = byId[encoded[2] & 0xff];
+        if (registration == null) {
+            LOGW(TAG, "Unknown cached type id: " + encoded[2]);
+            return null;
+        }
+        InputStream in = new ByteArrayInputStream(encoded, HEADER_SIZE, encoded.length - HEADER_SIZE);
+        if ((encoded[1] & FLAG_DEFLATED) != 0) {
+            in = new InflaterInputStream(in);
+        }
+        try {
+            return registration.codec.read(new DataInputStream(in));
+        } catch (IOException | RuntimeException e) {
+            LOGW(TAG, "Failed decoding cached " + registration.type.getSimpleName() + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns {@code encoded} with everything after the header deflated.
+     */
+    private static byte[] deflate(byte[] encoded) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(encoded, HEADER_SIZE, encoded.length - HEADER_SIZE);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length / 2);
+            out.write(encoded, 0, HEADER_SIZE);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public static void writeDate(DataOutput out, Date value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.getTime());
+        }
+    }
+
+    public static Date readDate(DataInput in) throws IOException {
+        return in.readBoolean() ? new Date(in.readLong()) : null;
+    }
+
+    public static void writeLong(DataOutput out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    public static Long readLong(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    /**
+     * Builder of an immutable {@link CacheSerializer}.
+     */
+    public static class Builder {
+
+        private final Map<Class<?>, Registration<?>> byType = new HashMap<>();
+        private final Registration<?>[]              byId = new Registration<?>[256];
+
+        private Builder() {}
+
+        /**
+         * Encodes values of exactly class {@code type} with {@code codec}.
+         * @param typeId Id from 0 to 255 stored along with the values,
+         *               unique within the serializer.
+         * @throws IllegalArgumentException if {@code typeId} or {@code type} is already registered.
+         */
+        public <T> Builder register(int typeId, Class<T> type, CacheCodec<T> codec) {
+            if (typeId < 0 || typeId >= byId.length || byId[typeId] != null || byType.containsKey(type)) {
+                throw new IllegalArgumentException("Can't register " + type.getName() + " with type id " + typeId);
+            }
+            Registration<T> registration = new Registration<>((byte) typeId, type, codec);
+            byId[typeId] = registration;
+            byType.put(type, registration);
+            return this;
+        }
+
+        public CacheSerializer build() {
+            return new CacheSerializer(this);
+        }
+    }
+
+    private static class Registration<T> {
+
+        final byte          typeId;
+        final Class<T>      type;
+        final CacheCodec<T> codec;
+
+        Registration(byte typeId, Class<T> type, CacheCodec<T> codec) {
+            this.typeId = typeId;
+            this.type = type;
+            this.codec = codec;
+        }
+
+        void write(DataOutput out, Object value) throws IOException {
+            codec.write(out, type.cast(value));
+        }
+    }
+
+}
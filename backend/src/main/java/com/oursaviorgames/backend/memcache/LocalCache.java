@@ -0,0 +1,126 @@
+package com.oursaviorgames.backend.memcache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.oursaviorgames.backend.utils.DateUtils;
+
+/**
+ * Bounded in-instance cache of a single memcache namespace.
+ * <p>
+ * Entries are stamped with the namespace version current when they were cached,
+ * and are only returned while that version is still current.
+ * Cached values are shared between threads and must not be modified.
+ */
+public final class LocalCache {
+
+    /**
+     * Maximum number of entries per namespace.
+     */
+    private static final int MAX_SIZE = 1000;
+
+    /**
+     * How long an entry is kept, in seconds.
+     */
+    private static final int TTL = 60;
+
+    /**
+     * How often the namespace version should be read from memcache, in milliseconds.
+     */
+    private static final long VERSION_CHECK_INTERVAL = 5000l;
+
+    private static final ConcurrentMap<String, LocalCache> sInstances = new ConcurrentHashMap<>();
+
+    private final Cache<String, Entry> cache;
+    private volatile long version;
+    private volatile long versionCheckTime;
+
+    private LocalCache() {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(MAX_SIZE)
+                .expireAfterWrite(TTL, TimeUnit.SECONDS)
+                .build();
+        versionCheckTime = 0l;
+    }
+
+    /**
+     * Returns the {@code LocalCache} of {@code namespace}, shared by this instance.
+     * @param namespace Memcache namespace.
+     */
+    public static LocalCache getInstance(String namespace) {
+        LocalCache localCache = sInstances.get(namespace);
+        if (localCache == null) {
+            sInstances.putIfAbsent(namespace, new LocalCache());
+            localCache = sInstances.get(namespace);
+        }
+        return localCache;
+    }
+
+    /**
+     * Drops all local caches of this instance.
+     */
+    public static void clearAll() {
+        sInstances.clear();
+    }
+
+    /**
+     * Returns value of {@code key}, or null if it is not cached
+     * or was cached with a version other than {@code version}.
+     */
+    public Object get(String key, long version) {
+        Entry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.version != version) {
+            cache.invalidate(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Caches {@code value} under {@code key}.
+     * @param version Namespace version read before {@code value} was.
+     */
+    public void put(String key, Object value, long version) {
+        cache.put(key, new Entry(value, version));
+    }
+
+    /**
+     * Whether the namespace version should be read again from memcache.
+     */
+    public boolean isVersionCheckDue() {
+        return DateUtils.getTimeNow() - versionCheckTime > VERSION_CHECK_INTERVAL;
+    }
+
+    /**
+     * Returns the namespace version last set by {@link #setVersion(long)}.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the namespace version read from memcache.
+     */
+    public void setVersion(long version) {
+        this.version = version;
+        this.versionCheckTime = DateUtils.getTimeNow();
+    }
+
+    private static class Entry {
+        final Object value;
+        final long   version;
+
+        Entry(Object value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+}
@@ -27,15 +27,16 @@ public class Comment implements Serializable {
      */
     public static final String F_Game                   = "EF_Game";
     public static final String F_Timestamp              = "EF_Timestamp";
+    public static final String F_Author                 = "EF_Author";
     public static final String F_InappropriateFlagCount = "EF_InappropriateFlagCount";
 
     /* Entity fields */
     @Id     Long                  EF_Id;
     @Index  Key<Game>             EF_Game;
     @Index  Date                  EF_Timestamp;
-            Key<UserProfile>      EF_Author;
+    @Index  Key<UserProfile>      EF_Author;
             String                EF_Message;
-            Set<Key<UserProfile>> EF_InappropriateFlagList = new HashSet<>();
+            Set<Key<UserProfile>> EF_InappropriateFlagList = new HashSet<>(); // flags from before CommentFlags.
     @Index(IfNotZero.class) int   EF_InappropriateFlagCount = 0;
 
     /* Enforced limits on entity fields */
@@ -101,6 +102,7 @@ public class Comment implements Serializable {
 
     /**
      * Adds user to set of users who flagged this comment as inappropriate.
+     * New flags are saved as {@link CommentFlag}s instead, and added with {@link #addFlagCount(int)}.
      * @param userKey The user flagging the comment.
      * @return true if this set already did not contain this user.
      */
@@ -110,6 +112,13 @@ public class Comment implements Serializable {
         return result;
     }
 
+    /**
+     * Adds {@code count} newly counted {@link CommentFlag}s to the flag count.
+     */
+    public void addFlagCount(int count) {
+        EF_InappropriateFlagCount += count;
+    }
+
     public static Key<Comment> createKeyFromId(long id) {
         return Key.create(Comment.class, id);
     }
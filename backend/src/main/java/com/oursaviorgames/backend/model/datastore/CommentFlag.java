@@ -0,0 +1,75 @@
+package com.oursaviorgames.backend.model.datastore;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.condition.IfFalse;
+
+import java.util.Date;
+
+import com.oursaviorgames.backend.utils.TimeUtils;
+
+/**
+ * A single user flagging a {@link Comment} as inappropriate.
+ * <p>
+ * Flags are kept out of the comment entity, and are rolled into
+ * its flag count in batches once they are counted.
+ *
+ * <b>Datastore info:</b>
+ * Index: {@code counted}, only while false.
+ */
+@Entity
+public class CommentFlag {
+
+    public static final String F_Counted = "EF_Counted";
+
+    @Id
+    private String  EF_Id;
+    private long    EF_CommentId;
+    private long    EF_UserId;
+    private Date    EF_Timestamp;
+    @Index(IfFalse.class)
+    private boolean EF_Counted;
+
+    @SuppressWarnings("unused")
+    private CommentFlag() {
+    }
+
+    public CommentFlag(Key<Comment> commentKey, Key<UserProfile> userKey) {
+        this.EF_Id = createId(commentKey.getId(), userKey.getId());
+        this.EF_CommentId = commentKey.getId();
+        this.EF_UserId = userKey.getId();
+        this.EF_Timestamp = TimeUtils.getCurrentTime();
+        this.EF_Counted = false;
+    }
+
+    public long getCommentId() {
+        return EF_CommentId;
+    }
+
+    public long getUserId() {
+        return EF_UserId;
+    }
+
+    public Date getTimestamp() {
+        return EF_Timestamp;
+    }
+
+    public boolean isCounted() {
+        return EF_Counted;
+    }
+
+    public void setCounted() {
+        EF_Counted = true;
+    }
+
+    public static Key<CommentFlag> createKey(Key<Comment> commentKey, Key<UserProfile> userKey) {
+        return Key.create(CommentFlag.class, createId(commentKey.getId(), userKey.getId()));
+    }
+
+    private static String createId(long commentId, long userId) {
+        return commentId + "|" + userId;
+    }
+
+}
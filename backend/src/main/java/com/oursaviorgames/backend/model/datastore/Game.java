@@ -7,10 +7,13 @@ import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnSave;
 
 import java.io.Serializable;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.oursaviorgames.backend.utils.DateUtils;
 import com.oursaviorgames.backend.utils.TimeUtils;
 
 import static com.oursaviorgames.backend.utils.Preconditions.checkNotNull;
@@ -22,7 +25,7 @@ import static com.oursaviorgames.backend.utils.Preconditions.checkNotNull;
  * <b>Datastore info:</b>
  * <pre>
  *     Entity is cached.
- *     Indexes: {@code datePublished}, {@code hotScore}, {@code published}.
+ *     Indexes: {@code datePublished}, {@code hotScore}, {@code published}, {@code changeVersion}.
  * </pre>
  */
 @Entity
@@ -32,6 +35,12 @@ public class Game implements Serializable {
     public static final String F_DatePublished = "EF_DatePublished";
     public static final String F_HotScore = "EF_HotScore";
     public static final String F_IsPublished = "EF_IsPublished";
+    public static final String F_ChangeVersion = "EF_ChangeVersion";
+
+    /**
+     * Last change version handed out by this instance.
+     */
+    private static final AtomicLong sLastChangeVersion = new AtomicLong();
 
     @Id     Long            EF_Id;                     // id
             Key<Developer>  EF_Developer;
@@ -47,6 +56,7 @@ public class Game implements Serializable {
             long            EF_PlayTime     = 0l;      // Total play-time in seconds.
             boolean         EF_IsOffline    = false;   // is the game playable offline.
             String          EF_OriginUrl;              // Games original link
+    @Index  long            EF_ChangeVersion = 0l;     // Set on every save, see toChangeVersion().
 
     /**
      * Required default constructor for Objectify.
@@ -190,6 +200,36 @@ public class Game implements Serializable {
         }
 	}
 
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public long getChangeVersion() {
+        return EF_ChangeVersion;
+    }
+
+    @OnSave
+    void onSave() {
+        EF_ChangeVersion = nextChangeVersion();
+    }
+
+    /**
+     * Returns the change version of saves made at {@code timeMillis}.
+     * Versions are in microseconds, so that saves within the same millisecond
+     * on an instance get distinct versions.
+     */
+    public static long toChangeVersion(long timeMillis) {
+        return timeMillis * 1000l;
+    }
+
+    private static long nextChangeVersion() {
+        final long now = toChangeVersion(DateUtils.getTimeNow());
+        while (true) {
+            final long last = sLastChangeVersion.get();
+            final long next = Math.max(now, last + 1);
+            if (sLastChangeVersion.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
     public static Key<Game> createKeyFromId(long id) {
         return Key.create(Game.class, id);
     }
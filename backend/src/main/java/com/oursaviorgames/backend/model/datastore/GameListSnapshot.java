@@ -0,0 +1,69 @@
+package com.oursaviorgames.backend.model.datastore;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represents an immutable, versioned ranking of published games
+ * for a single list ordering.
+ *
+ * <b>Datastore info:</b>
+ * Index: {@code ordering}, {@code version}.
+ */
+@Entity
+public class GameListSnapshot {
+
+    public static final String F_Ordering = "EF_Ordering";
+    public static final String F_Version  = "EF_Version";
+
+    @Id
+    private String EF_Id;
+    @Index
+    private String EF_Ordering;
+    @Index
+    private long   EF_Version;
+    private byte[] EF_GameIds;      // Game ids in ranked order, 8 bytes each.
+
+    @SuppressWarnings("unused")
+    private GameListSnapshot() {
+    }
+
+    public GameListSnapshot(String ordering, long version, long[] gameIds) {
+        this.EF_Id = createId(ordering, version);
+        this.EF_Ordering = ordering;
+        this.EF_Version = version;
+        ByteBuffer buffer = ByteBuffer.allocate(gameIds.length * 8);
+        buffer.asLongBuffer().put(gameIds);
+        this.EF_GameIds = buffer.array();
+    }
+
+    public String getOrdering() {
+        return EF_Ordering;
+    }
+
+    public long getVersion() {
+        return EF_Version;
+    }
+
+    /**
+     * Returns a new array of game ids in ranked order.
+     */
+    public long[] getGameIds() {
+        long[] gameIds = new long[EF_GameIds.length / 8];
+        ByteBuffer.wrap(EF_GameIds).asLongBuffer().get(gameIds);
+        return gameIds;
+    }
+
+    public static Key<GameListSnapshot> createKey(String ordering, long version) {
+        return Key.create(GameListSnapshot.class, createId(ordering, version));
+    }
+
+    private static String createId(String ordering, long version) {
+        return ordering + "|" + version;
+    }
+
+}
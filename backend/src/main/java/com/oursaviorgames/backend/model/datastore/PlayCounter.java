@@ -0,0 +1,88 @@
+package com.oursaviorgames.backend.model.datastore;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * A single shard of the plays of a game that are not yet
+ * rolled into {@link Game}'s play stats.
+ * <p>
+ * Counters are zeroed rather than deleted once rolled up,
+ * so that they are only ever changed in transactions.
+ *
+ * <b>Datastore info:</b>
+ * Index: {@code gameId}.
+ */
+@Entity
+public class PlayCounter {
+
+    public static final String F_GameId = "EF_GameId";
+
+    @Id
+    private String EF_Id;
+    @Index
+    private long   EF_GameId;
+    private int    EF_PlayCount;
+    private long   EF_PlayDuration;  // play duration in seconds.
+
+    @SuppressWarnings("unused")
+    private PlayCounter() {
+    }
+
+    public PlayCounter(long gameId, int shard) {
+        this.EF_Id = createId(gameId, shard);
+        this.EF_GameId = gameId;
+        this.EF_PlayCount = 0;
+        this.EF_PlayDuration = 0l;
+    }
+
+    public Key<PlayCounter> getKey() {
+        return Key.create(PlayCounter.class, EF_Id);
+    }
+
+    public long getGameId() {
+        return EF_GameId;
+    }
+
+    public int getPlayCount() {
+        return EF_PlayCount;
+    }
+
+    /**
+     * Returns play duration in seconds.
+     */
+    public long getPlayDuration() {
+        return EF_PlayDuration;
+    }
+
+    /**
+     * Increments play count by {@code playCount} and play duration by {@code playDuration}.
+     */
+    public void add(int playCount, long playDuration) {
+        this.EF_PlayCount += playCount;
+        this.EF_PlayDuration += playDuration;
+    }
+
+    /**
+     * Zeroes the counter once its plays are rolled into the game.
+     */
+    public void reset() {
+        this.EF_PlayCount = 0;
+        this.EF_PlayDuration = 0l;
+    }
+
+    public boolean isEmpty() {
+        return EF_PlayCount == 0 && EF_PlayDuration == 0l;
+    }
+
+    public static Key<PlayCounter> createKey(long gameId, int shard) {
+        return Key.create(PlayCounter.class, createId(gameId, shard));
+    }
+
+    private static String createId(long gameId, int shard) {
+        return gameId + "|" + shard;
+    }
+
+}
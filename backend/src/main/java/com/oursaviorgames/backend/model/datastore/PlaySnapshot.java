@@ -1,5 +1,6 @@
 package com.oursaviorgames.backend.model.datastore;
 
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
@@ -10,6 +11,9 @@ import com.oursaviorgames.backend.utils.TimeUtils;
 
 /**
  * Represents an aggregated snapshot of {@link PlayToken}s.
+ * <p>
+ * Snapshots are keyed by the batch of plays they were aggregated from and their game,
+ * so that a batch is not applied to its game twice.
  *
  * <b>Datastore info:</b>
  * Index: {@code timeStamp}.
@@ -18,7 +22,7 @@ import com.oursaviorgames.backend.utils.TimeUtils;
 public class PlaySnapshot {
 
     @Id
-    private Long EF_Id;
+    private String EF_Id;
     @Index
     private Date EF_TimeStamp;
     private long EF_GameId;
@@ -29,14 +33,38 @@ public class PlaySnapshot {
     private PlaySnapshot() {
     }
 
-    public PlaySnapshot(long gameId) {
+    public PlaySnapshot(String batchId, long gameId) {
+        this.EF_Id = createId(batchId, gameId);
         this.EF_GameId = gameId;
         this.EF_TimeStamp = TimeUtils.getCurrentTime();
         this.EF_PlayCount = 0;
         this.EF_PlayDuration = 0l;
     }
 
-    public Long getId() {
+    /**
+     * Creates a snapshot of already aggregated play-tokens.
+     * @param batchId Id of the batch the plays were aggregated from.
+     * @param gameId Game id.
+     * @param playCount Number of plays.
+     * @param playDuration Total play duration in seconds.
+     */
+    public PlaySnapshot(String batchId, long gameId, int playCount, long playDuration) {
+        this.EF_Id = createId(batchId, gameId);
+        this.EF_GameId = gameId;
+        this.EF_TimeStamp = TimeUtils.getCurrentTime();
+        this.EF_PlayCount = playCount;
+        this.EF_PlayDuration = playDuration;
+    }
+
+    public static Key<PlaySnapshot> createKey(String batchId, long gameId) {
+        return Key.create(PlaySnapshot.class, createId(batchId, gameId));
+    }
+
+    private static String createId(String batchId, long gameId) {
+        return batchId + "|" + gameId;
+    }
+
+    public String getId() {
         return EF_Id;
     }
 
@@ -1,5 +1,7 @@
 package com.oursaviorgames.backend.model.datastore;
 
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
@@ -7,6 +9,7 @@ import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.condition.IfFalse;
 import com.googlecode.objectify.condition.PojoIf;
 
+import java.io.Serializable;
 import java.util.Date;
 
 import static com.oursaviorgames.backend.utils.Preconditions.checkNotNull;
@@ -87,7 +90,7 @@ public class PlayToken {
     /**
      * PlayToken form.
      */
-    public static class PlayTokenForm {
+    public static class PlayTokenForm implements Serializable {
 
         private Long gameId;
         private Long playDuration; // Play duration in seconds.
@@ -119,6 +122,14 @@ public class PlayToken {
         public void setTimestamp(Date timestamp) {
             this.timestamp = timestamp;
         }
+
+        /**
+         * Whether all fields are set and play duration is not negative.
+         */
+        @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+        public boolean isValid() {
+            return gameId != null && playDuration != null && playDuration >= 0l && timestamp != null;
+        }
     }
 
     // Create partial index if PlayToken is not counted.
@@ -0,0 +1,48 @@
+package com.oursaviorgames.backend.model.datastore;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import com.oursaviorgames.backend.auth.IdentityProvider;
+
+/**
+ * Maps a user of an identity provider to its {@link UserProfile}.
+ * <p>
+ * Keyed by the identity provider and the provider's user id,
+ * so that users are found with a key lookup instead of a query.
+ */
+@Cache
+@Entity
+public class UserIdentity {
+
+    @Id
+    private String           EF_Id;    // provider domain:provider user id.
+    private Key<UserProfile> EF_User;
+
+    @SuppressWarnings("unused")
+    private UserIdentity() {
+    }
+
+    public UserIdentity(IdentityProvider identityProvider, String identityProviderUserId, Key<UserProfile> user) {
+        this.EF_Id = createId(identityProvider, identityProviderUserId);
+        this.EF_User = user;
+    }
+
+    /**
+     * Returns key of the user with this identity.
+     */
+    public Key<UserProfile> getUserKey() {
+        return EF_User;
+    }
+
+    public static Key<UserIdentity> createKey(IdentityProvider identityProvider, String identityProviderUserId) {
+        return Key.create(UserIdentity.class, createId(identityProvider, identityProviderUserId));
+    }
+
+    private static String createId(IdentityProvider identityProvider, String identityProviderUserId) {
+        return identityProvider.getDomain() + ":" + identityProviderUserId;
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.oursaviorgames.backend.model.datastore;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+import java.util.Locale;
+
+import com.oursaviorgames.backend.utils.DateUtils;
+
+/**
+ * Reservation of a username by a {@link UserProfile}.
+ * <p>
+ * Keyed by the normalized username, so that uniqueness
+ * can be checked and enforced with key lookups in a transaction.
+ */
+@Entity
+public class Username {
+
+    @Id
+    private String           EF_Name;   // normalized username.
+    private Key<UserProfile> EF_User;
+    private Date             EF_Created;
+
+    @SuppressWarnings("unused")
+    private Username() {
+    }
+
+    public Username(String username, Key<UserProfile> user) {
+        this.EF_Name = normalize(username);
+        this.EF_User = user;
+        this.EF_Created = DateUtils.getDate();
+    }
+
+    /**
+     * Returns the normalized username.
+     */
+    public String getName() {
+        return EF_Name;
+    }
+
+    /**
+     * Returns key of the user who holds this username.
+     */
+    public Key<UserProfile> getUserKey() {
+        return EF_User;
+    }
+
+    public Date getDateCreated() {
+        return EF_Created;
+    }
+
+    /**
+     * Whether this username is held by {@code userKey}.
+     */
+    public boolean isHeldBy(Key<UserProfile> userKey) {
+        return EF_User != null && EF_User.equals(userKey);
+    }
+
+    public static Key<Username> createKey(String username) {
+        return Key.create(Username.class, normalize(username));
+    }
+
+    /**
+     * Usernames differing only in case are the same username.
+     */
+    public static String normalize(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+}
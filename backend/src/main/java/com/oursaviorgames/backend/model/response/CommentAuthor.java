@@ -0,0 +1,24 @@
+package com.oursaviorgames.backend.model.response;
+
+import com.oursaviorgames.backend.memcache.Cachable;
+import com.oursaviorgames.backend.model.datastore.UserProfile;
+
+/**
+ * Projection of a {@link UserProfile} with the fields a {@link CommentResponse} needs
+ * about the comment's author.
+ */
+public final class CommentAuthor implements Cachable {
+
+    public final long   id;
+    public final String name;
+    public final String username;
+    public final String thumbUrl;
+
+    public CommentAuthor(UserProfile profile) {
+        id = profile.getId();
+        name = profile.getName();
+        username = profile.getUsername();
+        thumbUrl = profile.getProfileThumbUrl();
+    }
+
+}
@@ -1,7 +1,12 @@
 package com.oursaviorgames.backend.model.response;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Date;
 
+import com.oursaviorgames.backend.memcache.CacheCodec;
+import com.oursaviorgames.backend.memcache.CacheSerializer;
 import com.oursaviorgames.backend.memcache.Cachable;
 import com.oursaviorgames.backend.model.datastore.Comment;
 import com.oursaviorgames.backend.model.datastore.UserProfile;
@@ -31,15 +36,60 @@ public class CommentResponse implements Cachable {
      * @param flagged  whether this comment is considered a flagged comment or not.
      */
     public CommentResponse(Comment comment, UserProfile author, boolean flagged) {
+        this(comment, new CommentAuthor(author), flagged);
+    }
+
+    /**
+     *
+     * @param comment Comment to create response from.
+     * @param author Projection of the author of the comment.
+     * @param flagged  whether this comment is considered a flagged comment or not.
+     */
+    public CommentResponse(Comment comment, CommentAuthor author, boolean flagged) {
         commentId = comment.getId();
         gameId = comment.getGameKey().getId();
         timestamp = comment.getTimestamp();
         authorId = comment.getAuthorKey().getId();
         message = comment.getMessage();
-        authorName = author.getName();
-        authorUsername = author.getUsername();
-        authorThumbUrl = author.getProfileThumbUrl();
+        authorName = author.name;
+        authorUsername = author.username;
+        authorThumbUrl = author.thumbUrl;
         this.flagged = flagged;
     }
 
+    private CommentResponse(DataInput in) throws IOException {
+        commentId = in.readLong();
+        gameId = in.readLong();
+        timestamp = CacheSerializer.readDate(in);
+        authorId = in.readLong();
+        message = CacheSerializer.readString(in);
+        flagged = in.readBoolean();
+        authorName = CacheSerializer.readString(in);
+        authorUsername = CacheSerializer.readString(in);
+        authorThumbUrl = CacheSerializer.readString(in);
+    }
+
+    /**
+     * Cache format of {@code CommentResponse}.
+     */
+    public static final CacheCodec<CommentResponse> CODEC = new CacheCodec<CommentResponse>() {
+        @Override
+        public void write(DataOutput out, CommentResponse value) throws IOException {
+            out.writeLong(value.commentId);
+            out.writeLong(value.gameId);
+            CacheSerializer.writeDate(out, value.timestamp);
+            out.writeLong(value.authorId);
+            CacheSerializer.writeString(out, value.message);
+            out.writeBoolean(value.flagged);
+            CacheSerializer.writeString(out, value.authorName);
+            CacheSerializer.writeString(out, value.authorUsername);
+            CacheSerializer.writeString(out, value.authorThumbUrl);
+        }
+
+        @Override
+        public CommentResponse read(DataInput in) throws IOException {
+            return new CommentResponse(in);
+        }
+    };
+
 }
@@ -0,0 +1,54 @@
+package com.oursaviorgames.backend.model.response;
+
+import java.util.Collection;
+
+/**
+ * Games that changed since a client's last sync.
+ * <p>
+ * Clients pass {@link #getToken()} to the next sync,
+ * right away if the response is not up to date.
+ */
+public class GameChangesResponse {
+
+    private final Collection<GameResponse> items;
+    private final Collection<Long>         removedGameIds;
+    private final String                   token;
+    private final boolean                  upToDate;
+
+    public GameChangesResponse(Collection<GameResponse> items, Collection<Long> removedGameIds,
+                               String token, boolean upToDate) {
+        this.items = items;
+        this.removedGameIds = removedGameIds;
+        this.token = token;
+        this.upToDate = upToDate;
+    }
+
+    /**
+     * Returns the changed games that are published.
+     */
+    public Collection<GameResponse> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns ids of the changed games that are no longer published.
+     */
+    public Collection<Long> getRemovedGameIds() {
+        return removedGameIds;
+    }
+
+    /**
+     * Returns the token to sync from next.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Returns false if there are more changes after {@link #getToken()}.
+     */
+    public boolean isUpToDate() {
+        return upToDate;
+    }
+
+}
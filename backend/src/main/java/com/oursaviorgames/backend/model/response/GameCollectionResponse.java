@@ -2,8 +2,15 @@ package com.oursaviorgames.backend.model.response;
 
 import com.google.common.collect.ImmutableList;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
+import com.oursaviorgames.backend.memcache.CacheCodec;
+import com.oursaviorgames.backend.memcache.CacheSerializer;
 import com.oursaviorgames.backend.memcache.Cachable;
 
 /**
@@ -87,4 +94,28 @@ public class GameCollectionResponse implements Cachable {
 		}
 	}
 
+	/**
+	 * Cache format of {@code GameCollectionResponse}.
+	 */
+	public static final CacheCodec<GameCollectionResponse> CODEC = new CacheCodec<GameCollectionResponse>() {
+		@Override
+		public void write(DataOutput out, GameCollectionResponse value) throws IOException {
+			out.writeInt(value.items.size());
+			for (GameResponse item : value.items) {
+				GameResponse.CODEC.write(out, item);
+			}
+			CacheSerializer.writeString(out, value.cursorString);
+		}
+
+		@Override
+		public GameCollectionResponse read(DataInput in) throws IOException {
+			final int size = in.readInt();
+			List<GameResponse> items = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				items.add(GameResponse.CODEC.read(in));
+			}
+			return builder().setItems(items).setNextPageToken(CacheSerializer.readString(in)).build();
+		}
+	};
+
 }
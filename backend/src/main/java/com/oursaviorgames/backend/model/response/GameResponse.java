@@ -1,7 +1,12 @@
 package com.oursaviorgames.backend.model.response;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Date;
 
+import com.oursaviorgames.backend.memcache.CacheCodec;
+import com.oursaviorgames.backend.memcache.CacheSerializer;
 import com.oursaviorgames.backend.memcache.Cachable;
 import com.oursaviorgames.backend.model.datastore.Developer;
 import com.oursaviorgames.backend.model.datastore.Game;
@@ -43,4 +48,43 @@ public final class GameResponse implements Cachable {
         originUrl = game.getOriginUrl();
     }
 
+    private GameResponse(DataInput in) throws IOException {
+        gameId = in.readLong();
+        title = CacheSerializer.readString(in);
+        shortDescription = CacheSerializer.readString(in);
+        developerId = CacheSerializer.readLong(in);
+        developerName = CacheSerializer.readString(in);
+        version = in.readInt();
+        hotScore = in.readLong();
+        playCount = in.readInt();
+        datePublished = CacheSerializer.readDate(in);
+        isPlayableOffline = in.readBoolean();
+        originUrl = CacheSerializer.readString(in);
+    }
+
+    /**
+     * Cache format of {@code GameResponse}.
+     */
+    public static final CacheCodec<GameResponse> CODEC = new CacheCodec<GameResponse>() {
+        @Override
+        public void write(DataOutput out, GameResponse value) throws IOException {
+            out.writeLong(value.gameId);
+            CacheSerializer.writeString(out, value.title);
+            CacheSerializer.writeString(out, value.shortDescription);
+            CacheSerializer.writeLong(out, value.developerId);
+            CacheSerializer.writeString(out, value.developerName);
+            out.writeInt(value.version);
+            out.writeLong(value.hotScore);
+            out.writeInt(value.playCount);
+            CacheSerializer.writeDate(out, value.datePublished);
+            out.writeBoolean(value.isPlayableOffline);
+            CacheSerializer.writeString(out, value.originUrl);
+        }
+
+        @Override
+        public GameResponse read(DataInput in) throws IOException {
+            return new GameResponse(in);
+        }
+    };
+
 }
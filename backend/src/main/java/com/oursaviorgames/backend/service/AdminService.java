@@ -0,0 +1,107 @@
+package com.oursaviorgames.backend.service;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.common.collect.ImmutableSet;
+import com.googlecode.objectify.Key;
+
+import java.util.List;
+import java.util.Set;
+
+import com.oursaviorgames.backend.CacheNameSpace;
+import com.oursaviorgames.backend.model.datastore.Admin;
+
+import static com.oursaviorgames.backend.service.OfyService.ofy;
+
+/**
+ * Registry of admin users.
+ * <p>
+ * Admin entities should only be changed through this service,
+ * so that the cached set of admins is invalidated.
+ */
+public interface AdminService {
+
+    /**
+     * Factory for {@link AdminService}.
+     */
+    public static class AdminServiceFactory {
+
+        /**
+         * Returns a new instance of {@link AdminService} implementation.
+         */
+        public static AdminService createInstance() {
+            return new AdminServiceImpl();
+        }
+
+    }
+
+    /**
+     * Whether user with {@code userId} is an admin.
+     * @param userId Google account user id.
+     */
+    public boolean isAdmin(String userId);
+
+    /**
+     * Saves {@code admin}.
+     */
+    public void addAdmin(Admin admin);
+
+    /**
+     * Deletes admin with {@code userId}.
+     * @param userId Google account user id.
+     */
+    public void removeAdmin(String userId);
+
+    /**
+     * {@link AdminService} implementation.
+     */
+    static class AdminServiceImpl extends CachedService implements AdminService {
+
+        private static final String ADMIN_IDS_CACHE_KEY = "admin_ids";
+
+        /**
+         * How long the set of admins is cached, in seconds.
+         * Bounds how long a rebuild that raced a change can serve stale admins.
+         */
+        private static final int ADMIN_IDS_EXPIRATION = 10 * 60;
+
+        public AdminServiceImpl() {
+            super(CacheNameSpace.ADMIN_SERVICE_NAMESPACE);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean isAdmin(String userId) {
+            Set<String> adminIds = (Set<String>) getCached(ADMIN_IDS_CACHE_KEY);
+            if (adminIds == null) {
+                // Loads by key, so that removed admins whose index rows are stale are skipped.
+                List<Key<Admin>> adminKeys = ofy().load().type(Admin.class).keys().list();
+                ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+                for (Admin admin : ofy().load().keys(adminKeys).values()) {
+                    builder.add(admin.getUserId());
+                }
+                adminIds = builder.build();
+                putCached(ADMIN_IDS_CACHE_KEY, adminIds, Expiration.byDeltaSeconds(ADMIN_IDS_EXPIRATION));
+            }
+            return adminIds.contains(userId);
+        }
+
+        @Override
+        public void addAdmin(Admin admin) {
+            ofy().save().entity(admin).now();
+            invalidate();
+        }
+
+        @Override
+        public void removeAdmin(String userId) {
+            ofy().delete().type(Admin.class).id(userId).now();
+            invalidate();
+        }
+
+        private void invalidate() {
+            getMemcache().delete(ADMIN_IDS_CACHE_KEY);
+            invalidateLocalCaches();
+        }
+
+    }
+
+}
@@ -1,28 +1,67 @@
 package com.oursaviorgames.backend.service;
 
 import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 
 import java.util.logging.Level;
 
+import com.oursaviorgames.backend.memcache.CacheSerializer;
+import com.oursaviorgames.backend.memcache.LocalCache;
+import com.oursaviorgames.backend.stats.InstrumentedMemcache;
+import com.oursaviorgames.backend.utils.DateUtils;
+
 /**
  * A service with a named memcache.
+ * <p>
+ * Values read with {@link #getCached(String)} are also kept in an in-instance
+ * {@link LocalCache}, until {@link #invalidateLocalCaches()} is called on any instance.
+ * <p>
+ * Values are put into memcache encoded by the service's {@link CacheSerializer}.
+ * Values read from or written to {@link #getMemcache()} directly
+ * have to go through {@link #decode(Object)} and {@link #encode(Object)}.
  */
 abstract class CachedService {
 
+    /**
+     * Memcache key of the version counter of the local caches of this namespace.
+     */
+    private static final String LOCAL_CACHE_VERSION_KEY = "local_cache|version";
+
     /**
      * MemcacheService.
      */
     private MemcacheService memcache;
 
     /**
-     * Initializes the MemcacheService.
+     * In-instance cache of this namespace.
+     */
+    private LocalCache localCache;
+
+    /**
+     * Encoder of the cached values.
+     */
+    private final CacheSerializer serializer;
+
+    /**
+     * Initializes the MemcacheService, caching values with Java serialization.
      * @param cacheNameSpace Namespace of the memcache.
      */
     public CachedService(String cacheNameSpace) {
-        memcache = MemcacheServiceFactory.getMemcacheService(cacheNameSpace);
+        this(cacheNameSpace, CacheSerializer.builder().build());
+    }
+
+    /**
+     * Initializes the MemcacheService.
+     * @param cacheNameSpace Namespace of the memcache.
+     * @param serializer Encoder of the cached values.
+     */
+    public CachedService(String cacheNameSpace, CacheSerializer serializer) {
+        memcache = InstrumentedMemcache.wrap(MemcacheServiceFactory.getMemcacheService(cacheNameSpace));
         memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+        localCache = LocalCache.getInstance(cacheNameSpace);
+        this.serializer = serializer;
     }
 
     /**
@@ -33,4 +72,110 @@ abstract class CachedService {
         return memcache;
     }
 
+    /**
+     * Returns {@code value} as it should be put into memcache.
+     */
+    protected Object encode(Object value) {
+        return serializer.encode(value);
+    }
+
+    /**
+     * Returns the value of {@code cached}, as read from memcache.
+     * @return Value, or null if {@code cached} can't be decoded.
+     */
+    protected Object decode(Object cached) {
+        return serializer.decode(cached);
+    }
+
+    /**
+     * Returns the current value of the version counter stored under {@code versionKey}.
+     * <p>
+     * A missing counter is initialized with the current time, so that it is always
+     * greater than any version handed out before the counter was evicted.
+     * @param versionKey Memcache key of the version counter.
+     * @return Current version, or 0 if memcache is unavailable.
+     */
+    protected long getCacheVersion(String versionKey) {
+        Long version = (Long) memcache.get(versionKey);
+        if (version == null) {
+            version = memcache.increment(versionKey, 0l, DateUtils.getTimeNow());
+        }
+        return (version == null) ? 0l : version;
+    }
+
+    /**
+     * Increments the version counter stored under {@code versionKey},
+     * making everything cached with a previous version stale.
+     * @param versionKey Memcache key of the version counter.
+     */
+    protected void bumpCacheVersion(String versionKey) {
+        memcache.increment(versionKey, 1l, DateUtils.getTimeNow());
+    }
+
+    /**
+     * Returns value of {@code key} from the local cache, or from memcache
+     * if it is not cached locally.
+     * <p>
+     * Only use for values that change rarely, and call {@link #invalidateLocalCaches()}
+     * whenever they do. Returned values must not be modified.
+     * @param key Memcache key.
+     * @return Cached value or null.
+     */
+    protected Object getCached(String key) {
+        final long version = getLocalCacheVersion();
+        Object value = localCache.get(key, version);
+        if (value == null) {
+            value = decode(memcache.get(key));
+            if (value != null) {
+                localCache.put(key, value, version);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Puts {@code value} in memcache and in the local cache.
+     * @param key Memcache key.
+     * @param value Value to cache.
+     * @param expires Memcache expiration, or null for no expiration.
+     */
+    protected void putCached(String key, Object value, Expiration expires) {
+        final long version = getLocalCacheVersion();
+        memcache.put(key, encode(value), expires);
+        localCache.put(key, value, version);
+    }
+
+    /**
+     * Puts {@code value} in memcache only if {@code key} is not there yet,
+     * and in the local cache either way.
+     * @param key Memcache key.
+     * @param value Value to cache.
+     * @param expires Memcache expiration, or null for no expiration.
+     * @return Whether {@code value} was put in memcache.
+     */
+    protected boolean addCached(String key, Object value, Expiration expires) {
+        final long version = getLocalCacheVersion();
+        final boolean added = memcache.put(key, encode(value), expires,
+                MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        localCache.put(key, value, version);
+        return added;
+    }
+
+    /**
+     * Drops values cached by {@link #getCached(String)} on all instances.
+     * <p>
+     * Other instances notice within a few seconds.
+     */
+    protected void invalidateLocalCaches() {
+        bumpCacheVersion(LOCAL_CACHE_VERSION_KEY);
+        localCache.setVersion(getCacheVersion(LOCAL_CACHE_VERSION_KEY));
+    }
+
+    private long getLocalCacheVersion() {
+        if (localCache.isVersionCheckDue()) {
+            localCache.setVersion(getCacheVersion(LOCAL_CACHE_VERSION_KEY));
+        }
+        return localCache.getVersion();
+    }
+
 }
@@ -4,22 +4,37 @@ import com.google.api.server.spi.response.ConflictException;
 import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.appengine.api.datastore.ReadPolicy;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Predicate;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.oursaviorgames.backend.CacheNameSpace;
 import com.oursaviorgames.backend.model.datastore.Comment;
+import com.oursaviorgames.backend.model.datastore.CommentFlag;
 import com.oursaviorgames.backend.model.datastore.Game;
 import com.oursaviorgames.backend.model.datastore.UserProfile;
+import com.oursaviorgames.backend.model.response.CommentAuthor;
 import com.oursaviorgames.backend.model.response.CommentResponse;
 import com.oursaviorgames.backend.spi.TxResult;
 import com.oursaviorgames.backend.utils.DatastoreUtils;
+import com.oursaviorgames.backend.utils.LogUtils;
 
 import static com.oursaviorgames.backend.service.OfyService.ofy;
+import static com.oursaviorgames.backend.utils.LogUtils.LOGW;
 
 /**
  * Comment Service.
@@ -50,7 +65,7 @@ public interface CommentService {
      * Number of items returned depends on the implementation.
      * @param nextPageToken Token for the next page.
      * @param gameKey The key of the game to return comments for.
-     * @return A page of comments.
+     * @return A page of comments, with its version set if it is up to date.
      * @throws NotFoundException Thrown if no such game exists.
      * @throws InvalidPageTokenException Thrown if {@code nextPageToken} is invalid.
      */
@@ -94,17 +109,39 @@ public interface CommentService {
 
     /**
      * Flags a comment as inappropriate.
-     * Does not recache.
+     * The flag is added to the comment's flag count later by {@link #rollUpFlags()}.
      * @param userKey Authenticated user doing the flagging.
      * @param commentKey The comment to flag.
-     * @return true if this set already did not contain this user.
+     * @return true if the user had not already flagged this comment.
      * @throws NotFoundException Thrown if no such comment is found.
      */
     public boolean flagComment(Key<UserProfile> userKey, Key<Comment> commentKey)
     throws NotFoundException;
 
     /**
-     * Exposed for admin-purposes only.
+     * Adds a batch of new flags to the flag counts of their comments.
+     * @return Number of flags processed. Fewer than {@link #FLAG_ROLLUP_BATCH_SIZE}
+     *          if there are no more new flags.
+     */
+    public int rollUpFlags();
+
+    /**
+     * Maximum number of flags processed by {@link #rollUpFlags()}.
+     */
+    public static final int FLAG_ROLLUP_BATCH_SIZE = 500;
+
+    /**
+     * Marks the cached comment pages of every game the user with {@code userKey}
+     * has commented on as stale.
+     * Should be called whenever the user's name, username or profile picture changes,
+     * since these are cached along with their comments.
+     * @param userKey The user whose profile has changed.
+     */
+    public void invalidateUserComments(Key<UserProfile> userKey);
+
+    /**
+     * Marks the cached comment pages of a game as stale.
+     * Pages are rebuilt lazily by the next request reading them.
      * @param gameKey The game to forceRecache the comment pages. for.
      */
     public void forceRecache(Key<Game> gameKey);
@@ -112,12 +149,14 @@ public interface CommentService {
     /**
      * Implementation
      */
-    static class CommentServiceImpl extends PagedCachedService<Comment> implements CommentService {
+    static class CommentServiceImpl extends PagedCachedService<Comment, CommentResponse> implements CommentService {
+
+        private static final String TAG = LogUtils.makeLogTag(CommentServiceImpl.class);
 
         private static final String QUERY_BUNDLE_GAME_KEY = "gameKey";
 
         public CommentServiceImpl() {
-            super(COMMENTS_PER_PAGE, PAGES_TO_CACHE, CACHE_NAMESPACE);
+            super(COMMENTS_PER_PAGE, PAGES_TO_CACHE, CACHE_NAMESPACE, CommentResponse.CODEC);
         }
 
         @Override
@@ -127,38 +166,47 @@ public interface CommentService {
                     .load()
                     .type(Comment.class)
                     .order(DatastoreUtils.descSort(Comment.F_Timestamp))
+                    .order(DatastoreUtils.descSort("__key__"))
                     .filter(Comment.F_Game, queryParams.get(QUERY_BUNDLE_GAME_KEY));
         }
 
+        /**
+         * Comments are ordered by their timestamp, and by their id among equal timestamps.
+         */
+        @Override
+        public Keyset getKeyset(Comment comment) {
+            return new Keyset(comment.getTimestamp().getTime(), comment.getId());
+        }
+
+        @Override
+        public Query<Comment> filterFrom(Query<Comment> query, Keyset after) {
+            return query.filter(Comment.F_Timestamp + " <=", new Date(after.sortValue));
+        }
+
+        /**
+         * Comment pages are cached with their authors and flagged state,
+         * so serving a cached page requires no datastore work.
+         */
+        @Override
+        public List<CommentResponse> createPageItems(Collection<Comment> comments) {
+            return createCommentResponses(comments);
+        }
+
         /** {@inheritDoc}. */
         @Override
         public Page<CommentResponse> getComments(String nextPageToken, Key<Game> gameKey)
                 throws NotFoundException, InvalidPageTokenException {
-            if (!DatastoreUtils.doesEntityExist(gameKey)) {
+            // Game entities are cached, so this is served from memcache on the common path.
+            if (ofy().load().key(gameKey).now() == null) {
                 throw new NotFoundException("getComment: no game found with id:" +
                         gameKey.getId());
             }
             // Gets the result from cache or datastore.
             try {
-                //TODO: comments should be cached with CommentResponse object. This solution needs to change.
-                Page<Comment> commentsPage = getPage(
+                return getPage(
                         getParentCacheKey(gameKey.getId()),
                         nextPageToken,
                         getQueryParams(gameKey));
-
-                List<CommentResponse> responseList = new ArrayList<>(commentsPage.getItems().size());
-                for (Comment comment : commentsPage.getItems()) {
-                    UserProfile profile = ofy().load().key(comment.getAuthorKey()).now();
-                    boolean flagged = isCommentFlagged(comment.getFlagInappropriateCount());
-                    CommentResponse response = new CommentResponse(comment, profile, flagged);
-                    responseList.add(response);
-                }
-
-                Page<CommentResponse> responsePage = new Page<>();
-                responsePage.setItems(responseList);
-                responsePage.setToken(commentsPage.getToken());
-
-                return responsePage;
             } catch (IllegalArgumentException e) {
                 throw new InvalidPageTokenException("Next page token: " + nextPageToken + " is invalid");
             }
@@ -174,21 +222,23 @@ public interface CommentService {
             }
             Comment comment = new Comment(userKey, gameKey, message);
             ofy().save().entity(comment).now();
-            // forceRecache the pages for this game.
-            forceRecache(gameKey);
 
             UserProfile author = ofy().load().key(userKey).now();
             if (author == null) throw new IllegalStateException("Null user key " + userKey);
-            return new CommentResponse(comment, author, false); // Comment not flagged by default.
+            CommentResponse response = new CommentResponse(comment, author, false); // Comment not flagged by default.
+            if (!prependToPages(getParentCacheKey(gameKey.getId()), response)) {
+                recacheLater(gameKey);
+            }
+            return response;
         }
 
         /** {@inheritDoc} */
         @Override
         public void editComment(final Key<UserProfile> userKey, final Key<Comment> commentKey, final String newMessage)
                 throws NotFoundException, ForbiddenException {
-            TxResult<Key<Game>> txResult = ofy().transact(new Work<TxResult<Key<Game>>>() {
+            TxResult<Comment> txResult = ofy().transact(new Work<TxResult<Comment>>() {
                 @Override
-                public TxResult<Key<Game>> run() {
+                public TxResult<Comment> run() {
                     Comment comment = ofy().load().key(commentKey).now();
                     if (comment == null) {
                         return new TxResult<>(
@@ -201,13 +251,18 @@ public interface CommentService {
 
                     comment.setMessage(newMessage);
                     ofy().save().entity(comment).now();
-                    return new TxResult<>(comment.getGameKey());
+                    return new TxResult<>(comment);
                 }
             });
             try {
-                Key<Game> gameKey = txResult.getResult();
-                // forceRecache the pages for this game.
-                forceRecache(gameKey);
+                Comment comment = txResult.getResult();
+                // Author is usually cached on this instance already.
+                List<CommentResponse> responses = createCommentResponses(Collections.singletonList(comment));
+                if (responses.isEmpty()
+                        || !replaceInPages(getParentCacheKey(comment.getGameKey().getId()),
+                                hasCommentId(comment.getId()), responses.get(0))) {
+                    recacheLater(comment.getGameKey());
+                }
             } catch (ConflictException e) {
                 // Will not be thrown.
             }
@@ -225,37 +280,148 @@ public interface CommentService {
                 throw new ForbiddenException("User with id:" + userKey.getId() + " not authorized to delete ");
             }
             ofy().delete().entity(comment).now();
-            forceRecache(comment.getGameKey());
+            if (!removeFromPages(getParentCacheKey(comment.getGameKey().getId()), hasCommentId(comment.getId()))) {
+                recacheLater(comment.getGameKey());
+            }
         }
 
         /** {@inheritDoc} */
         @Override
         public boolean flagComment(final Key<UserProfile> userKey, final Key<Comment> commentKey) throws NotFoundException {
-            TxResult<Boolean> txResult = ofy().transact(new Work<TxResult<Boolean>>() {
+            Comment comment = ofy().load().key(commentKey).now();
+            if (comment == null) {
+                throw new NotFoundException("No comment with id(" + commentKey.getId() + ") found.");
+            }
+            if (comment.getInappropriateFlagUserList().contains(userKey)) {
+                return false;
+            }
+            // The flag is its own entity group, so concurrent flags by the same user
+            // are serialized without contending on the comment.
+            final Key<CommentFlag> flagKey = CommentFlag.createKey(commentKey, userKey);
+            return ofy().transact(new Work<Boolean>() {
                 @Override
-                public TxResult<Boolean> run() {
-                    Comment comment = ofy().load().key(commentKey).now();
-                    if (comment == null) {
-                        return new TxResult<>(
-                                new NotFoundException("No comment with id(" + commentKey.getId() + ") found."));
+                public Boolean run() {
+                    if (ofy().load().key(flagKey).now() != null) {
+                        return false;
                     }
-                    boolean success = comment.addUserToFlagInappropriateList(userKey);
-                    if (success) {
+                    ofy().save().entity(new CommentFlag(commentKey, userKey)).now();
+                    return true;
+                }
+            });
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int rollUpFlags() {
+            // Flags are loaded by key, since the query may still return flags that were just counted.
+            List<Key<CommentFlag>> flagKeys = ofy()
+                    .load()
+                    .type(CommentFlag.class)
+                    .filter(CommentFlag.F_Counted, false)
+                    .limit(FLAG_ROLLUP_BATCH_SIZE)
+                    .keys()
+                    .list();
+            if (flagKeys.isEmpty()) {
+                return 0;
+            }
+            Collection<CommentFlag> flags = ofy().load().keys(flagKeys).values();
+
+            // Number of new flags per comment.
+            Map<Long, Integer> flagCounts = new HashMap<>();
+            List<CommentFlag> countedFlags = new ArrayList<>(flags.size());
+            for (CommentFlag flag : flags) {
+                if (flag.isCounted()) {
+                    continue;
+                }
+                Integer count = flagCounts.get(flag.getCommentId());
+                flagCounts.put(flag.getCommentId(), (count == null) ? 1 : count + 1);
+                flag.setCounted();
+                countedFlags.add(flag);
+            }
+            // Flags are marked as counted first, so a failed rollup misses flags rather than counting them twice.
+            ofy().save().entities(countedFlags).now();
+            for (Map.Entry<Long, Integer> flagCount : flagCounts.entrySet()) {
+                addFlagCount(Comment.createKeyFromId(flagCount.getKey()), flagCount.getValue());
+            }
+            return flagKeys.size();
+        }
+
+        /**
+         * Adds {@code count} flags to the comment with {@code commentKey},
+         * updating its cached pages if it becomes flagged.
+         */
+        private void addFlagCount(final Key<Comment> commentKey, final int count) {
+            Comment comment = ofy().transact(new Work<Comment>() {
+                @Override
+                public Comment run() {
+                    Comment comment = ofy().load().key(commentKey).now();
+                    if (comment != null) {
+                        comment.addFlagCount(count);
                         ofy().save().entity(comment).now();
                     }
-                    return new TxResult<>(success);
+                    return comment;
                 }
             });
-            try {
-                return txResult.getResult();
-            } catch (ForbiddenException e) {
-                //TODO: create a more generic transaction result.
-                // Will not be thrown.
-                return false;
-            } catch (ConflictException e) {
-                // Will not be thrown.
-                return false;
+            if (comment == null) {
+                LOGW(TAG, "Null comment entity with id(" + commentKey.getId() + ")");
+                return;
+            }
+            // Flagged state is cached with the comment pages,
+            // so they are only updated when these flags change it.
+            int flagCount = comment.getFlagInappropriateCount();
+            if (isCommentFlagged(flagCount) && !isCommentFlagged(flagCount - count)) {
+                List<CommentResponse> responses = createCommentResponses(Collections.singletonList(comment));
+                if (responses.isEmpty()
+                        || !replaceInPages(getParentCacheKey(comment.getGameKey().getId()),
+                                hasCommentId(comment.getId()), responses.get(0))) {
+                    recacheLater(comment.getGameKey());
+                }
+            }
+        }
+
+        /**
+         * Creates a {@link CommentResponse} for each comment, preserving their order.
+         * Authors of all the comments are loaded with one batch get.
+         * Comments whose author no longer exists are skipped.
+         */
+        private static List<CommentResponse> createCommentResponses(Collection<Comment> comments) {
+            Map<Long, CommentAuthor> authors = loadAuthors(comments);
+            List<CommentResponse> responseList = new ArrayList<>(comments.size());
+            for (Comment comment : comments) {
+                CommentAuthor author = authors.get(comment.getAuthorId());
+                if (author == null) {
+                    LOGW(TAG, "No author found for comment with id:" + comment.getId());
+                    continue;
+                }
+                boolean flagged = isCommentFlagged(comment.getFlagInappropriateCount());
+                responseList.add(new CommentResponse(comment, author, flagged));
+            }
+            return responseList;
+        }
+
+        /**
+         * Returns authors of {@code comments} keyed by user id, with a single batch get.
+         * Authors are not cached in-instance, since the responses end up in
+         * shared memcache pages and must reflect the latest username and picture.
+         */
+        private static Map<Long, CommentAuthor> loadAuthors(Collection<Comment> comments) {
+            Set<Long> authorIds = new HashSet<>(comments.size());
+            for (Comment comment : comments) {
+                authorIds.add(comment.getAuthorId());
+            }
+            List<Key<UserProfile>> keys = new ArrayList<>(authorIds.size());
+            for (Long authorId : authorIds) {
+                keys.add(UserProfile.createKey(authorId));
+            }
+            Map<Long, CommentAuthor> authors = new HashMap<>(keys.size());
+            if (!keys.isEmpty()) {
+                Map<Key<UserProfile>, UserProfile> profiles = ofy().load().keys(keys);
+                for (UserProfile profile : profiles.values()) {
+                    CommentAuthor author = new CommentAuthor(profile);
+                    authors.put(author.id, author);
+                }
             }
+            return authors;
         }
 
         /**
@@ -263,15 +429,50 @@ public interface CommentService {
          * @param flagCount number of current flag counts on a comment.
          * @return true if comment is considered flagged.
          */
-        private boolean isCommentFlagged(int flagCount) {
+        private static boolean isCommentFlagged(int flagCount) {
             return flagCount > 5;
         }
 
+        /** {@inheritDoc} */
+        @Override
+        public void invalidateUserComments(Key<UserProfile> userKey) {
+            // Projection query returning each game the user has commented on once.
+            List<Comment> commentedGames = ofy()
+                    .consistency(ReadPolicy.Consistency.EVENTUAL)
+                    .load()
+                    .type(Comment.class)
+                    .filter(Comment.F_Author, userKey)
+                    .project(Comment.F_Game)
+                    .distinct(true)
+                    .list();
+            for (Comment comment : commentedGames) {
+                forceRecache(comment.getGameKey());
+            }
+        }
+
         /** {@inheritDoc} */
         @Override
         public void forceRecache(Key<Game> gameKey) {
-            recacheAllPages(getParentCacheKey(gameKey.getId()), getQueryParams(gameKey));
+            invalidatePages(getParentCacheKey(gameKey.getId()));
+        }
+
+        /**
+         * Marks the comment pages of a game as stale, and rebuilds
+         * the first page on the task queue rather than in this request.
+         */
+        private void recacheLater(Key<Game> gameKey) {
+            forceRecache(gameKey);
+            QueueFactory.getDefaultQueue().add(
+                    TaskOptions.Builder.withPayload(new RecachePagesTask(gameKey.getId())));
+        }
 
+        private static Predicate<CommentResponse> hasCommentId(final long commentId) {
+            return new Predicate<CommentResponse>() {
+                @Override
+                public boolean apply(CommentResponse comment) {
+                    return comment.commentId == commentId;
+                }
+            };
         }
 
         private static QueryParams getQueryParams(Key<Game> gameKey) {
@@ -284,6 +485,27 @@ public interface CommentService {
             return String.valueOf(gameId);
         }
 
+        /**
+         * Rebuilds the first comment page of a game.
+         */
+        private static class RecachePagesTask implements DeferredTask {
+
+            private final long gameId;
+
+            RecachePagesTask(long gameId) {
+                this.gameId = gameId;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    new CommentServiceImpl().getComments(null, Game.createKeyFromId(gameId));
+                } catch (NotFoundException | InvalidPageTokenException e) {
+                    LOGW(TAG, "Couldn't recache comments of game " + gameId + ": " + e);
+                }
+            }
+        }
+
     }
 
 }
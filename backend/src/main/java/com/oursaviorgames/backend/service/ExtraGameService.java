@@ -1,16 +1,27 @@
 package com.oursaviorgames.backend.service;
 
 import com.google.appengine.api.datastore.ReadPolicy;
-import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.Expiration;
 import com.googlecode.objectify.Key;
-import com.googlecode.objectify.NotFoundException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
 
 import com.oursaviorgames.backend.CacheNameSpace;
-import com.oursaviorgames.backend.datastore.GameDataStore;
+import com.oursaviorgames.backend.memcache.CacheCodec;
+import com.oursaviorgames.backend.memcache.CacheSerializer;
+import com.oursaviorgames.backend.memcache.Cachable;
 import com.oursaviorgames.backend.model.datastore.Game;
 import com.oursaviorgames.backend.model.response.GameResponse;
 
@@ -48,7 +59,7 @@ public interface ExtraGameService {
     /**
      * Returns a random game that is not in exclude.
      * @param exclude Games to exclude, or null to exclude no games.
-     * @return spotlight game or null if there was an error.
+     * @return spotlight game or null if there was an error or all games are excluded.
      */
     public GameResponse getSpotlightGame(List<Long> exclude);
 
@@ -67,101 +78,89 @@ public interface ExtraGameService {
      */
     static class ExtraGameServiceImpl extends CachedService implements ExtraGameService {
 
-        private static final String GAME_LIST_CACHE_KEY = "game_id_list";
+        private static final String GAME_POOL_CACHE_KEY = "game_pool";
 
-        private static final Random sRandomGenerator = ThreadLocalRandom.current();
+        /**
+         * How long the game pool is cached, in seconds.
+         * The pool is also dropped by {@link #forceRecache()}.
+         */
+        private static final int GAME_POOL_EXPIRATION = 60 * 60;
+
+        private static final CacheSerializer SERIALIZER = CacheSerializer.builder()
+                .register(1, GamePool.class, GamePool.CODEC)
+                .build();
 
         public ExtraGameServiceImpl() {
-            super(CACHE_NAMESPACE);
+            super(CACHE_NAMESPACE, SERIALIZER);
         }
 
         @Override
         public GameResponse getRandomGame() {
-            final List<Key<Game>> gameList = getGameList();
-            if (gameList != null && gameList.size() > 0) {
-                final int randIndex = sRandomGenerator.nextInt(gameList.size());
-                try {
-                    return GameDataStore.getGameBean(gameList.get(randIndex));
-                } catch (NotFoundException e) {
-                    //ignore.
-                }
+            final GamePool gamePool = getGamePool();
+            if (gamePool.games.length > 0) {
+                return gamePool.games[ThreadLocalRandom.current().nextInt(gamePool.games.length)];
             }
             return null;
         }
 
-        //TODO: need proper algorithm optimization (do some amortized analysis).
-
         /**
-         * So far implemented with an unanalyzed algorithm,
-         * tries to get a random game for 10 times, and then gives up.
+         * Picks games in random order without repetition, using a partial
+         * Fisher-Yates shuffle that only records the swapped positions,
+         * until it finds a game that is not excluded.
          * @param exclude Games to exclude, can be null.
          * @return
          */
         @Override
         public GameResponse getSpotlightGame(List<Long> exclude) {
-            final List<Key<Game>> gameList = getGameList();
-
-            if (gameList != null && gameList.size() > 0) {
-                final int gameListSize = gameList.size();
-
-                int randIndex = sRandomGenerator.nextInt(gameListSize);
-                long randomGameId = gameList.get(randIndex).getId();
-
-                if (exclude != null) {
-                    int retries = 10;
-                    while (retries > 0 && exclude.contains(randomGameId)) {
-                        randIndex = sRandomGenerator.nextInt(gameListSize);
-                        randomGameId = gameList.get(randIndex).getId();
-                        retries--;
-                    }
+            final GamePool gamePool = getGamePool();
+            final int size = gamePool.gameIds.length;
+            final Set<Long> excludeSet = (exclude == null) ? Collections.<Long>emptySet() : new HashSet<>(exclude);
+            final Random random = ThreadLocalRandom.current();
+            // Positions swapped so far, mapped to the index they hold.
+            final Map<Integer, Integer> swapped = new HashMap<>();
+
+            for (int i = 0; i < size; i++) {
+                final int j = i + random.nextInt(size - i);
+                final Integer atJ = swapped.get(j);
+                final Integer atI = swapped.get(i);
+                final int picked = (atJ == null) ? j : atJ;
+                swapped.put(j, (atI == null) ? i : atI);
+                if (!excludeSet.contains(gamePool.gameIds[picked])) {
+                    return gamePool.games[picked];
                 }
-
-                return GameDataStore.getGameBean(gameList.get(randIndex));
             }
             return null;
         }
 
-        /**
-         * Doesn't force a recache until
-         */
         @Override
         public void forceRecache() {
-            getMemcache().delete(GAME_LIST_CACHE_KEY);
+            getMemcache().delete(GAME_POOL_CACHE_KEY);
+            invalidateLocalCaches();
         }
 
         /**
-         * Returns game list, first from cache,
-         * if cache is empty, data is fetched from datastore
+         * Returns game pool, first from local cache or memcache,
+         * if cache is empty, pool is created from datastore
          * and put into cache.
          */
-        @SuppressWarnings("unchecked")
-        public List<Key<Game>> getGameList() {
-            // Get identifiable.
-            final MemcacheService.IdentifiableValue identifiable = getMemcache().getIdentifiable(GAME_LIST_CACHE_KEY);
-            List<Key<Game>> gameList;
-            if (identifiable == null) {
+        private GamePool getGamePool() {
+            GamePool gamePool = (GamePool) getCached(GAME_POOL_CACHE_KEY);
+            if (gamePool == null) {
                 // Cache is empty,
-                // perform query.
-                gameList = getGameListFromDatastore();
-                // Puts result into memcache.
-                getMemcache().put(
-                        GAME_LIST_CACHE_KEY,
-                        gameList,
-                        null,
-                        MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT
-                );
-            } else {
-                gameList = (List<Key<Game>>) identifiable.getValue();
+                // builds the pool.
+                gamePool = createGamePool();
+                // Puts result into memcache and the local cache.
+                addCached(GAME_POOL_CACHE_KEY, gamePool, Expiration.byDeltaSeconds(GAME_POOL_EXPIRATION));
             }
-            return gameList;
+            return gamePool;
         }
 
         /**
-         * Fetches game list from Datastore.
+         * Creates the game pool from published games.
          * With eventual consistency.
          */
-        public List<Key<Game>> getGameListFromDatastore() {
-            return ofy()
+        private GamePool createGamePool() {
+            List<Key<Game>> gameKeys = ofy()
                     .consistency(ReadPolicy.Consistency.EVENTUAL)
                     .load()
                     .type(Game.class)
@@ -169,6 +168,52 @@ public interface ExtraGameService {
                     .limit(ITEM_LIMIT)
                     .keys()
                     .list();
+            List<Long> gameIds = new ArrayList<>(gameKeys.size());
+            for (Key<Game> gameKey : gameKeys) {
+                gameIds.add(gameKey.getId());
+            }
+            // Loads games and their developers in batches.
+            Collection<GameResponse> games =
+                    GameService.GameServiceFactory.createInstance().getGames(gameIds).getItems();
+            return new GamePool(games);
+        }
+
+        /**
+         * Published games with their responses, indexed alike.
+         */
+        private static class GamePool implements Cachable {
+
+            final long[]         gameIds;
+            final GameResponse[] games;
+
+            GamePool(Collection<GameResponse> games) {
+                this.games = games.toArray(new GameResponse[games.size()]);
+                this.gameIds = new long[this.games.length];
+                for (int i = 0; i < this.games.length; i++) {
+                    this.gameIds[i] = this.games[i].gameId;
+                }
+            }
+
+            static final CacheCodec<GamePool> CODEC = new CacheCodec<GamePool>() {
+                @Override
+                public void write(DataOutput out, GamePool value) throws IOException {
+                    out.writeInt(value.games.length);
+                    for (GameResponse game : value.games) {
+                        GameResponse.CODEC.write(out, game);
+                    }
+                }
+
+                @Override
+                public GamePool read(DataInput in) throws IOException {
+                    final int size = in.readInt();
+                    List<GameResponse> games = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        games.add(GameResponse.CODEC.read(in));
+                    }
+                    return new GamePool(games);
+                }
+            };
+
         }
 
     }
@@ -5,29 +5,39 @@ import com.google.api.server.spi.response.NotFoundException;
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.datastore.ReadPolicy;
-import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.Level;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.oursaviorgames.backend.CacheNameSpace;
+import com.oursaviorgames.backend.memcache.CacheSerializer;
+import com.oursaviorgames.backend.memcache.Cachable;
 import com.oursaviorgames.backend.model.datastore.Developer;
 import com.oursaviorgames.backend.model.datastore.Game;
+import com.oursaviorgames.backend.model.datastore.GameListSnapshot;
+import com.oursaviorgames.backend.model.response.GameChangesResponse;
 import com.oursaviorgames.backend.model.response.GameResponse;
 import com.oursaviorgames.backend.model.response.GameCollectionResponse;
 import com.oursaviorgames.backend.utils.DatastoreUtils;
+import com.oursaviorgames.backend.utils.DateUtils;
 import com.oursaviorgames.backend.utils.LogUtils;
 
 import static com.oursaviorgames.backend.service.OfyService.ofy;
 import static com.oursaviorgames.backend.utils.LogUtils.LOGD;
-import static com.oursaviorgames.backend.utils.LogUtils.LOGE;
+import static com.oursaviorgames.backend.utils.LogUtils.LOGI;
 import static com.oursaviorgames.backend.utils.LogUtils.LOGW;
 
 /**
@@ -57,13 +67,28 @@ public interface GameService {
      */
     public static final String CACHE_NAMESPACE = CacheNameSpace.GAME_SERVICE_NAMESPACE;
 
+    /**
+     * Maximum number of changed games returned by {@link #getGameChanges(String)}.
+     */
+    public static final int MAX_CHANGES = 100;
+
 
     /**
      * Repopulates the {@code GameService} cache,
      * reading from datastore with eventual consistency.
+     * <p>
+     * Creates new ranked snapshots of the game lists,
+     * which are served to requests without a page token from then on.
      */
     public void reCache();
 
+    /**
+     * Re-ranks the game lists, replacing their snapshots only if the
+     * number of games or the order of the top ranked games has changed.
+     * @return Whether any of the game lists has changed.
+     */
+    public boolean refreshRankings();
+
     /**
      * Fetches a limited collection of popular games sorted by their hot-score
      * starting from {@code nextPageToken}.
@@ -84,6 +109,13 @@ public interface GameService {
     public GameCollectionResponse getNewGames(@Nullable String nextPageToken)
             throws InvalidPageTokenException;
 
+    /**
+     * Returns the content version of the page of games sorted by {@code sortOrder}
+     * at {@code nextPageToken}, which changes whenever the page may change.
+     * @param nextPageToken Token for the page, or null for the first page.
+     */
+    public String getGameListVersion(SortOrder sortOrder, @Nullable String nextPageToken);
+
     /**
      * Returns collection containing {@link GameResponse} object for each
      * game specified in gameIds.
@@ -95,6 +127,52 @@ public interface GameService {
      */
     public GameCollectionResponse getGames(List<Long> gameIds);
 
+    /**
+     * Returns games that changed after {@code sinceToken}, in the order they changed.
+     * <p>
+     * Games may be returned again by the next call with the returned token.
+     * @param sinceToken Token returned by the last call, or null for all games.
+     * @throws InvalidPageTokenException if {@code sinceToken} is invalid.
+     */
+    public GameChangesResponse getGameChanges(@Nullable String sinceToken)
+            throws InvalidPageTokenException;
+
+    /**
+     * Re-saves a batch of games saved before change versions,
+     * so that they are returned by {@link #getGameChanges(String)}.
+     * @param cursor Datastore cursor returned by the previous batch, or null to start.
+     * @return Cursor of the next batch, or null if all games have been backfilled.
+     */
+    public String backfillChangeVersions(String cursor);
+
+    /**
+     * Backfills change versions of all games on the task queue, one batch per task.
+     */
+    public static class BackfillChangeVersionsTask implements DeferredTask {
+
+        private final String cursor;
+
+        private BackfillChangeVersionsTask(String cursor) {
+            this.cursor = cursor;
+        }
+
+        /**
+         * Queues backfilling games from {@code cursor}, or from the first game if it is null.
+         */
+        public static void enqueue(String cursor) {
+            QueueFactory.getDefaultQueue().add(
+                    TaskOptions.Builder.withPayload(new BackfillChangeVersionsTask(cursor)));
+        }
+
+        @Override
+        public void run() {
+            String nextCursor = GameServiceFactory.createInstance().backfillChangeVersions(cursor);
+            if (nextCursor != null) {
+                enqueue(nextCursor);
+            }
+        }
+    }
+
     /**
      * Whether game with key {@code gameKey} is published.
      * @param gameKey
@@ -103,6 +181,36 @@ public interface GameService {
      */
     public boolean isPublishedGame(Key<Game> gameKey) throws NotFoundException;
 
+    /**
+     * Returns link of the published game with id {@code gameId}.
+     * <p>
+     * Links are cached until the games are next re-cached,
+     * so newly published games may take until then to show up.
+     * @param gameId Id of the game.
+     * @return {@link GameLink}, or null if no such game is published.
+     */
+    public GameLink getGameLink(long gameId);
+
+    /**
+     * Where a shared game link leads to.
+     */
+    public static class GameLink implements Cachable {
+
+        private final String originUrl;
+
+        GameLink(String originUrl) {
+            this.originUrl = originUrl;
+        }
+
+        /**
+         * Returns url of the game's origin website, or null if it has none.
+         */
+        public String getOriginUrl() {
+            return originUrl;
+        }
+
+    }
+
     /**
      * Game list sort order.
      */
@@ -115,199 +223,558 @@ public interface GameService {
      * Implementation
      */
     //TODO: move class to its own file.
-    static class GameServiceImpl implements GameService {
+    static class GameServiceImpl extends CachedService implements GameService {
 
         private static final String TAG = LogUtils.makeLogTag(GameServiceImpl.class);
 
-        private MemcacheService memCache;
+        /**
+         * Memcache key of the version counter of cached {@link GameResponse}s.
+         */
+        private static final String GAME_VERSION_KEY = "game|version";
+
+        /**
+         * How long superseded snapshots are kept, so that page tokens
+         * handed out before a re-rank stay valid.
+         */
+        private static final long SNAPSHOT_RETENTION = TimeUnit.HOURS.toMillis(3);
+
+        /**
+         * Chunk size of the query ranking games for a snapshot.
+         */
+        private static final int SNAPSHOT_CHUNK_SIZE = 1000;
+
+        /**
+         * Number of top ranked games compared by {@link #refreshRankings()}.
+         */
+        private static final int RANKED_TOP_N = ITEMS_PER_PAGE * 4;
+
+        /**
+         * How long a {@link GameLink} is kept in memcache, in seconds.
+         */
+        private static final int GAME_LINK_EXPIRATION = 24 * 60 * 60;
+
+        /**
+         * How far the returned change version trails the current time,
+         * so that saves still being indexed or made on other instances are not skipped.
+         */
+        private static final long CHANGES_SETTLE_TIME = TimeUnit.MINUTES.toMillis(1);
+
+        /**
+         * Changes token, a change version optionally followed by the id of the last returned game.
+         */
+        private static final String CHANGES_TOKEN_PATTERN = "^[0-9]{1,19}(\\.[0-9]{1,19})?$";
+
+        /**
+         * Number of games checked by a single call to {@link #backfillChangeVersions(String)}.
+         */
+        private static final int BACKFILL_BATCH_SIZE = 100;
+
+        /**
+         * Cache formats of the game responses, pages and snapshots.
+         */
+        private static final CacheSerializer SERIALIZER = CacheSerializer.builder()
+                .register(1, GameResponse.class, GameResponse.CODEC)
+                .register(2, GameCollectionResponse.class, GameCollectionResponse.CODEC)
+                .register(3, long[].class, CacheSerializer.LONG_ARRAY)
+                .build();
+
+        private final MemcacheService memCache;
 
         public GameServiceImpl() {
-            memCache = MemcacheServiceFactory.getMemcacheService(CACHE_NAMESPACE);
-            memCache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+            super(CACHE_NAMESPACE, SERIALIZER);
+            memCache = getMemcache();
         }
 
-        //TODO: abstract out all memcache functions.
-        private static String getCacheKey(GameOrdering ordering, String startCursor) {
-            return ordering.name() + "|" + ((startCursor == null) ? "page1" : startCursor);
+        /**
+         * Returns memcache key of a single {@link GameResponse}.
+         * @param gameId Id of the game.
+         * @param version Current value of {@link #GAME_VERSION_KEY}.
+         */
+        private static String getGameCacheKey(long gameId, long version) {
+            return "game|" + gameId + "|" + version;
         }
 
-        //TODO: abstract out all memcache functions.
-        //TODO: need a way to refresh the cache. should we set expiration?!
-        //TODO: this cache doesn't check if the key is in cache before warming up.
-        private void warmUpCache() {
-            String cursorStr = null;
-            try {
-                for (GameOrdering gameOrdering : GameOrdering.values()) {
-                    // caches 5 pages of results
-                    for (int i = 0; i < 4; i++) {
-                        // Gets the old values.
-                        MemcacheService.IdentifiableValue identifiable =
-                                memCache.getIdentifiable(getCacheKey(gameOrdering, cursorStr));
-
-                        // Creates the new values.
-                        GameCollectionResponse games;
-                        try {
-                            games = fetchGames(gameOrdering, cursorStr);
-                        } catch (NotFoundException e) {
-                            LOGW(TAG, "No published games found");
-                            break;
-                        }
+        /**
+         * Returns memcache key of a {@link GameLink}.
+         * @param gameId Id of the game.
+         * @param version Current value of {@link #GAME_VERSION_KEY}.
+         */
+        private static String getGameLinkCacheKey(long gameId, long version) {
+            return "link|" + gameId + "|" + version;
+        }
 
-                        // Puts the new value in cache.
-                        boolean success;
-                        if (identifiable != null) {
-                            success = memCache.putIfUntouched(getCacheKey(gameOrdering, cursorStr), identifiable, games);
-                        } else {
-                            memCache.put(getCacheKey(gameOrdering, cursorStr), games);
-                            success = true;
-                        }
-                        if (success) {
-                            cursorStr = games.getNextPageToken();
-                            // If there is no next page, break out of the loop.
-                            if (cursorStr == null) {
-                                break;
-                            }
-                        } else {
-                            // abandon warming up.
-                            throw new IllegalStateException("someone else is writing to the cache");
-                        }
-                    }
-                }
-            } catch (IllegalStateException e) {
-                LOGE(TAG, "someone else is writing to cache");
+        /**
+         * Returns memcache key marking a game link as not found or not published.
+         * @param linkCacheKey Key returned by {@link #getGameLinkCacheKey(long, long)}.
+         */
+        private static String getMissingGameLinkCacheKey(String linkCacheKey) {
+            return linkCacheKey + "|missing";
+        }
+
+        /**
+         * Returns memcache key of the current snapshot version of {@code ordering}.
+         */
+        private static String getSnapshotVersionKey(GameOrdering ordering) {
+            return "snapshot|" + ordering.name() + "|current";
+        }
+
+        /**
+         * Returns memcache key of the game ids of a snapshot.
+         */
+        private static String getSnapshotKey(GameOrdering ordering, long version) {
+            return "snapshot|" + ordering.name() + "|" + version;
+        }
+
+        /**
+         * Returns memcache key of a page of a snapshot.
+         * @param gameVersion Current value of {@link #GAME_VERSION_KEY}, since pages
+         *                    carry play counts that change without changing the snapshot.
+         */
+        private static String getPageKey(GameOrdering ordering, long version, long gameVersion, int page) {
+            return ordering.name() + "|" + version + "|" + gameVersion + "|page" + page;
+        }
+
+        /**
+         * Ranks all published games by {@code ordering} and saves the ranking
+         * as a new snapshot, which becomes the current snapshot.
+         * <p>
+         * Snapshots superseded for longer than {@link #SNAPSHOT_RETENTION} are deleted.
+         * @return The new snapshot.
+         */
+        private GameListSnapshot createSnapshot(GameOrdering ordering) {
+            return saveSnapshot(ordering, rankGames(ordering));
+        }
+
+        /**
+         * Returns ids of all published games ranked by {@code ordering}.
+         */
+        private long[] rankGames(GameOrdering ordering) {
+            List<Key<Game>> gameKeys = ofy().consistency(ReadPolicy.Consistency.EVENTUAL).load()
+                    .type(Game.class).order(ordering.getSortOrder())
+                    .filter(Game.F_IsPublished, true).chunk(SNAPSHOT_CHUNK_SIZE).keys().list();
+            long[] gameIds = new long[gameKeys.size()];
+            for (int i = 0; i < gameIds.length; i++) {
+                gameIds[i] = gameKeys.get(i).getId();
             }
+            return gameIds;
         }
 
         /**
-         * Fetches collection of games from the datastore with strong consistency ordered by ordering.
-         *
-         * @param ordering sort order
-         * @param startCursor start point of the cursor.
-         * @return Collection of {@code GameBean}s or null if result set is empty
-         * or if an error occurred during the datastore fetch.
-         * or if an error occurred during the datastore fetch.
+         * Saves {@code gameIds} as the new current snapshot of {@code ordering}.
          */
-        private GameCollectionResponse fetchGames(GameOrdering ordering, String startCursor)
-                throws NotFoundException{
-            //TODO: abstract out , datastore fetch codes.
-            List<Game> gameList = new ArrayList<Game>(ITEMS_PER_PAGE);
-            List<Key<Developer>> devKeyList = new ArrayList<Key<Developer>>(ITEMS_PER_PAGE);
+        private GameListSnapshot saveSnapshot(GameOrdering ordering, long[] gameIds) {
+            // Versions are creation times, kept increasing to never overwrite a snapshot.
+            Long previousVersion = (Long) memCache.get(getSnapshotVersionKey(ordering));
+            final long version = (previousVersion == null)
+                    ? DateUtils.getTimeNow()
+                    : Math.max(DateUtils.getTimeNow(), previousVersion + 1);
+            GameListSnapshot snapshot = new GameListSnapshot(ordering.name(), version, gameIds);
+            ofy().save().entity(snapshot).now();
+            memCache.put(getSnapshotKey(ordering, version), encode(gameIds),
+                    Expiration.byDeltaMillis((int) SNAPSHOT_RETENTION));
+            memCache.put(getSnapshotVersionKey(ordering), version);
+
+            // Deletes expired snapshots, except the one just superseded.
+            List<Key<GameListSnapshot>> expiredKeys = ofy().load().type(GameListSnapshot.class)
+                    .filter(GameListSnapshot.F_Ordering, ordering.name())
+                    .filter(GameListSnapshot.F_Version + " <", version - SNAPSHOT_RETENTION)
+                    .order(DatastoreUtils.descSort(GameListSnapshot.F_Version))
+                    .keys().list();
+            if (previousVersion != null) {
+                expiredKeys.remove(GameListSnapshot.createKey(ordering.name(), previousVersion));
+            }
+            ofy().delete().keys(expiredKeys);
 
-            // Builds query for fetching published games.
-            Query<Game> gameQuery = ofy().consistency(ReadPolicy.Consistency.EVENTUAL).load().
-                    type(Game.class).order(ordering.getSortOrder())
-                    .filter(Game.F_IsPublished, true).chunk(ITEMS_PER_PAGE).limit(ITEMS_PER_PAGE);
+            LOGD(TAG, "Created " + ordering + " snapshot of " + gameIds.length + " games");
+            return snapshot;
+        }
 
-            // Sets start cursor and gets iterator from the query.
-            if (startCursor != null) {
-                gameQuery = gameQuery.startAt(Cursor.fromWebSafeString(startCursor));
+        /**
+         * Returns version of the current snapshot of {@code ordering},
+         * creating one if none exists.
+         */
+        private long getCurrentSnapshotVersion(GameOrdering ordering) {
+            Long version = (Long) getCached(getSnapshotVersionKey(ordering));
+            if (version == null) {
+                GameListSnapshot snapshot = ofy().load().type(GameListSnapshot.class)
+                        .filter(GameListSnapshot.F_Ordering, ordering.name())
+                        .order(DatastoreUtils.descSort(GameListSnapshot.F_Version))
+                        .first().now();
+                if (snapshot == null) {
+                    snapshot = createSnapshot(ordering);
+                } else {
+                    // Doesn't overwrite a newer version set by reCache().
+                    memCache.put(getSnapshotVersionKey(ordering), snapshot.getVersion(), null,
+                            MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+                }
+                version = snapshot.getVersion();
             }
-            QueryResultIterator<Game> gameIterator = gameQuery.iterator();
+            return version;
+        }
 
-            // Iterates over the results from the query.
-            // stores projection of games and developer keys.
-            int count = ITEMS_PER_PAGE;
-            while ((count > 1) && gameIterator.hasNext()) {
-                Game game = gameIterator.next();
-                gameList.add(game);
-                devKeyList.add(game.getDeveloperKey());
-                count--;
+        /**
+         * Returns game ids of a snapshot in ranked order,
+         * or null if the snapshot doesn't exist.
+         */
+        private long[] getSnapshotGameIds(GameOrdering ordering, long version) {
+            long[] gameIds = (long[]) getCached(getSnapshotKey(ordering, version));
+            if (gameIds == null) {
+                GameListSnapshot snapshot =
+                        ofy().load().key(GameListSnapshot.createKey(ordering.name(), version)).now();
+                if (snapshot == null) {
+                    return null;
+                }
+                gameIds = snapshot.getGameIds();
+                putCached(getSnapshotKey(ordering, version), gameIds,
+                        Expiration.byDeltaMillis((int) SNAPSHOT_RETENTION));
             }
+            return gameIds;
+        }
 
-            if (gameList.size() == 0) {
-                throw new NotFoundException("No published games found");
+        /**
+         * Returns a page of games ranked by {@code ordering}.
+         * <p>
+         * Page tokens are of the form {@code version:page}, and keep pointing to the
+         * same snapshot while newer snapshots are created. Pages of an expired snapshot
+         * are served from the current snapshot instead.
+         * @param ordering sort order.
+         * @param pageToken page token or null for the first page.
+         * @throws InvalidPageTokenException if {@code pageToken} is invalid.
+         */
+        private GameCollectionResponse getGameList(GameOrdering ordering, String pageToken)
+                throws InvalidPageTokenException {
+            long version;
+            int page;
+            if (pageToken == null) {
+                version = getCurrentSnapshotVersion(ordering);
+                page = 0;
+            } else {
+                String[] parts = pageToken.split(":");
+                if (parts.length != 2) {
+                    throw new InvalidPageTokenException("Invalid page token: " + pageToken);
+                }
+                try {
+                    version = Long.parseLong(parts[0]);
+                    page = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    throw new InvalidPageTokenException("Invalid page token: " + pageToken, e);
+                }
+                if (page < 0) {
+                    throw new InvalidPageTokenException("Invalid page token: " + pageToken);
+                }
             }
 
-            // Retrieve Developers from the database.
-            Map<Key<Developer>, Developer> developers = ofy().load().keys(devKeyList);
+            final long gameVersion = getCacheVersion(GAME_VERSION_KEY);
+            GameCollectionResponse response =
+                    (GameCollectionResponse) getCached(getPageKey(ordering, version, gameVersion, page));
+            if (response != null) {
+                return response;
+            }
 
-            // Creates result collection.
-            Collection<GameResponse> resultList = new ArrayList<>(gameList.size());
-            for (Game game : gameList) {
-                resultList.add(new GameResponse(game, developers.get(game.getDeveloperKey())));
+            long[] gameIds = getSnapshotGameIds(ordering, version);
+            if (gameIds == null) {
+                LOGW(TAG, ordering + " snapshot " + version + " not found, using current snapshot");
+                version = getCurrentSnapshotVersion(ordering);
+                gameIds = getSnapshotGameIds(ordering, version);
+                if (gameIds == null) {
+                    gameIds = new long[0];
+                }
             }
 
-            // Creates response.
-            // Sets the next page token.
-            String nextPageToken = null;
-            if (gameIterator.hasNext()) {
-                nextPageToken = gameIterator.getCursor().toWebSafeString();
+            final int from = page * ITEMS_PER_PAGE;
+            if (from > 0 && from >= gameIds.length) {
+                throw new InvalidPageTokenException("Page token beyond last page: " + pageToken);
+            }
+            final int to = Math.min(from + ITEMS_PER_PAGE, gameIds.length);
+            List<Long> pageIds = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                pageIds.add(gameIds[i]);
             }
 
-            return GameCollectionResponse.builder().setItems(resultList)
+            String nextPageToken = (to < gameIds.length) ? version + ":" + (page + 1) : null;
+            response = GameCollectionResponse.builder()
+                    .setItems(getGames(pageIds).getItems())
                     .setNextPageToken(nextPageToken).build();
+            putCached(getPageKey(ordering, version, gameVersion, page), response,
+                    Expiration.byDeltaMillis((int) SNAPSHOT_RETENTION));
+            return response;
         }
 
-        @SuppressWarnings("unchecked cast")
-        private GameCollectionResponse fetchFromCache(GameOrdering ordering,
-                                                      String startCursorStr) {
-
-            GameCollectionResponse response;
-
-            // Gets game list from cache.
-            response = (GameCollectionResponse) memCache.get(getCacheKey(ordering, startCursorStr));
-
-            // Checks if data is in cache.
-            if (response == null) {
-                // Checks if cache is warmed up.
-                if (startCursorStr == null) {
-                    warmUpCache();
-                    response = (GameCollectionResponse) memCache.get(getCacheKey(ordering, null));
-                } else {
-                    try {
-                        response = fetchGames(ordering, startCursorStr);
-                        memCache.put(getCacheKey(ordering, startCursorStr), response);
-                    } catch (NotFoundException e) {
-                        LOGE(TAG, "No games found at supplied cursor: " + startCursorStr);
-                    }
+        /**
+         * Whether the first {@link #RANKED_TOP_N} games or the number of games
+         * differ between rankings {@code current} and {@code updated}.
+         */
+        private static boolean isRankingChanged(long[] current, long[] updated) {
+            if (current == null || current.length != updated.length) {
+                return true;
+            }
+            for (int i = 0; i < Math.min(RANKED_TOP_N, updated.length); i++) {
+                if (current[i] != updated[i]) {
+                    return true;
                 }
             }
+            return false;
+        }
 
-            // return collection response.
-            return response;
+        @Override
+        public boolean refreshRankings() {
+            // Game responses carry play counts, which change on every run.
+            bumpCacheVersion(GAME_VERSION_KEY);
+            boolean changed = false;
+            for (GameOrdering ordering : GameOrdering.values()) {
+                long[] gameIds = rankGames(ordering);
+                long[] current = getSnapshotGameIds(ordering, getCurrentSnapshotVersion(ordering));
+                if (isRankingChanged(current, gameIds)) {
+                    saveSnapshot(ordering, gameIds);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                invalidateLocalCaches();
+            }
+            return changed;
         }
 
         @Override
         public void reCache() {
-            warmUpCache();
+            // Invalidates individually cached games, since their scores
+            // and play counts change along with the lists.
+            bumpCacheVersion(GAME_VERSION_KEY);
+            for (GameOrdering ordering : GameOrdering.values()) {
+                createSnapshot(ordering);
+            }
+            // Drops the previous snapshot versions cached on each instance.
+            invalidateLocalCaches();
+        }
+
+        @Override
+        public GameCollectionResponse getPopularGames(@javax.annotation.Nullable String nextPageToken)
+                throws InvalidPageTokenException {
+            return getGameList(GameOrdering.HOT_SCORE, nextPageToken);
         }
 
         @Override
-        public GameCollectionResponse getPopularGames(@javax.annotation.Nullable String nextPageToken) {
-            return fetchFromCache(GameOrdering.HOT_SCORE, nextPageToken);
+        public GameCollectionResponse getNewGames(@javax.annotation.Nullable String nextPageToken)
+                throws InvalidPageTokenException {
+            return getGameList(GameOrdering.DATE_PUBLISHED, nextPageToken);
         }
 
+        /**
+         * Pages are versioned by their snapshot, and by the version of the cached games.
+         */
         @Override
-        public GameCollectionResponse getNewGames(@javax.annotation.Nullable String nextPageToken) {
-            return fetchFromCache(GameOrdering.DATE_PUBLISHED, nextPageToken);
+        public String getGameListVersion(SortOrder sortOrder, @javax.annotation.Nullable String nextPageToken) {
+            final GameOrdering ordering = (sortOrder == SortOrder.NEW)
+                    ? GameOrdering.DATE_PUBLISHED
+                    : GameOrdering.HOT_SCORE;
+            // The first page is always served from the current snapshot.
+            final String pageToken = (nextPageToken == null)
+                    ? getCurrentSnapshotVersion(ordering) + ":0"
+                    : nextPageToken;
+            return pageToken.replace(':', '.') + "." + getCacheVersion(GAME_VERSION_KEY);
         }
 
         @Override
         public GameCollectionResponse getGames(List<Long> gameIds) {
-            //TODO: performance: is it a good idea to add GameResponse objects to memcache?! How would we deal with cache coherency.
             if (gameIds == null) {
                 return null;
             }
-            List<GameResponse> response = new ArrayList<>(gameIds.size());
             LOGD(TAG, "getGames:: gameIds.size(): " + gameIds.size());
+
+            // Gets the games that are already in cache.
+            final long version = getCacheVersion(GAME_VERSION_KEY);
+            Set<String> cacheKeys = new HashSet<>(gameIds.size());
             for (Long id : gameIds) {
-                try {
-                    //TODO: performance: partition the list and load in chunks.
-                    Game game = ofy().load().key(Game.createKeyFromId(id)).safe();
-                    if (!game.isPublished()) {
-                        // Skip games that are not published.
+                cacheKeys.add(getGameCacheKey(id, version));
+            }
+            Map<String, Object> cached = memCache.getAll(cacheKeys);
+            Map<Long, GameResponse> gameResponses = new HashMap<>(gameIds.size());
+            for (Object value : cached.values()) {
+                GameResponse gameResponse = (GameResponse) decode(value);
+                if (gameResponse != null) {
+                    gameResponses.put(gameResponse.gameId, gameResponse);
+                }
+            }
+
+            // Loads the missing games and their developers in two batches.
+            Set<Key<Game>> missingKeys = new HashSet<>();
+            for (Long id : gameIds) {
+                if (!gameResponses.containsKey(id)) {
+                    missingKeys.add(Game.createKeyFromId(id));
+                }
+            }
+            if (missingKeys.size() > 0) {
+                Map<Key<Game>, Game> games = ofy().load().keys(missingKeys);
+                Set<Key<Developer>> devKeys = new HashSet<>(games.size());
+                for (Game game : games.values()) {
+                    if (game.isPublished()) {
+                        devKeys.add(game.getDeveloperKey());
+                    }
+                }
+                Map<Key<Developer>, Developer> developers = ofy().load().keys(devKeys);
+                Map<String, Object> toCache = new HashMap<>(games.size());
+                for (Game game : games.values()) {
+                    Developer dev = developers.get(game.getDeveloperKey());
+                    // Skips games that are not published.
+                    if (!game.isPublished() || dev == null) {
                         continue;
                     }
-                    Developer dev = ofy().load().key(game.getDeveloperKey()).safe();
                     GameResponse gameResponse = new GameResponse(game, dev);
+                    gameResponses.put(game.getId(), gameResponse);
+                    toCache.put(getGameCacheKey(game.getId(), version), encode(gameResponse));
+                }
+                memCache.putAll(toCache);
+            }
+
+            // Creates the response in the requested order.
+            List<GameResponse> response = new ArrayList<>(gameIds.size());
+            for (Long id : gameIds) {
+                GameResponse gameResponse = gameResponses.get(id);
+                if (gameResponse != null) {
                     response.add(gameResponse);
-                } catch (com.googlecode.objectify.NotFoundException e) {
-                    // do nothing.
                 }
             }
             return GameCollectionResponse.builder().setItems(response).build();
         }
 
+        /**
+         * Games are read fresh from the change version index, as the cached
+         * responses only cover published games.
+         * <p>
+         * Games saved on different instances can share a change version,
+         * so tokens hold the id of the last returned game as well.
+         */
+        @Override
+        public GameChangesResponse getGameChanges(@javax.annotation.Nullable String sinceToken)
+                throws InvalidPageTokenException {
+            LOGD(TAG, "getGameChanges:: sinceToken: " + sinceToken);
+            long sinceVersion = 0l;
+            long sinceGameId = 0l;
+            if (sinceToken != null) {
+                if (!sinceToken.matches(CHANGES_TOKEN_PATTERN)) {
+                    throw new InvalidPageTokenException("Changes token (" + sinceToken + ") is invalid");
+                }
+                final int dot = sinceToken.indexOf('.');
+                try {
+                    sinceVersion = Long.parseLong((dot == -1) ? sinceToken : sinceToken.substring(0, dot));
+                    sinceGameId = (dot == -1) ? 0l : Long.parseLong(sinceToken.substring(dot + 1));
+                } catch (NumberFormatException e) {
+                    throw new InvalidPageTokenException("Changes token (" + sinceToken + ") is invalid");
+                }
+            }
+            final long settledVersion = Game.toChangeVersion(DateUtils.getTimeNow() - CHANGES_SETTLE_TIME);
+
+            // Games sharing the token's version come first, then the games after it.
+            List<Game> games = new ArrayList<>(MAX_CHANGES);
+            if (sinceGameId != 0l) {
+                games.addAll(ofy().consistency(ReadPolicy.Consistency.EVENTUAL).load()
+                        .type(Game.class)
+                        .filter(Game.F_ChangeVersion, sinceVersion)
+                        .filterKey(">", Game.createKeyFromId(sinceGameId))
+                        .limit(MAX_CHANGES)
+                        .list());
+            }
+            if (games.size() < MAX_CHANGES) {
+                games.addAll(ofy().consistency(ReadPolicy.Consistency.EVENTUAL).load()
+                        .type(Game.class)
+                        .filter(Game.F_ChangeVersion + " >", sinceVersion)
+                        .order(Game.F_ChangeVersion)
+                        .order("__key__")
+                        .limit(MAX_CHANGES - games.size())
+                        .list());
+            }
+
+            Set<Key<Developer>> devKeys = new HashSet<>(games.size());
+            for (Game game : games) {
+                if (game.isPublished()) {
+                    devKeys.add(game.getDeveloperKey());
+                }
+            }
+            Map<Key<Developer>, Developer> developers = ofy().load().keys(devKeys);
+            List<GameResponse> items = new ArrayList<>(games.size());
+            List<Long> removedGameIds = new ArrayList<>();
+            for (Game game : games) {
+                Developer dev = developers.get(game.getDeveloperKey());
+                if (game.isPublished() && dev != null) {
+                    items.add(new GameResponse(game, dev));
+                } else {
+                    removedGameIds.add(game.getId());
+                }
+            }
+
+            // Resumes after the last game if there are more changes that have settled,
+            // otherwise from the settled version, so recent changes are returned again.
+            // Settled versions are no longer handed out, so no game can be saved before the token.
+            if (games.size() == MAX_CHANGES) {
+                final Game last = games.get(games.size() - 1);
+                if (last.getChangeVersion() <= settledVersion) {
+                    return new GameChangesResponse(items, removedGameIds,
+                            last.getChangeVersion() + "." + last.getId(), false);
+                }
+            }
+            final String nextToken = (settledVersion > sinceVersion)
+                    ? Long.toString(settledVersion)
+                    : sinceToken;
+            return new GameChangesResponse(items, removedGameIds, nextToken, true);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String backfillChangeVersions(String cursor) {
+            Query<Game> query = ofy().load().type(Game.class).limit(BACKFILL_BATCH_SIZE);
+            if (cursor != null) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            }
+            QueryResultIterator<Key<Game>> iterator = query.keys().iterator();
+            int count = 0;
+            int savedCount = 0;
+            while (iterator.hasNext()) {
+                final Key<Game> gameKey = iterator.next();
+                count++;
+                // Saved in a transaction, so that concurrent play count updates are not overwritten.
+                boolean saved = ofy().transact(new Work<Boolean>() {
+                    @Override
+                    public Boolean run() {
+                        Game game = ofy().load().key(gameKey).now();
+                        if (game == null || game.getChangeVersion() != 0l) {
+                            return false;
+                        }
+                        // The change version is set on save.
+                        ofy().save().entity(game).now();
+                        return true;
+                    }
+                });
+                if (saved) {
+                    savedCount++;
+                }
+            }
+            LOGI(TAG, "Backfilled change versions of " + savedCount + " of " + count + " games");
+            return (count < BACKFILL_BATCH_SIZE) ? null : iterator.getCursor().toWebSafeString();
+        }
+
+        @Override
+        public GameLink getGameLink(long gameId) {
+            final String cacheKey = getGameLinkCacheKey(gameId, getCacheVersion(GAME_VERSION_KEY));
+            GameLink link = (GameLink) getCached(cacheKey);
+            if (link != null) {
+                return link;
+            }
+            // Games that are not found or not published are only cached in memcache,
+            // so that requests for random ids can't evict the local cache.
+            final String missingCacheKey = getMissingGameLinkCacheKey(cacheKey);
+            if (memCache.get(missingCacheKey) != null) {
+                return null;
+            }
+            Game game = ofy().load().key(Game.createKeyFromId(gameId)).now();
+            if (game == null || !game.isPublished()) {
+                memCache.put(missingCacheKey, true, Expiration.byDeltaSeconds(GAME_LINK_EXPIRATION));
+                return null;
+            }
+            link = new GameLink(game.getOriginUrl());
+            putCached(cacheKey, link, Expiration.byDeltaSeconds(GAME_LINK_EXPIRATION));
+            return link;
+        }
+
         @Override
         public boolean isPublishedGame(Key<Game> gameKey) {
             //TODO: implement this function
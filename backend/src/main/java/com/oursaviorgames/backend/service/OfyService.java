@@ -2,12 +2,17 @@ package com.oursaviorgames.backend.service;
 
 import com.oursaviorgames.backend.model.datastore.Admin;
 import com.oursaviorgames.backend.model.datastore.Comment;
+import com.oursaviorgames.backend.model.datastore.CommentFlag;
 import com.oursaviorgames.backend.model.datastore.Developer;
 import com.oursaviorgames.backend.model.datastore.Feedback;
 import com.oursaviorgames.backend.model.datastore.Game;
+import com.oursaviorgames.backend.model.datastore.GameListSnapshot;
+import com.oursaviorgames.backend.model.datastore.PlayCounter;
 import com.oursaviorgames.backend.model.datastore.PlaySnapshot;
 import com.oursaviorgames.backend.model.datastore.PlayToken;
 import com.oursaviorgames.backend.model.datastore.UserProfile;
+import com.oursaviorgames.backend.model.datastore.UserIdentity;
+import com.oursaviorgames.backend.model.datastore.Username;
 
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyFactory;
@@ -29,7 +34,12 @@ public class OfyService {
         factory().register(PlaySnapshot.class);
         factory().register(PlayToken.class);
         factory().register(Comment.class);
+        factory().register(CommentFlag.class);
         factory().register(UserProfile.class);
+        factory().register(GameListSnapshot.class);
+        factory().register(PlayCounter.class);
+        factory().register(Username.class);
+        factory().register(UserIdentity.class);
 	}
 	
 	/**
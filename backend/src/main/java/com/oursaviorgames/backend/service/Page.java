@@ -9,8 +9,9 @@ import com.oursaviorgames.backend.memcache.Cachable;
  */
 public class Page<T> implements Cachable {
 
-    private Collection<T> items;
-    private String        token;
+    private Collection<T>    items;
+    private String           token;
+    private transient String version;
 
     public Page() {
     }
@@ -31,4 +32,19 @@ public class Page<T> implements Cachable {
         return token;
     }
 
+    /**
+     * Sets the content version of this page, as it is served.
+     */
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    /**
+     * Returns the content version of this page,
+     * or null if the page may be stale or was not cached.
+     */
+    public String getVersion() {
+        return version;
+    }
+
 }
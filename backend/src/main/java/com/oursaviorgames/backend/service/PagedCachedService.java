@@ -1,28 +1,68 @@
 package com.oursaviorgames.backend.service;
 
 import com.google.appengine.api.datastore.Cursor;
-import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
 import com.googlecode.objectify.cmd.Query;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import com.oursaviorgames.backend.memcache.CacheCodec;
+import com.oursaviorgames.backend.memcache.CacheSerializer;
+import com.oursaviorgames.backend.memcache.Cachable;
+
 /**
  * A service abstraction that caches its data in pages.
  * This service does not store any state.
+ * <p>
+ * Entities of type {@code E} are queried from the datastore, and pages of
+ * their fully created items of type {@code T} are cached.
+ * <p>
+ * Every cached page is stamped with the generation of its cache prefix.
+ * Invalidating a prefix bumps its generation, which turns all of its pages stale
+ * without removing them. A stale or missing page is rebuilt by exactly one request
+ * holding that page's lease, while concurrent requests serve the stale copy,
+ * or wait briefly for the lease holder if there is no copy to serve.
+ * <p>
+ * Writes can patch the up to date pages in place with compare-and-set
+ * instead of invalidating them.
  */
-//TODO: effed up logic, need to re-written.
-    // token pattern limits to 9 pages to be cached, should handle null token more gracefully.
-abstract class PagedCachedService<T> extends CachedService {
+abstract class PagedCachedService<E, T> extends CachedService {
 
     /**
      * Token pattern for cached pages.
      * Page numbers start with 0.
      */
-    private static final String TOKEN_PATTERN = "^page[0-9]*$";
+    private static final String TOKEN_PATTERN = "^page[0-9]+$";
+
+    /**
+     * Number of seconds a rebuild lease is held before it expires on its own,
+     * in case the lease holder dies before releasing it.
+     */
+    private static final int LEASE_EXPIRATION_SECONDS = 10;
+
+    /**
+     * Number of times a request without a lease polls the cache for the rebuilt page,
+     * and milliseconds it waits between polls.
+     */
+    private static final int  LEASE_WAIT_RETRIES = 4;
+    private static final long LEASE_WAIT_MILLIS  = 50l;
+
+    /**
+     * Patched pages are rebuilt instead once they grow beyond this many pages worth of items.
+     */
+    private static final int MAX_PATCHED_PAGE_FACTOR = 2;
 
     /**
      * Number of items in each page.
@@ -41,21 +81,69 @@ abstract class PagedCachedService<T> extends CachedService {
      * @param cacheNameSpace
      */
     public PagedCachedService(int itemsPerPage, int pagesToCache, String cacheNameSpace) {
-        super(cacheNameSpace);
+        this(itemsPerPage, pagesToCache, cacheNameSpace, null);
+    }
+
+    /**
+     * Constructor.
+     * @param itemsPerPage
+     * @param pagesToCache
+     * @param cacheNameSpace
+     * @param itemCodec Cache format of the items, or null to cache pages with Java serialization.
+     */
+    public PagedCachedService(int itemsPerPage, int pagesToCache, String cacheNameSpace,
+                              CacheCodec<T> itemCodec) {
+        super(cacheNameSpace, createSerializer(itemCodec));
         ITEMS_PER_PAGE = itemsPerPage;
         PAGES_TO_CACHE = pagesToCache;
     }
 
+    @SuppressWarnings("unchecked")
+    private static <T> CacheSerializer createSerializer(CacheCodec<T> itemCodec) {
+        CacheSerializer.Builder builder = CacheSerializer.builder();
+        if (itemCodec != null) {
+            // Type id 1 held datastore cursors instead of keyset tokens.
+            builder.register(2, (Class<PageEntry<T>>) (Class<?>) PageEntry.class, PageEntry.createCodec(itemCodec));
+        }
+        return builder.build();
+    }
+
     /**
      * The query to run when loading data from the datastore.
      * The query's chunk size and limit is set automatically.
      * @return
      */
-    abstract public Query<T> createQueryObject(QueryParams queryParams);
+    abstract public Query<E> createQueryObject(QueryParams queryParams);
+
+    /**
+     * Creates the items of a page from the entities returned by the query,
+     * preserving their order.
+     * Returned items are cached as they are, so they should not require any
+     * further datastore work to be served.
+     * @param entities Entities of a page in query order.
+     * @return Items of the page.
+     */
+    abstract public List<T> createPageItems(Collection<E> entities);
+
+    /**
+     * Returns the position of {@code entity} in the order of {@link #createQueryObject(QueryParams)}.
+     * <p>
+     * The query must be sorted by the keyset's sort value and then by id, both descending.
+     */
+    abstract public Keyset getKeyset(E entity);
+
+    /**
+     * Restricts {@code query} to the entities whose sort value is not after {@code after}'s.
+     * Entities sharing the sort value with {@code after} are skipped by id.
+     */
+    abstract public Query<E> filterFrom(Query<E> query, Keyset after);
 
     /**
      * Returns a page of result from cache if result is cached,
-     * or queries the data without caching from datastore if nextPageToken is a cursor String.
+     * or queries it from the datastore and caches it by its keyset if it is beyond the numbered pages.
+     * <p>
+     * Up to date pages are returned with their content version set,
+     * which changes whenever they are invalidated or patched.
      * @param cacheKeyPrefix A non-null cache-prefix for the page of data to retrieve.
      * @param nextPageToken Token supplied by a previous call to getPage().
      * @return
@@ -65,96 +153,377 @@ abstract class PagedCachedService<T> extends CachedService {
     throws IllegalArgumentException {
         int page = parseToken(nextPageToken);
         if (page != -1) {
-            if (page < PAGES_TO_CACHE) {
-                //TODO: handle multiple requests coming in.
-                if (!getMemcache().contains(getCacheKey(cacheKeyPrefix, page))) {
-                    // If the key is not in memcache, recache all the pages.
-                    recacheAllPages(cacheKeyPrefix, queryParams);
-                }
-                // Returns the result from memcache.
-                return (Page<T>) (getMemcache().get(getCacheKey(cacheKeyPrefix, page)));
-            } else {
-                throw new IllegalArgumentException("Token " + nextPageToken + " is invalid");
-            }
+            return getCachedPage(cacheKeyPrefix, page, queryParams);
+        } else if (nextPageToken.matches(TOKEN_PATTERN)) {
+            throw new IllegalArgumentException("Token " + nextPageToken + " is invalid");
+        } else if (Keyset.parse(nextPageToken) != null) {
+            return getKeysetPage(cacheKeyPrefix, nextPageToken, queryParams);
         } else {
-            // nextPageToken doesn't match pattern,
-            // so it is most likely a cursor position string.
+            // Datastore cursor handed out before keyset tokens.
             return queryWithCursor(nextPageToken, queryParams);
         }
     }
 
     /**
-     * Re-caches all the pages beginning with {@code cacheKeyPrefix}.
+     * Marks all the pages beginning with {@code cacheKeyPrefix} as stale.
+     * <p>
+     * Stale pages keep being served until they are lazily rebuilt,
+     * one page at a time, by the next request that reads them.
      * @param cacheKeyPrefix
      */
-    public final void recacheAllPages(String cacheKeyPrefix, QueryParams queryParams) {
-        String nextPageCursorString = null;
+    public final void invalidatePages(String cacheKeyPrefix) {
+        bumpCacheVersion(getGenerationKey(cacheKeyPrefix));
+    }
+
+    /**
+     * Adds {@code item} to the beginning of the first cached page.
+     * @return false if the pages couldn't be patched and should be invalidated.
+     */
+    protected final boolean prependToPages(String cacheKeyPrefix, final T item) {
+        return patchPages(cacheKeyPrefix, true, false, new PageEdit<T>() {
+            @Override
+            public boolean apply(int page, List<T> items) {
+                if (page != 0) {
+                    return false;
+                }
+                items.add(0, item);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Replaces the first cached item matching {@code predicate} with {@code item}.
+     * @return false if the pages couldn't be patched and should be invalidated.
+     */
+    protected final boolean replaceInPages(String cacheKeyPrefix, final Predicate<T> predicate, final T item) {
+        return patchPages(cacheKeyPrefix, false, true, new PageEdit<T>() {
+            @Override
+            public boolean apply(int page, List<T> items) {
+                int index = Iterables.indexOf(items, predicate);
+                if (index == -1) {
+                    return false;
+                }
+                items.set(index, item);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Removes the first cached item matching {@code predicate}.
+     * @return false if the pages couldn't be patched and should be invalidated.
+     */
+    protected final boolean removeFromPages(String cacheKeyPrefix, final Predicate<T> predicate) {
+        return patchPages(cacheKeyPrefix, true, true, new PageEdit<T>() {
+            @Override
+            public boolean apply(int page, List<T> items) {
+                int index = Iterables.indexOf(items, predicate);
+                if (index == -1) {
+                    return false;
+                }
+                items.remove(index);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Applies {@code edit} to the first up to date cached page it changes,
+     * replacing the page with compare-and-set.
+     * <p>
+     * Page boundaries stay where they are, since they are keysets,
+     * so patched pages grow and shrink instead of shifting items between them.
+     * @param resizes Whether {@code edit} may change the size of a page. Such edits
+     *                fail if they reach a missing or stale page followed by cached ones,
+     *                since rebuilding that page would move its boundary.
+     * @param locates Whether {@code edit} changes an existing item. Such edits fail
+     *                if they change no numbered page and the list goes on past them,
+     *                since the item may be on a cached keyset page.
+     * @return false if the pages couldn't be patched and should be invalidated.
+     */
+    private boolean patchPages(String cacheKeyPrefix, boolean resizes, boolean locates, PageEdit<T> edit) {
+        boolean patched = patchCachedPages(cacheKeyPrefix, resizes, locates, edit);
+        // Bumped after the pages are patched, so the new version is never served with old pages.
+        bumpCacheVersion(getRevisionKey(cacheKeyPrefix));
+        return patched;
+    }
+
+    private boolean patchCachedPages(String cacheKeyPrefix, boolean resizes, boolean locates, PageEdit<T> edit) {
+        final long generation = getCacheVersion(getGenerationKey(cacheKeyPrefix));
+        List<String> cacheKeys = new ArrayList<>(PAGES_TO_CACHE);
         for (int page = 0; page < PAGES_TO_CACHE; page++) {
-            // Creates cache key for this page.
-            String cacheKey = getCacheKey(cacheKeyPrefix, page);
-            // Gets unique from memcache.
-            MemcacheService.IdentifiableValue identifiable =
-                    getMemcache().getIdentifiable(cacheKey);
-            // Queries the datastore for current page.
-            Page<T> resultPage = queryWithCursor(nextPageCursorString, queryParams);
-            nextPageCursorString = resultPage.getToken();
-            // If there is more result to cache and we haven't reached out page cache limit
-            // set the token to the next page.
-            if (nextPageCursorString != null && page < PAGES_TO_CACHE - 1) {
-                resultPage.setToken("page" + String.valueOf(page + 1));
-            }
-            // Puts the result into memcache.
-            boolean cachePutSuccess;
-            if (identifiable != null) {
-                cachePutSuccess = getMemcache ()
-                        .putIfUntouched(cacheKey, identifiable, resultPage);
-            } else {
-                getMemcache().put(cacheKey, resultPage);
-                cachePutSuccess = true;
-            }
-            // If resultPage does not have a nextPageToken,
-            // or if memcache value has changed by another process,
-            // escape.
-            if (nextPageCursorString == null) { // || !cachePutSuccess) { TODO: handle multiple requests writing to cache.
-                break;
+            cacheKeys.add(getCacheKey(cacheKeyPrefix, page));
+        }
+        Map<String, MemcacheService.IdentifiableValue> identifiables = getMemcache().getIdentifiables(cacheKeys);
+
+        boolean gap = false;
+        boolean cachedAfterGap = false;
+        boolean cachedEnd = false;
+        boolean cachedAny = false;
+        for (int page = 0; page < PAGES_TO_CACHE; page++) {
+            final MemcacheService.IdentifiableValue identifiable = identifiables.get(cacheKeys.get(page));
+            final PageEntry<T> entry = (identifiable == null) ? null : decodeEntry(identifiable.getValue());
+            if (entry == null || entry.generation < generation) {
+                // Missing or stale pages are rebuilt from the datastore anyway.
+                gap = true;
+                continue;
+            }
+            cachedAfterGap |= gap;
+            cachedAny = true;
+            cachedEnd |= (entry.nextToken == null);
+            List<T> items = new ArrayList<>(entry.page.getItems());
+            if (!edit.apply(page, items)) {
+                continue;
             }
+            if (resizes && gap) {
+                return false;
+            }
+            if (items.size() > ITEMS_PER_PAGE * MAX_PATCHED_PAGE_FACTOR
+                    || (items.isEmpty() && entry.nextToken != null)) {
+                // Rebuilds the page rather than letting it grow or shrink any further.
+                return false;
+            }
+            Page<T> patched = new Page<>();
+            patched.setItems(items);
+            patched.setToken(entry.page.getToken());
+            return getMemcache().putIfUntouched(cacheKeys.get(page), identifiable,
+                    encode(new PageEntry<>(patched, entry.nextToken, entry.generation)));
         }
+        // Nothing cached had to change, unless the edit belonged to a page in a gap
+        // or to a page past the numbered ones.
+        return !(resizes && cachedAfterGap) && !(locates && cachedAny && !cachedEnd);
     }
 
     /**
-     * Queries the datastore starting at {@code startCursor}.
-     * If there are more items in the query result
-     * @param startCursor The start cursor. Can be null.
-     * @return Page with token set to cursor next page or null if there are no more results
-     *          to be retrieved.
+     * Returns page number {@code page} from cache, rebuilding it if it is missing or stale.
      */
-    private Page<T> queryWithCursor(String startCursor, QueryParams queryParams) throws IllegalArgumentException {
-        List<T> queryResult = new ArrayList<>();
-        Query<T> query = createQueryObject(queryParams).chunk(ITEMS_PER_PAGE + 1).limit(ITEMS_PER_PAGE + 1);
-        if (startCursor != null) {
+    private Page<T> getCachedPage(String cacheKeyPrefix, int page, QueryParams queryParams) {
+        final long generation = getCacheVersion(getGenerationKey(cacheKeyPrefix));
+        // Read before the page, so a page patched since is never served with an older revision.
+        final long revision = getCacheVersion(getRevisionKey(cacheKeyPrefix));
+        PageEntry<T> entry = decodeEntry(getMemcache().get(getCacheKey(cacheKeyPrefix, page)));
+        if (entry != null && entry.generation >= generation) {
+            // Cache hit.
+            return versioned(entry, revision);
+        }
+
+        // Page is missing or stale, only the lease holder rebuilds it.
+        if (acquireLease(cacheKeyPrefix, page)) {
             try {
-                query = query.startAt(Cursor.fromWebSafeString(startCursor));
-            } catch (IllegalArgumentException e) {
-                throw new IllegalArgumentException("Cursor (" + startCursor + ") is not valid");
+                Page<T> loaded = loadPage(cacheKeyPrefix, page, generation, queryParams, true);
+                loaded.setVersion(getVersion(generation, revision));
+                return loaded;
+            } finally {
+                releaseLease(cacheKeyPrefix, page);
             }
         }
-        QueryResultIterator<T> iterator = query.iterator();
-        int count = ITEMS_PER_PAGE;
-        while(count > 0 && iterator.hasNext()) {
-            T entity = iterator.next();
-            queryResult.add(entity);
-            count--;
+
+        // Someone else is rebuilding this page.
+        if (entry != null) {
+            // Serves the stale copy.
+            return entry.page;
+        }
+        for (int i = 0; i < LEASE_WAIT_RETRIES; i++) {
+            try {
+                Thread.sleep(LEASE_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            entry = decodeEntry(getMemcache().get(getCacheKey(cacheKeyPrefix, page)));
+            if (entry != null) {
+                return (entry.generation >= generation) ? versioned(entry, revision) : entry.page;
+            }
+        }
+        // Lease holder is taking too long, queries the datastore without caching.
+        return loadPage(cacheKeyPrefix, page, generation, queryParams, false);
+    }
+
+    /**
+     * Loads page number {@code page} from the datastore.
+     * <p>
+     * Queries start at the end of the closest preceding page that is cached with
+     * {@code generation}, so only the requested page is queried if the preceding
+     * page is up to date.
+     * @param cache Whether pages loaded along the way should be put into cache.
+     */
+    private Page<T> loadPage(String cacheKeyPrefix, int page, long generation,
+                             QueryParams queryParams, boolean cache) {
+        // Finds where to start querying from.
+        int startPage = page;
+        String startToken = null;
+        while (startPage > 0) {
+            PageEntry<T> previous =
+                    decodeEntry(getMemcache().get(getCacheKey(cacheKeyPrefix, startPage - 1)));
+            if (previous != null && previous.generation >= generation) {
+                if (previous.nextToken == null) {
+                    // Preceding page is the last page.
+                    return emptyPage();
+                }
+                startToken = previous.nextToken;
+                break;
+            }
+            startPage--;
+        }
+
+        PageEntry<T> entry = null;
+        for (int p = startPage; p <= page; p++) {
+            entry = queryPageEntry(p, startToken, generation, queryParams);
+            if (cache) {
+                putPageEntry(getCacheKey(cacheKeyPrefix, p), entry);
+            }
+            startToken = entry.nextToken;
+            if (startToken == null && p < page) {
+                // Ran out of results before reaching the requested page.
+                return emptyPage();
+            }
+        }
+        return entry.page;
+    }
+
+    /**
+     * Returns the page after keyset token {@code token} from cache,
+     * querying and caching it if it is missing or stale.
+     */
+    private Page<T> getKeysetPage(String cacheKeyPrefix, String token, QueryParams queryParams) {
+        final long generation = getCacheVersion(getGenerationKey(cacheKeyPrefix));
+        final long revision = getCacheVersion(getRevisionKey(cacheKeyPrefix));
+        final String cacheKey = getKeysetCacheKey(cacheKeyPrefix, token);
+        PageEntry<T> entry = decodeEntry(getMemcache().get(cacheKey));
+        if (entry == null || entry.generation < generation) {
+            entry = queryPageEntry(-1, token, generation, queryParams);
+            putPageEntry(cacheKey, entry);
+        }
+        return versioned(entry, revision);
+    }
+
+    /**
+     * Returns the page of up to date {@code entry}, with its content version set.
+     * @param revision Revision read before {@code entry} was.
+     */
+    private Page<T> versioned(PageEntry<T> entry, long revision) {
+        entry.page.setVersion(getVersion(entry.generation, revision));
+        return entry.page;
+    }
+
+    private static String getVersion(long generation, long revision) {
+        return generation + "." + revision;
+    }
+
+    /**
+     * Queries page number {@code page} starting after keyset token {@code startToken}.
+     * Sets the page's token to the next numbered page's token,
+     * or to the keyset token if the next page is not numbered.
+     * @param page Page number, or -1 for pages beyond the numbered pages.
+     */
+    private PageEntry<T> queryPageEntry(int page, String startToken, long generation, QueryParams queryParams) {
+        Keyset after = (startToken == null) ? null : Keyset.parse(startToken);
+        Query<E> query = createQueryObject(queryParams);
+        if (after != null) {
+            query = filterFrom(query, after);
         }
-        String nextPageToken = null;
-        if (iterator.hasNext()) {
-                nextPageToken = iterator.getCursor().toWebSafeString();
+        Page<T> resultPage = queryPage(query, after);
+        String nextToken = resultPage.getToken();
+        if (nextToken != null && page >= 0 && page < PAGES_TO_CACHE - 1) {
+            resultPage.setToken("page" + String.valueOf(page + 1));
+        }
+        return new PageEntry<>(resultPage, nextToken, generation);
+    }
+
+    /**
+     * Returns the page entry read from memcache, or null if {@code cached} is not one.
+     * Pages were cached as plain {@link Page}s under the same keys before they carried
+     * a generation, and those may still be in memcache.
+     */
+    @SuppressWarnings("unchecked")
+    private PageEntry<T> decodeEntry(Object cached) {
+        final Object value = decode(cached);
+        return (value instanceof PageEntry) ? (PageEntry<T>) value : null;
+    }
+
+    /**
+     * Puts {@code entry} into memcache, unless a page from a newer generation
+     * has been put there since this call began.
+     */
+    private void putPageEntry(String cacheKey, PageEntry<T> entry) {
+        MemcacheService.IdentifiableValue identifiable = getMemcache().getIdentifiable(cacheKey);
+        if (identifiable == null) {
+            getMemcache().put(cacheKey, encode(entry));
+        } else {
+            PageEntry<T> current = decodeEntry(identifiable.getValue());
+            if (current == null || current.generation <= entry.generation) {
+                getMemcache().putIfUntouched(cacheKey, identifiable, encode(entry));
+            }
+        }
+    }
+
+    /**
+     * Tries to acquire the rebuild lease for page number {@code page}.
+     * @return true if the lease was acquired.
+     */
+    private boolean acquireLease(String cacheKeyPrefix, int page) {
+        return getMemcache().put(
+                getLeaseKey(cacheKeyPrefix, page),
+                Boolean.TRUE,
+                Expiration.byDeltaSeconds(LEASE_EXPIRATION_SECONDS),
+                MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+
+    private void releaseLease(String cacheKeyPrefix, int page) {
+        getMemcache().delete(getLeaseKey(cacheKeyPrefix, page));
+    }
+
+    /**
+     * Queries the page after datastore cursor {@code startCursor},
+     * handed out to clients before keyset tokens.
+     * @return Page with token set to the keyset token of the next page.
+     */
+    private Page<T> queryWithCursor(String startCursor, QueryParams queryParams) throws IllegalArgumentException {
+        Query<E> query;
+        try {
+            query = createQueryObject(queryParams).startAt(Cursor.fromWebSafeString(startCursor));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Cursor (" + startCursor + ") is not valid");
+        }
+        return queryPage(query, null);
+    }
+
+    /**
+     * Queries a page of {@code query}, skipping entities up to and including {@code after}.
+     * @param after Keyset of the last item of the previous page. Can be null.
+     * @return Page with token set to the keyset token of the next page,
+     *          or null if there are no more results to be retrieved.
+     */
+    private Page<T> queryPage(Query<E> query, Keyset after) {
+        List<E> queryResult = new ArrayList<>(ITEMS_PER_PAGE);
+        Iterator<E> iterator = query.chunk(ITEMS_PER_PAGE + 1).iterator();
+        boolean hasNext = false;
+        while (iterator.hasNext()) {
+            E entity = iterator.next();
+            if (after != null && !after.isBefore(getKeyset(entity))) {
+                // Ties with the previous page's last item, already returned.
+                continue;
+            }
+            if (queryResult.size() == ITEMS_PER_PAGE) {
+                hasNext = true;
+                break;
+            }
+            queryResult.add(entity);
         }
         Page<T> result = new Page<>();
-        result.setItems(queryResult);
-        result.setToken(nextPageToken);
+        result.setItems(createPageItems(queryResult));
+        if (hasNext) {
+            result.setToken(getKeyset(queryResult.get(queryResult.size() - 1)).toToken());
+        }
         return result;
     }
 
+    private Page<T> emptyPage() {
+        Page<T> page = new Page<>();
+        page.setItems(Collections.<T>emptyList());
+        return page;
+    }
+
     /**
      * Returns cache key based on cachePrefix and result page number.
      * @param cachePrefix
@@ -165,6 +534,25 @@ abstract class PagedCachedService<T> extends CachedService {
         return cachePrefix + "|page" + String.valueOf(page);
     }
 
+    /**
+     * Returns cache key of the page after keyset token {@code token}.
+     */
+    private String getKeysetCacheKey(String cachePrefix, String token) {
+        return cachePrefix + "|after|" + token;
+    }
+
+    private String getLeaseKey(String cachePrefix, int page) {
+        return getCacheKey(cachePrefix, page) + "|lease";
+    }
+
+    private String getGenerationKey(String cachePrefix) {
+        return cachePrefix + "|generation";
+    }
+
+    private String getRevisionKey(String cachePrefix) {
+        return cachePrefix + "|revision";
+    }
+
     /**
      * Returns the page number from token or -1 if token doesn't match the page pattern.
      * <p>
@@ -174,18 +562,129 @@ abstract class PagedCachedService<T> extends CachedService {
      * @param token Token supplied by a previous call to getPage() or null if not available.
      * @return Page number from 0 to PAGES_TO_CACHE, or -1.
      */
-    private int parseToken(String token) {
+    int parseToken(String token) {
         if (token == null) {
             return 0;
         } else if (token.matches(TOKEN_PATTERN)) {
-            int pageNumber = Integer.valueOf(token.substring(4));
-            if (pageNumber < PAGES_TO_CACHE) {
-                return pageNumber;
+            try {
+                int pageNumber = Integer.valueOf(token.substring(4));
+                if (pageNumber < PAGES_TO_CACHE) {
+                    return pageNumber;
+                }
+            } catch (NumberFormatException e) {
+                // Too many digits, invalid token.
             }
         }
         return -1;
     }
 
+    /**
+     * Position of an entity in a query sorted by a sort value and then by id, both descending.
+     * <p>
+     * Unlike datastore cursors, keysets stay valid across changes to the entities before them.
+     */
+    static final class Keyset {
+
+        private static final String TOKEN_PREFIX = "k";
+        private static final String KEYSET_TOKEN_PATTERN = "^k-?[0-9a-z]{1,13}\\.-?[0-9a-z]{1,13}$";
+
+        final long sortValue;
+        final long id;
+
+        Keyset(long sortValue, long id) {
+            this.sortValue = sortValue;
+            this.id = id;
+        }
+
+        /**
+         * Returns whether {@code other} comes after this keyset in query order.
+         */
+        boolean isBefore(Keyset other) {
+            return other.sortValue < sortValue || (other.sortValue == sortValue && other.id < id);
+        }
+
+        String toToken() {
+            return TOKEN_PREFIX + Long.toString(sortValue, 36) + "." + Long.toString(id, 36);
+        }
+
+        /**
+         * Parses a token returned by {@link #toToken()}.
+         * @return null if {@code token} is not a keyset token.
+         */
+        static Keyset parse(String token) {
+            if (!token.matches(KEYSET_TOKEN_PATTERN)) {
+                return null;
+            }
+            final int dot = token.indexOf('.');
+            try {
+                return new Keyset(
+                        Long.parseLong(token.substring(TOKEN_PREFIX.length(), dot), 36),
+                        Long.parseLong(token.substring(dot + 1), 36));
+            } catch (NumberFormatException e) {
+                // Out of range.
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A cached page along with the keyset token of the page right after it,
+     * and the generation it was cached with.
+     */
+    private static final class PageEntry<T> implements Cachable {
+
+        final Page<T> page;
+        final String  nextToken;
+        final long    generation;
+
+        PageEntry(Page<T> page, String nextToken, long generation) {
+            this.page = page;
+            this.nextToken = nextToken;
+            this.generation = generation;
+        }
+
+        static <T> CacheCodec<PageEntry<T>> createCodec(final CacheCodec<T> itemCodec) {
+            return new CacheCodec<PageEntry<T>>() {
+                @Override
+                public void write(DataOutput out, PageEntry<T> value) throws IOException {
+                    Collection<T> items = value.page.getItems();
+                    out.writeInt(items.size());
+                    for (T item : items) {
+                        itemCodec.write(out, item);
+                    }
+                    CacheSerializer.writeString(out, value.page.getToken());
+                    CacheSerializer.writeString(out, value.nextToken);
+                    out.writeLong(value.generation);
+                }
+
+                @Override
+                public PageEntry<T> read(DataInput in) throws IOException {
+                    final int size = in.readInt();
+                    List<T> items = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        items.add(itemCodec.read(in));
+                    }
+                    Page<T> page = new Page<>();
+                    page.setItems(items);
+                    page.setToken(CacheSerializer.readString(in));
+                    return new PageEntry<>(page, CacheSerializer.readString(in), in.readLong());
+                }
+            };
+        }
+    }
+
+    /**
+     * Edit of the items of a cached page.
+     */
+    private interface PageEdit<T> {
+
+        /**
+         * Edits {@code items} of page number {@code page} in place.
+         * @return Whether {@code items} were changed.
+         */
+        boolean apply(int page, List<T> items);
+    }
+
     /**
      * Query parameters passed to {@link PagedCachedService#createQueryObject(com.oursaviorgames.backend.service.PagedCachedService.QueryParams)}
      * during a call to {@link PagedCachedService#getPage(String, String, com.oursaviorgames.backend.service.PagedCachedService.QueryParams)} ()}.
@@ -0,0 +1,393 @@
+package com.oursaviorgames.backend.service;
+
+import com.google.appengine.api.datastore.ReadPolicy;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.oursaviorgames.backend.CacheNameSpace;
+import com.oursaviorgames.backend.model.datastore.Game;
+import com.oursaviorgames.backend.model.datastore.PlayCounter;
+import com.oursaviorgames.backend.model.datastore.PlayToken;
+import com.oursaviorgames.backend.model.datastore.UserProfile;
+import com.oursaviorgames.backend.utils.LogUtils;
+
+import static com.oursaviorgames.backend.service.OfyService.ofy;
+import static com.oursaviorgames.backend.utils.LogUtils.LOGD;
+import static com.oursaviorgames.backend.utils.LogUtils.LOGW;
+
+/**
+ * Counts game plays.
+ * <p>
+ * Plays are counted in sharded memcache counters, which are periodically
+ * flushed into {@link PlayCounter} entities, and from there rolled into
+ * the play stats of each {@link Game}. A sample of the plays is queued
+ * on a pull queue and saved in batches as {@link PlayToken}s.
+ */
+public interface PlayCounterService {
+
+    /**
+     * Factory for {@link PlayCounterService}.
+     */
+    public static class PlayCounterServiceFactory {
+
+        /**
+         * Returns a new instance of {@link PlayCounterService} implementation.
+         */
+        public static PlayCounterService createInstance() {
+            return new PlayCounterServiceImpl();
+        }
+
+    }
+
+    /**
+     * Number of counter shards per game.
+     */
+    public static final int SHARD_COUNT = 4;
+
+    /**
+     * One in every {@code AUDIT_SAMPLE_RATE} plays is kept as a {@link PlayToken}.
+     */
+    public static final int AUDIT_SAMPLE_RATE = 20;
+
+    /**
+     * Name of the pull queue of sampled plays, saved as {@link PlayToken}s
+     * by {@link #saveSampledPlays()}.
+     */
+    public static final String SAMPLED_PLAYS_QUEUE = "play-tokens";
+
+    /**
+     * Counts {@code plays} of user {@code user}.
+     * <p>
+     * Invalid plays are ignored. Sampled plays are queued instead of saved.
+     * @param plays Plays to count.
+     * @param user User who played.
+     * @param remoteAddr IP address of the client.
+     */
+    public void recordPlays(List<PlayToken.PlayTokenForm> plays, Key<UserProfile> user, String remoteAddr);
+
+    /**
+     * Moves plays counted in memcache into {@link PlayCounter} entities.
+     * <p>
+     * Plays are taken out of memcache only once the counters are saved.
+     * Must not run concurrently with itself.
+     */
+    public void flush();
+
+    /**
+     * Returns non-empty {@link PlayCounter}s of games with id in range [{@code fromGameId}, {@code toGameId}).
+     * @param fromGameId Inclusive lower bound, or null for no lower bound.
+     * @param toGameId Exclusive upper bound, or null for no upper bound.
+     */
+    public List<PlayCounter> getPendingCounters(Long fromGameId, Long toGameId);
+
+    /**
+     * Saves a batch of plays queued by {@link #recordPlays(List, Key, String)} as {@link PlayToken}s.
+     * @return Number of drained queue tasks. Fewer than {@link #DRAIN_BATCH_SIZE} if the queue is drained.
+     */
+    public int saveSampledPlays();
+
+    /**
+     * Maximum number of queue tasks drained by {@link #saveSampledPlays()}.
+     */
+    public static final int DRAIN_BATCH_SIZE = 1000;
+
+    /**
+     * {@link PlayCounterService} implementation.
+     */
+    static class PlayCounterServiceImpl extends CachedService implements PlayCounterService {
+
+        private static final String TAG = LogUtils.makeLogTag(PlayCounterServiceImpl.class);
+
+        /**
+         * Number of games flushed with a single batch of memcache and datastore calls.
+         */
+        private static final int FLUSH_BATCH_SIZE = 100;
+
+        /**
+         * How long drained tasks are leased for, in seconds.
+         */
+        private static final int DRAIN_LEASE_SECONDS = 60;
+
+        /**
+         * Number of tokens saved with a single datastore call.
+         */
+        private static final int SAVE_BATCH_SIZE = 500;
+
+        private static final Random sRandom = new Random();
+
+        public PlayCounterServiceImpl() {
+            super(CacheNameSpace.PLAY_TOKENS_NAMESPACE);
+        }
+
+        private static String getPlaysKey(long gameId, int shard) {
+            return "plays|" + gameId + "|" + shard;
+        }
+
+        private static String getDurationKey(long gameId, int shard) {
+            return "duration|" + gameId + "|" + shard;
+        }
+
+        private static void addOffset(Map<String, Long> offsets, String key, long offset) {
+            Long current = offsets.get(key);
+            offsets.put(key, (current == null) ? offset : current + offset);
+        }
+
+        @Override
+        public void recordPlays(List<PlayToken.PlayTokenForm> plays, Key<UserProfile> user, String remoteAddr) {
+            // All plays of a single request go to the same shard.
+            final int shard = sRandom.nextInt(SHARD_COUNT);
+            Map<String, Long> offsets = new HashMap<>();
+            ArrayList<PlayToken.PlayTokenForm> sampledPlays = new ArrayList<>();
+            for (PlayToken.PlayTokenForm play : plays) {
+                if (play == null || !play.isValid()) {
+                    continue;
+                }
+                addOffset(offsets, getPlaysKey(play.getGameId(), shard), 1l);
+                addOffset(offsets, getDurationKey(play.getGameId(), shard), play.getPlayDuration());
+                if (sRandom.nextInt(AUDIT_SAMPLE_RATE) == 0) {
+                    sampledPlays.add(play);
+                }
+            }
+            if (offsets.isEmpty()) {
+                return;
+            }
+            getMemcache().incrementAll(offsets, 0l);
+            if (!sampledPlays.isEmpty()) {
+                QueueFactory.getQueue(SAMPLED_PLAYS_QUEUE).addAsync(TaskOptions.Builder
+                        .withMethod(TaskOptions.Method.PULL)
+                        .payload(new SampledPlays(user, remoteAddr, sampledPlays).toPayload()));
+            }
+        }
+
+        @Override
+        public void flush() {
+            List<Key<Game>> gameKeys = ofy()
+                    .consistency(ReadPolicy.Consistency.EVENTUAL)
+                    .load()
+                    .type(Game.class)
+                    .keys()
+                    .list();
+            for (List<Key<Game>> batch : Lists.partition(gameKeys, FLUSH_BATCH_SIZE)) {
+                flushGames(batch);
+            }
+        }
+
+        private void flushGames(List<Key<Game>> gameKeys) {
+            List<String> keys = new ArrayList<>(gameKeys.size() * SHARD_COUNT * 2);
+            for (Key<Game> gameKey : gameKeys) {
+                for (int shard = 0; shard < SHARD_COUNT; shard++) {
+                    keys.add(getPlaysKey(gameKey.getId(), shard));
+                    keys.add(getDurationKey(gameKey.getId(), shard));
+                }
+            }
+            Map<String, Object> values = getMemcache().getAll(keys);
+            if (values.isEmpty()) {
+                return;
+            }
+
+            // Offsets that take the read values out of memcache.
+            Map<String, Long> offsets = new HashMap<>(values.size());
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                long value = (Long) entry.getValue();
+                if (value > 0) {
+                    offsets.put(entry.getKey(), -value);
+                }
+            }
+            if (offsets.isEmpty()) {
+                return;
+            }
+
+            // Adds the values to the counter entities of each game in a transaction,
+            // and only then takes them out of memcache, keeping plays counted since.
+            Map<String, Long> flushed = new HashMap<>(offsets.size());
+            int counterCount = 0;
+            try {
+                for (Key<Game> gameKey : gameKeys) {
+                    final Map<String, Long> gameOffsets = new HashMap<>();
+                    final Map<Key<PlayCounter>, long[]> deltas = new HashMap<>();
+                    for (int shard = 0; shard < SHARD_COUNT; shard++) {
+                        final String playsKey = getPlaysKey(gameKey.getId(), shard);
+                        final String durationKey = getDurationKey(gameKey.getId(), shard);
+                        Long plays = offsets.get(playsKey);
+                        Long duration = offsets.get(durationKey);
+                        if (plays == null && duration == null) {
+                            continue;
+                        }
+                        if (plays != null) {
+                            gameOffsets.put(playsKey, plays);
+                        }
+                        if (duration != null) {
+                            gameOffsets.put(durationKey, duration);
+                        }
+                        deltas.put(PlayCounter.createKey(gameKey.getId(), shard), new long[]{
+                                (plays == null) ? 0l : -plays, (duration == null) ? 0l : -duration});
+                    }
+                    if (deltas.isEmpty()) {
+                        continue;
+                    }
+                    addToCounters(gameKey.getId(), deltas);
+                    flushed.putAll(gameOffsets);
+                    counterCount += deltas.size();
+                }
+            } finally {
+                if (!flushed.isEmpty()) {
+                    getMemcache().incrementAll(flushed);
+                }
+            }
+            LOGD(TAG, "Flushed " + counterCount + " play counters");
+        }
+
+        /**
+         * Adds {@code deltas}, play count and duration by counter key,
+         * to the counters of a single game in a transaction.
+         */
+        private static void addToCounters(final long gameId, final Map<Key<PlayCounter>, long[]> deltas) {
+            ofy().transact(new VoidWork() {
+                @Override
+                public void vrun() {
+                    Map<Key<PlayCounter>, PlayCounter> counters = ofy().load().keys(deltas.keySet());
+                    List<PlayCounter> updatedCounters = new ArrayList<>(deltas.size());
+                    for (int shard = 0; shard < SHARD_COUNT; shard++) {
+                        Key<PlayCounter> counterKey = PlayCounter.createKey(gameId, shard);
+                        long[] delta = deltas.get(counterKey);
+                        if (delta == null) {
+                            continue;
+                        }
+                        PlayCounter counter = counters.get(counterKey);
+                        if (counter == null) {
+                            counter = new PlayCounter(gameId, shard);
+                        }
+                        counter.add((int) delta[0], delta[1]);
+                        updatedCounters.add(counter);
+                    }
+                    ofy().save().entities(updatedCounters).now();
+                }
+            });
+        }
+
+        /**
+         * Finds the counters with a keys-only query, and loads them by key
+         * so that their values are current.
+         */
+        @Override
+        public List<PlayCounter> getPendingCounters(Long fromGameId, Long toGameId) {
+            Query<PlayCounter> query = ofy().load().type(PlayCounter.class);
+            if (fromGameId != null) {
+                query = query.filter(PlayCounter.F_GameId + " >=", fromGameId);
+            }
+            if (toGameId != null) {
+                query = query.filter(PlayCounter.F_GameId + " <", toGameId);
+            }
+            List<Key<PlayCounter>> counterKeys = query.keys().list();
+            List<PlayCounter> counters = new ArrayList<>(counterKeys.size());
+            for (PlayCounter counter : ofy().load().keys(counterKeys).values()) {
+                if (!counter.isEmpty()) {
+                    counters.add(counter);
+                }
+            }
+            return counters;
+        }
+
+        @Override
+        public int saveSampledPlays() {
+            final Queue queue = QueueFactory.getQueue(SAMPLED_PLAYS_QUEUE);
+            List<TaskHandle> tasks = queue.leaseTasks(DRAIN_LEASE_SECONDS, TimeUnit.SECONDS, DRAIN_BATCH_SIZE);
+            if (tasks.isEmpty()) {
+                return 0;
+            }
+            List<PlayToken> playTokens = new ArrayList<>();
+            for (TaskHandle task : tasks) {
+                SampledPlays sampledPlays = SampledPlays.fromPayload(task.getPayload());
+                if (sampledPlays == null) {
+                    LOGW(TAG, "Dropping unreadable task " + task.getName());
+                    continue;
+                }
+                playTokens.addAll(sampledPlays.toPlayTokens());
+            }
+            List<Result<Map<Key<PlayToken>, PlayToken>>> saves = new ArrayList<>();
+            for (List<PlayToken> batch : Lists.partition(playTokens, SAVE_BATCH_SIZE)) {
+                saves.add(ofy().save().entities(batch));
+            }
+            for (Result<Map<Key<PlayToken>, PlayToken>> save : saves) {
+                save.now();
+            }
+            queue.deleteTask(tasks);
+            LOGD(TAG, "Saved " + playTokens.size() + " sampled plays");
+            return tasks.size();
+        }
+
+    }
+
+    /**
+     * Payload of a {@link #SAMPLED_PLAYS_QUEUE} task.
+     */
+    static class SampledPlays implements Serializable {
+
+        private final Key<UserProfile> user;
+        private final String remoteAddr;
+        private final ArrayList<PlayToken.PlayTokenForm> plays;
+
+        SampledPlays(Key<UserProfile> user, String remoteAddr, ArrayList<PlayToken.PlayTokenForm> plays) {
+            this.user = user;
+            this.remoteAddr = remoteAddr;
+            this.plays = plays;
+        }
+
+        /**
+         * Returns the plays as counted {@link PlayToken}s, since they are already counted in memcache.
+         */
+        List<PlayToken> toPlayTokens() {
+            List<PlayToken> playTokens = new ArrayList<>(plays.size());
+            for (PlayToken.PlayTokenForm play : plays) {
+                PlayToken playToken = new PlayToken(play, user, remoteAddr);
+                playToken.setCounted();
+                playTokens.add(playToken);
+            }
+            return playTokens;
+        }
+
+        byte[] toPayload() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(this);
+            } catch (IOException e) {
+                // Not thrown by ByteArrayOutputStream.
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Returns {@code SampledPlays} read from {@code payload}, or null if it can't be read.
+         */
+        static SampledPlays fromPayload(byte[] payload) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+                return (SampledPlays) in.readObject();
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                return null;
+            }
+        }
+
+    }
+
+}
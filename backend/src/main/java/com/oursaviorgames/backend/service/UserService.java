@@ -1,20 +1,45 @@
 package com.oursaviorgames.backend.service;
 
 import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.ForbiddenException;
+import com.google.api.server.spi.response.NotFoundException;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.datastore.ReadPolicy;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
+import com.oursaviorgames.backend.CacheNameSpace;
 import com.oursaviorgames.backend.auth.IdentityProvider;
+import com.oursaviorgames.backend.model.datastore.UserIdentity;
 import com.oursaviorgames.backend.model.datastore.UserProfile;
+import com.oursaviorgames.backend.model.datastore.Username;
 import com.oursaviorgames.backend.model.types.ValidatedUsername;
 import com.oursaviorgames.backend.model.types.ValidationException;
+import com.oursaviorgames.backend.spi.TxResult;
 import com.oursaviorgames.backend.utils.LogUtils;
 
 import static com.oursaviorgames.backend.service.OfyService.ofy;
 import static com.oursaviorgames.backend.utils.LogUtils.LOGE;
+import static com.oursaviorgames.backend.utils.LogUtils.LOGI;
+import static com.oursaviorgames.backend.utils.LogUtils.LOGW;
 
 /**
  * Service for UserProfiles.
@@ -85,26 +110,98 @@ public interface UserService {
      * Generates a unique username given a user's name.
      * @param name The user's name.
      * @return A unique username or an empty string if there was an error
-     *          or if a username could not be generated within 10 tries.
+     *          or if a unique username could not be generated.
      */
     public String generateUserName(String name);
 
     /**
-     * Queries the database with identityProviderUserId to see if such a user is already registered.
+     * Finds the user registered with identityProviderUserId, if any.
+     * <p>
+     *     <em>Datastore: looks up the user's {@link UserIdentity} by key.</em>
+     * </p>
      * @param identityProvider
      * @param identityProviderUserId
      * @return {@link UserProfile} if a user is found, null otherwise.
      */
-    public UserProfile queryForExistingUser(IdentityProvider identityProvider, String identityProviderUserId);
+    public UserProfile findExistingUser(IdentityProvider identityProvider, String identityProviderUserId);
+
+    /**
+     * Reserves the usernames and saves the identities of a batch of users
+     * registered before {@link Username} reservations and {@link UserIdentity} entities.
+     * @param cursor Datastore cursor returned by the previous batch, or null to start.
+     * @return Cursor of the next batch, or null if all users have been backfilled.
+     */
+    public String backfillUsers(String cursor);
+
+    /**
+     * Backfills all users on the task queue, one batch per task.
+     */
+    public class BackfillUsersTask implements DeferredTask {
+
+        private final String cursor;
+
+        private BackfillUsersTask(String cursor) {
+            this.cursor = cursor;
+        }
+
+        /**
+         * Queues backfilling users from {@code cursor}, or from the first user if it is null.
+         */
+        public static void enqueue(String cursor) {
+            QueueFactory.getDefaultQueue().add(
+                    TaskOptions.Builder.withPayload(new BackfillUsersTask(cursor)));
+        }
+
+        @Override
+        public void run() {
+            String nextCursor = UserServiceFactory.createInstance().backfillUsers(cursor);
+            if (nextCursor != null) {
+                enqueue(nextCursor);
+            }
+        }
+    }
 
 
     /**
      * Implementation
+     * <p>
+     * Usernames are reserved with {@link Username} entities, keyed by the normalized username.
+     * Names known to be taken are hinted in memcache, to skip them when generating usernames.
      */
-    class UserServiceImpl implements UserService {
+    class UserServiceImpl extends CachedService implements UserService {
 
         private static final String TAG = LogUtils.makeLogTag(UserServiceImpl.class);
 
+        /**
+         * Number of candidate usernames checked together by {@link #generateUserName(String)}.
+         */
+        private static final int CANDIDATE_BATCH_SIZE = 10;
+
+        /**
+         * Maximum number of candidate batches checked by {@link #generateUserName(String)}.
+         */
+        private static final int MAX_CANDIDATE_BATCHES = 3;
+
+        /**
+         * How long a username is hinted as taken, in seconds.
+         */
+        private static final int TAKEN_HINT_SECONDS = 24 * 60 * 60;
+
+        /**
+         * Number of users backfilled by a single call to {@link #backfillUsers(String)}.
+         */
+        private static final int BACKFILL_BATCH_SIZE = 100;
+
+        private static final Random sRandom = new Random();
+
+        public UserServiceImpl() {
+            super(CacheNameSpace.USER_SERVICE_NAMESPACE);
+        }
+
+        private static String getTakenHintKey(String username) {
+            return "taken|" + Username.normalize(username);
+        }
+
         @Override
         public UserProfile getUserProfile(Key<UserProfile> userKey) {
             return ofy().consistency(ReadPolicy.Consistency.STRONG)
@@ -114,51 +211,88 @@ public interface UserService {
         }
 
         @Override
-        public UserProfile editUserProfile(Key<UserProfile> userKey, ValidatedUsername newUsername) throws UsernameNotUniqueException {
+        public UserProfile editUserProfile(final Key<UserProfile> userKey, final ValidatedUsername newUsername) throws UsernameNotUniqueException {
             UserProfile profile = ofy().load().key(userKey).now();
             if (profile == null) {
                 throw new IllegalStateException("UserProfile for id " + userKey.getId() + " is null");
             }
             if (!profile.getUsername().equals(newUsername.getValue())) {
                 // Update username if it is different.
-                if (!isUsernameUnique(newUsername.getValue())) {
+                final String oldUsername = profile.getUsername();
+                profile = ofy().transact(new Work<UserProfile>() {
+                    @Override
+                    public UserProfile run() {
+                        UserProfile profile = ofy().load().key(userKey).now();
+                        if (!reserveUsername(newUsername.getValue(), userKey)) {
+                            return null;
+                        }
+                        if (!Username.normalize(oldUsername).equals(Username.normalize(newUsername.getValue()))) {
+                            releaseUsername(oldUsername, userKey);
+                        }
+                        profile.setUsername(newUsername);
+                        ofy().save().entity(profile).now();
+                        return profile;
+                    }
+                });
+                if (profile == null) {
+                    hintTaken(Collections.singleton(newUsername.getValue()));
                     throw new UsernameNotUniqueException("Username(" + newUsername.getValue() + ") is not unique");
                 }
-                profile.setUsername(newUsername);
-                ofy().save().entity(profile).now();
+                getMemcache().delete(getTakenHintKey(oldUsername));
+                hintTaken(Collections.singleton(newUsername.getValue()));
+                // Usernames are cached along with the user's comments.
+                CommentService.CommentServiceFactory.createInstance().invalidateUserComments(userKey);
             }
             return profile;
         }
 
         /** {@inheritDoc} */
         @Override
-        public UserProfile registerUser(ValidatedUsername username,
-                                        IdentityProvider identityProvider,
-                                        String identityProviderUserId,
+        public UserProfile registerUser(final ValidatedUsername username,
+                                        final IdentityProvider identityProvider,
+                                        final String identityProviderUserId,
                                         UserProfile.Gender gender,
                                         String name,
                                         String deviceId)
                 throws UsernameNotUniqueException, ConflictException {
             // Checks if user is already registered.
-            UserProfile currentUser = queryForExistingUser(identityProvider, identityProviderUserId);
+            UserProfile currentUser = findExistingUser(identityProvider, identityProviderUserId);
             if (currentUser != null) {
                 // If a user with identityProviderUserId already exists.
                 throw new ConflictException("User with user_id(" + identityProviderUserId
                         + ") is already registered.");
-            } else {
-                // Checks if username is unique or throws exception.
-                if (!isUsernameUnique(username.getValue())) {
+            }
+            // Creates new entity and stores it along with its identity and username reservation.
+            final UserProfile newUserProfile = new UserProfile(
+                    username, identityProviderUserId, identityProvider, gender, name, deviceId);
+            final Key<UserIdentity> identityKey = UserIdentity.createKey(identityProvider, identityProviderUserId);
+            TxResult<UserProfile> txResult = ofy().transact(new Work<TxResult<UserProfile>>() {
+                @Override
+                public TxResult<UserProfile> run() {
+                    if (ofy().load().key(identityKey).now() != null) {
+                        return new TxResult<>(new ConflictException("User with user_id("
+                                + identityProviderUserId + ") is already registered."));
+                    }
+                    if (ofy().load().key(Username.createKey(username.getValue())).now() != null) {
+                        return new TxResult<>((UserProfile) null);
+                    }
+                    // Allocates the user id.
+                    ofy().save().entity(newUserProfile).now();
+                    ofy().save().entities(
+                            new UserIdentity(identityProvider, identityProviderUserId, newUserProfile.getKey()),
+                            new Username(username.getValue(), newUserProfile.getKey())).now();
+                    return new TxResult<>(newUserProfile);
+                }
+            });
+            hintTaken(Collections.singleton(username.getValue()));
+            try {
+                if (txResult.getResult() == null) {
                     throw new UsernameNotUniqueException("Username(" + username.getValue() + ") is not unique.");
                 }
-                // Creates new entity and stores it into the datastore.
-                UserProfile newUserProfile = new UserProfile(
-                        username, identityProviderUserId, identityProvider, gender, name, deviceId);
-                ofy().consistency(ReadPolicy.Consistency.STRONG)
-                        .save()
-                        .entity(newUserProfile)
-                        .now();
-                return newUserProfile;
+            } catch (NotFoundException | ForbiddenException e) {
+                // Will not be thrown.
             }
+            return newUserProfile;
         }
 
         /** {@inheritDoc} */
@@ -177,56 +311,162 @@ public interface UserService {
                 username = username.substring(0, ValidatedUsername.UsernameMaxLength);
             }
             try {
-                ValidatedUsername validatedUsername = new ValidatedUsername(username);
-                int i = 0;
-                while (!isUsernameUnique(validatedUsername.getValue())) {
-                    if (++i > 10) {
-                        // A unique username has not been generated within 10 tries,
-                        // just return an empty string.
-                        return "";
-                    }
-                    String randomInt = String.valueOf((int) (Math.random() * 10));
-                    username = validatedUsername.getValue().concat(randomInt);
-                    validatedUsername = new ValidatedUsername(username);
-                }
+                new ValidatedUsername(username);
             } catch (ValidationException e) {
                 return "";
             }
-            return username;
+            for (int batch = 0; batch < MAX_CANDIDATE_BATCHES; batch++) {
+                String available = findAvailableUsername(createCandidates(username, batch));
+                if (available != null) {
+                    return available;
+                }
+            }
+            // A unique username has not been generated,
+            // just return an empty string.
+            return "";
         }
 
-        /** {@inheritDoc} */
-        public UserProfile queryForExistingUser(IdentityProvider identityProvider, String identityProviderUserId) {
-            List<UserProfile> queryResultList = ofy()
-                    .consistency(ReadPolicy.Consistency.STRONG)
-                    .load()
-                    .type(UserProfile.class)
-                    .filter(UserProfile.F_IdentityProviderUserId, identityProviderUserId)
-                    .filter(UserProfile.F_IdentityProvider, identityProvider.getDomain())
-                    .list();
+        /**
+         * Returns up to {@link #CANDIDATE_BATCH_SIZE} valid usernames made from {@code username}
+         * and a random number suffix, which is longer for later batches.
+         * The first batch starts with {@code username} itself.
+         */
+        private static List<String> createCandidates(String username, int batch) {
+            final int suffixBound = (int) Math.pow(10, batch + 2);
+            final int maxBaseLength = ValidatedUsername.UsernameMaxLength - Integer.toString(suffixBound).length() + 1;
+            final String base = username.substring(0, Math.min(username.length(), maxBaseLength));
+            Set<String> candidates = new LinkedHashSet<>(CANDIDATE_BATCH_SIZE);
+            if (batch == 0) {
+                candidates.add(username);
+            }
+            for (int i = 0; i < CANDIDATE_BATCH_SIZE * 2 && candidates.size() < CANDIDATE_BATCH_SIZE; i++) {
+                String candidate = base + sRandom.nextInt(suffixBound);
+                try {
+                    candidates.add(new ValidatedUsername(candidate).getValue());
+                } catch (ValidationException e) {
+                    // Skips it.
+                }
+            }
+            return new ArrayList<>(candidates);
+        }
 
-            if (queryResultList.size() > 1) {
-                LOGE(TAG, "Duplicate user with authority id("
-                        + identityProviderUserId + ") found.");
-            } else if (queryResultList.size() == 1){
-                return queryResultList.get(0);
+        /**
+         * Returns the first of {@code candidates} not taken, or null if all are taken.
+         * Checks all candidates with a single memcache call and a single datastore get.
+         */
+        private String findAvailableUsername(List<String> candidates) {
+            List<String> hintKeys = new ArrayList<>(candidates.size());
+            for (String candidate : candidates) {
+                hintKeys.add(getTakenHintKey(candidate));
+            }
+            Map<String, Object> hints = getMemcache().getAll(hintKeys);
+
+            List<String> remaining = new ArrayList<>(candidates.size());
+            List<Key<Username>> keys = new ArrayList<>(candidates.size());
+            for (String candidate : candidates) {
+                if (!hints.containsKey(getTakenHintKey(candidate))) {
+                    remaining.add(candidate);
+                    keys.add(Username.createKey(candidate));
+                }
+            }
+            if (remaining.isEmpty()) {
+                return null;
             }
-            // All else:
-            return  null;
+
+            Map<Key<Username>, Username> reservations = ofy().load().keys(keys);
+            List<String> taken = new ArrayList<>();
+            for (Iterator<String> it = remaining.iterator(); it.hasNext(); ) {
+                String candidate = it.next();
+                if (reservations.containsKey(Username.createKey(candidate))) {
+                    taken.add(candidate);
+                    it.remove();
+                }
+            }
+            hintTaken(taken);
+            return remaining.isEmpty() ? null : remaining.get(0);
         }
 
         /**
-         * Whether {@code username} is unique.
-         * Checks against the datastore with strong consistency.
-         * @param username Username to check.
-         * @return True if {@code username} is unique, false otherwise.
+         * Reserves {@code username} for {@code userKey}.
+         * Must be called in a transaction.
+         * @return True if the username is now held by {@code userKey}, false if it is held by another user.
          */
-        private boolean isUsernameUnique(String username) {
-            List<UserProfile> userList = ofy().consistency(ReadPolicy.Consistency.STRONG).load()
-                    .type(UserProfile.class).filter(UserProfile.F_Username, username).list();
-            return (userList.size() == 0);
+        private static boolean reserveUsername(String username, Key<UserProfile> userKey) {
+            Username reservation = ofy().load().key(Username.createKey(username)).now();
+            if (reservation == null) {
+                ofy().save().entity(new Username(username, userKey)).now();
+                return true;
+            }
+            return reservation.isHeldBy(userKey);
+        }
+
+        /**
+         * Releases {@code username} if it is held by {@code userKey}.
+         * Must be called in a transaction.
+         */
+        private static void releaseUsername(String username, Key<UserProfile> userKey) {
+            Username reservation = ofy().load().key(Username.createKey(username)).now();
+            if (reservation != null && reservation.isHeldBy(userKey)) {
+                ofy().delete().entity(reservation).now();
+            }
+        }
+
+        /**
+         * Hints {@code usernames} as taken.
+         */
+        private void hintTaken(Collection<String> usernames) {
+            if (usernames.isEmpty()) {
+                return;
+            }
+            Map<String, Boolean> hints = new HashMap<>(usernames.size());
+            for (String username : usernames) {
+                hints.put(getTakenHintKey(username), Boolean.TRUE);
+            }
+            getMemcache().putAll(hints, Expiration.byDeltaSeconds(TAKEN_HINT_SECONDS));
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public UserProfile findExistingUser(IdentityProvider identityProvider, String identityProviderUserId) {
+            UserIdentity identity = ofy().load()
+                    .key(UserIdentity.createKey(identityProvider, identityProviderUserId))
+                    .now();
+            return (identity == null) ? null : ofy().load().key(identity.getUserKey()).now();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String backfillUsers(String cursor) {
+            Query<UserProfile> query = ofy().load().type(UserProfile.class).limit(BACKFILL_BATCH_SIZE);
+            if (cursor != null) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            }
+            QueryResultIterator<UserProfile> iterator = query.iterator();
+            int count = 0;
+            while (iterator.hasNext()) {
+                final UserProfile profile = iterator.next();
+                count++;
+                boolean reserved = ofy().transact(new Work<Boolean>() {
+                    @Override
+                    public Boolean run() {
+                        final Key<UserIdentity> identityKey = UserIdentity.createKey(
+                                profile.getIdentityProvider(), profile.getAuthorityUserId());
+                        if (ofy().load().key(identityKey).now() == null) {
+                            ofy().save().entity(new UserIdentity(profile.getIdentityProvider(),
+                                    profile.getAuthorityUserId(), profile.getKey())).now();
+                        }
+                        return reserveUsername(profile.getUsername(), profile.getKey());
+                    }
+                });
+                if (!reserved) {
+                    LOGW(TAG, "Username(" + profile.getUsername() + ") of user("
+                            + profile.getId() + ") is held by another user");
+                }
+            }
+            LOGI(TAG, "Backfilled " + count + " users");
+            return (count < BACKFILL_BATCH_SIZE) ? null : iterator.getCursor().toWebSafeString();
         }
 
     }
 
-}
\ No newline at end of file
+}
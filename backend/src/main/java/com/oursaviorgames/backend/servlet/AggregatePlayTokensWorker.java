@@ -0,0 +1,305 @@
+package com.oursaviorgames.backend.servlet;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.oursaviorgames.backend.CacheNameSpace;
+import com.oursaviorgames.backend.model.datastore.Game;
+import com.oursaviorgames.backend.model.datastore.PlayCounter;
+import com.oursaviorgames.backend.model.datastore.PlaySnapshot;
+import com.oursaviorgames.backend.model.datastore.PlayToken;
+import com.oursaviorgames.backend.service.ExtraGameService;
+import com.oursaviorgames.backend.service.GameService;
+import com.oursaviorgames.backend.service.PlayCounterService;
+import com.oursaviorgames.backend.utils.MemcacheUtils;
+
+import static com.oursaviorgames.backend.service.OfyService.ofy;
+import static com.oursaviorgames.backend.utils.LogUtils.LOGI;
+import static com.oursaviorgames.backend.utils.LogUtils.LOGW;
+import static com.oursaviorgames.backend.utils.LogUtils.makeLogTag;
+
+/**
+ * Counts uncounted {@link PlayToken}s and rolls up {@link PlayCounter}s
+ * of a single shard of game ids, started by {@link ProcessPlayTokensCron}.
+ * <p>
+ * Each task processes up to {@link #BATCH_SIZE} tokens and queues itself
+ * to continue from where it stopped. The last shard to finish re-caches the games.
+ */
+public class AggregatePlayTokensWorker extends HttpServlet {
+
+    private static final String TAG = makeLogTag(AggregatePlayTokensWorker.class);
+
+    public static final String URL = "/worker/aggregatePlayTokens";
+
+    public static final String PARAM_RUN_ID      = "run";
+    public static final String PARAM_SHARD_COUNT = "shards";
+    public static final String PARAM_SHARD       = "shard";  // index of the shard in the run.
+    public static final String PARAM_FROM        = "from";   // inclusive game id.
+    public static final String PARAM_TO          = "to";     // exclusive game id.
+    public static final String PARAM_CURSOR      = "cursor";
+
+    /**
+     * Maximum number of tokens processed by a single task.
+     */
+    private static final int BATCH_SIZE = 5000;
+
+    /**
+     * Chunk size of the query and of the token saves.
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+    throws ServletException, IOException
+    {
+        final String runId = req.getParameter(PARAM_RUN_ID);
+        final int shardCount = Integer.parseInt(req.getParameter(PARAM_SHARD_COUNT));
+        final int shard = Integer.parseInt(req.getParameter(PARAM_SHARD));
+        final String from = req.getParameter(PARAM_FROM);
+        final String to = req.getParameter(PARAM_TO);
+        final String startCursor = req.getParameter(PARAM_CURSOR);
+
+        // Builds query over the uncounted tokens of this shard, sorted by game id.
+        Query<PlayToken> query = ofy()
+                .load()
+                .type(PlayToken.class)
+                .filter(PlayToken.F_Counted, false);
+        if (from != null) {
+            query = query.filter(PlayToken.F_GameId + " >=", Long.parseLong(from));
+        }
+        if (to != null) {
+            query = query.filter(PlayToken.F_GameId + " <", Long.parseLong(to));
+        }
+        query = query.order(PlayToken.F_GameId).chunk(CHUNK_SIZE).limit(BATCH_SIZE);
+        if (startCursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(startCursor));
+        }
+        final QueryResultIterator<PlayToken> queryIterator = query.iterator();
+
+        // Per game aggregates. Tokens arrive sorted by game id,
+        // so each game occupies a single slot.
+        final long[] gameIds = new long[BATCH_SIZE];
+        final int[] playCounts = new int[BATCH_SIZE];
+        final long[] playDurations = new long[BATCH_SIZE];
+        int gameCount = 0;
+        int tokenCount = 0;
+
+        List<PlayToken> tokens = new ArrayList<>();
+        while (queryIterator.hasNext()) {
+            PlayToken playToken = queryIterator.next();
+            if (gameCount == 0 || gameIds[gameCount - 1] != playToken.getGameId()) {
+                gameIds[gameCount] = playToken.getGameId();
+                gameCount++;
+            }
+            playCounts[gameCount - 1]++;
+            playDurations[gameCount - 1] += playToken.getPlayDuration();
+
+            playToken.setCounted();
+            tokens.add(playToken);
+            tokenCount++;
+        }
+
+        // Applies the deltas to the games first, so that a failed batch is retried
+        // with its tokens uncounted. The snapshots of this batch keep a retry from
+        // applying them twice.
+        final String batchId = getBatchId(runId, shard, (startCursor == null) ? "" : startCursor);
+        for (int i = 0; i < gameCount; i++) {
+            applyPlays(batchId, gameIds[i], playCounts[i], playDurations[i]);
+        }
+        List<Result<Map<Key<PlayToken>, PlayToken>>> tokenSaves = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i += CHUNK_SIZE) {
+            tokenSaves.add(ofy().save().entities(tokens.subList(i, Math.min(i + CHUNK_SIZE, tokens.size()))));
+        }
+        for (Result<Map<Key<PlayToken>, PlayToken>> tokenSave : tokenSaves) {
+            tokenSave.now();
+        }
+
+        // Rolls up the play counters of this shard along with its last batch of tokens.
+        final boolean shardDone = tokenCount < BATCH_SIZE;
+        if (shardDone) {
+            List<PlayCounter> counters = PlayCounterService.PlayCounterServiceFactory.createInstance()
+                    .getPendingCounters(parseGameId(from), parseGameId(to));
+            Map<Long, List<Key<PlayCounter>>> countersByGame = new HashMap<>();
+            for (PlayCounter counter : counters) {
+                List<Key<PlayCounter>> gameCounters = countersByGame.get(counter.getGameId());
+                if (gameCounters == null) {
+                    gameCounters = new ArrayList<>(PlayCounterService.SHARD_COUNT);
+                    countersByGame.put(counter.getGameId(), gameCounters);
+                }
+                gameCounters.add(counter.getKey());
+            }
+            for (Map.Entry<Long, List<Key<PlayCounter>>> entry : countersByGame.entrySet()) {
+                rollUpCounters(getBatchId(runId, shard, "counters"), entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Sets the OK response before queueing the next job.
+        resp.setStatus(HttpServletResponse.SC_OK);
+
+        if (!shardDone) {
+            // There may be more tokens in this shard.
+            TaskOptions task = TaskOptions.Builder
+                    .withUrl(URL)
+                    .param(PARAM_RUN_ID, runId)
+                    .param(PARAM_SHARD_COUNT, Integer.toString(shardCount))
+                    .param(PARAM_SHARD, Integer.toString(shard))
+                    .param(PARAM_CURSOR, queryIterator.getCursor().toWebSafeString())
+                    .method(TaskOptions.Method.POST);
+            if (from != null) {
+                task.param(PARAM_FROM, from);
+            }
+            if (to != null) {
+                task.param(PARAM_TO, to);
+            }
+            QueueFactory.getDefaultQueue().add(task);
+        } else {
+            onShardDone(runId, shardCount, shard);
+        }
+    }
+
+    /**
+     * Adds the plays of batch {@code batchId} to game {@code gameId} in a transaction,
+     * along with the snapshot of the batch. Nothing is added if the snapshot already exists.
+     */
+    private static void applyPlays(final String batchId, final long gameId,
+                                   final int playCount, final long playDuration) {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Game game = ofy().load().key(Game.createKeyFromId(gameId)).now();
+                if (game == null) {
+                    LOGW(TAG, "Null game entity with id(" + gameId + ")");
+                    return;
+                }
+                if (ofy().load().key(PlaySnapshot.createKey(batchId, gameId)).now() != null) {
+                    LOGW(TAG, "Plays of batch(" + batchId + ") are already added to game(" + gameId + ")");
+                    return;
+                }
+                game.updateStats(playCount, playDuration);
+                updateHotScore(game);
+                ofy().save().entities(game, new PlaySnapshot(batchId, gameId, playCount, playDuration));
+            }
+        });
+    }
+
+    /**
+     * Moves the plays of counters {@code counterKeys} into game {@code gameId}
+     * in a transaction, zeroing the counters. Counters that are already zeroed,
+     * by a previous try of this task, add nothing.
+     */
+    private static void rollUpCounters(final String batchId, final long gameId,
+                                       final List<Key<PlayCounter>> counterKeys) {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                final Key<Game> gameKey = Game.createKeyFromId(gameId);
+                Game game = ofy().load().key(gameKey).now();
+                if (game == null) {
+                    LOGW(TAG, "Null game entity with id(" + gameId + ")");
+                    return;
+                }
+                List<PlayCounter> counters = new ArrayList<>(ofy().load().keys(counterKeys).values());
+                int playCount = 0;
+                long playDuration = 0l;
+                for (PlayCounter counter : counters) {
+                    playCount += counter.getPlayCount();
+                    playDuration += counter.getPlayDuration();
+                    counter.reset();
+                }
+                if (playCount == 0 && playDuration == 0l) {
+                    return;
+                }
+                game.updateStats(playCount, playDuration);
+                updateHotScore(game);
+                ofy().save().entities(counters);
+                ofy().save().entities(game, new PlaySnapshot(batchId, gameId, playCount, playDuration));
+            }
+        });
+    }
+
+    private static void updateHotScore(Game game) {
+        if (game.getDatePublished() != null) {
+            game.setHotScore(hotscore(game.getDatePublished(), game.getPlayCount()));
+        }
+    }
+
+    private static Long parseGameId(String gameId) {
+        return (gameId == null) ? null : Long.parseLong(gameId);
+    }
+
+    private static String getBatchId(String runId, int shard, String batch) {
+        return runId + "|" + shard + "|" + batch;
+    }
+
+    private static String getShardDoneKey(String runId, int shard) {
+        return "run|" + runId + "|done|" + shard;
+    }
+
+    /**
+     * Marks {@code shard} of the run as finished, and re-caches all games
+     * once every shard is done.
+     * <p>
+     * Each shard has its own key, so retried tasks don't count twice.
+     */
+    private void onShardDone(String runId, int shardCount, int shard) {
+        final MemcacheService memcache =
+                MemcacheUtils.getSyncMemcacheWithLog(CacheNameSpace.PLAY_TOKENS_NAMESPACE);
+        memcache.put(getShardDoneKey(runId, shard), true,
+                Expiration.byDeltaSeconds(ProcessPlayTokensCron.RUN_LEASE_SECONDS),
+                MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        List<String> doneKeys = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            doneKeys.add(getShardDoneKey(runId, i));
+        }
+        final int doneCount = memcache.getAll(doneKeys).size();
+        // Shards finishing together may all see the run as done, only the first re-caches.
+        if (doneCount == shardCount && memcache.put("run|" + runId + "|recached", true,
+                Expiration.byDeltaSeconds(ProcessPlayTokensCron.RUN_LEASE_SECONDS),
+                MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            LOGI(TAG, "Run " + runId + " is done");
+            recacheAllGames();
+            ProcessPlayTokensCron.releaseRunLease(memcache, Long.valueOf(runId));
+        }
+    }
+
+    // Re-caches games caches if the game lists have changed.
+    private void recacheAllGames() {
+        if (GameService.GameServiceFactory.createInstance().refreshRankings()) {
+            ExtraGameService.ExtraGameServiceFactory.getInstance().forceRecache();
+        }
+    }
+
+    /**
+     * Returns hot score of a game.
+     * <p>
+     * Newer games start from a higher base instead of older games decaying,
+     * so scores only need to be recomputed for games with new plays.
+     */
+    static long hotscore(Date publishedDate, long playCount) {
+        long age = (publishedDate.getTime() / 1000l) - 1415804779; // age in seconds.
+        long ageFactor = age / 45000l;
+        double o = Math.log10(Math.max(playCount, 1l)) * 500.0;
+        return (long) o + ageFactor;
+    }
+
+}
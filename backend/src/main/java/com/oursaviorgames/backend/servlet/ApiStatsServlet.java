@@ -0,0 +1,40 @@
+package com.oursaviorgames.backend.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.oursaviorgames.backend.stats.ApiStats;
+
+/**
+ * Shows the {@link ApiStats} counters of the instance serving the request.
+ * <p>
+ * The counters are reset if parameter {@code reset} is set.
+ */
+public class ApiStatsServlet extends HttpServlet {
+
+    public static final String PARAM_RESET = "reset";
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+    throws ServletException, IOException
+    {
+        resp.setContentType("text/plain");
+        PrintWriter writer = resp.getWriter();
+        for (Map.Entry<String, Map<String, Long>> operation : ApiStats.getOperations().entrySet()) {
+            writer.println(operation.getKey());
+            for (Map.Entry<String, Long> counter : operation.getValue().entrySet()) {
+                writer.println("    " + counter.getKey() + " = " + counter.getValue());
+            }
+        }
+        if (req.getParameter(PARAM_RESET) != null) {
+            ApiStats.reset();
+        }
+    }
+
+}
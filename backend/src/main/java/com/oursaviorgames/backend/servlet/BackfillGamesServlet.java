@@ -0,0 +1,27 @@
+package com.oursaviorgames.backend.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.oursaviorgames.backend.service.GameService;
+
+/**
+ * Starts backfilling change versions of games saved before change versions,
+ * which are otherwise missing from the game changes.
+ * Only needs to be run once.
+ */
+public class BackfillGamesServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+    throws ServletException, IOException
+    {
+        GameService.BackfillChangeVersionsTask.enqueue(null);
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+}
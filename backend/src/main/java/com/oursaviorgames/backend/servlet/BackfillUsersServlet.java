@@ -0,0 +1,28 @@
+package com.oursaviorgames.backend.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.oursaviorgames.backend.service.UserService;
+
+/**
+ * Starts backfilling users registered before
+ * {@link com.oursaviorgames.backend.model.datastore.Username} reservations
+ * and {@link com.oursaviorgames.backend.model.datastore.UserIdentity} entities.
+ * Only needs to be run once.
+ */
+public class BackfillUsersServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+    throws ServletException, IOException
+    {
+        UserService.BackfillUsersTask.enqueue(null);
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.oursaviorgames.backend.servlet;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.oursaviorgames.backend.CacheNameSpace;
+import com.oursaviorgames.backend.service.PlayCounterService;
+import com.oursaviorgames.backend.utils.MemcacheUtils;
+
+import static com.oursaviorgames.backend.utils.LogUtils.LOGW;
+import static com.oursaviorgames.backend.utils.LogUtils.makeLogTag;
+
+/**
+ * Moves plays counted in memcache into
+ * {@link com.oursaviorgames.backend.model.datastore.PlayCounter}s,
+ * so that they outlive memcache evictions.
+ */
+public class FlushPlayCountersCron extends HttpServlet {
+
+    private static final String TAG = makeLogTag(FlushPlayCountersCron.class);
+
+    /**
+     * How long a flush can hold the lease, in seconds.
+     */
+    private static final int FLUSH_LEASE_SECONDS = 5 * 60;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+    throws ServletException, IOException
+    {
+        final MemcacheService memcache =
+                MemcacheUtils.getSyncMemcacheWithLog(CacheNameSpace.PLAY_TOKENS_NAMESPACE);
+
+        // Shares the lease with ProcessPlayTokensCron, which rolls up the counters.
+        final String owner = "flush|" + UUID.randomUUID();
+        if (memcache.put(ProcessPlayTokensCron.RUN_LEASE_KEY, owner,
+                Expiration.byDeltaSeconds(FLUSH_LEASE_SECONDS), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            try {
+                PlayCounterService.PlayCounterServiceFactory.createInstance().flush();
+            } finally {
+                ProcessPlayTokensCron.releaseRunLease(memcache, owner);
+            }
+        } else {
+            LOGW(TAG, "Play tokens are being processed");
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+}
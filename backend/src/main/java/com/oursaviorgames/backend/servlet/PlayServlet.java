@@ -1,11 +1,7 @@
 package com.oursaviorgames.backend.servlet;
 
-import com.oursaviorgames.backend.model.datastore.Game;
-
-import net.sf.uadetector.OperatingSystemFamily;
-import net.sf.uadetector.ReadableUserAgent;
-import net.sf.uadetector.UserAgentStringParser;
-import net.sf.uadetector.service.UADetectorServiceFactory;
+import com.oursaviorgames.backend.service.GameService;
+import com.oursaviorgames.backend.utils.UserAgentUtils;
 
 import org.apache.http.HttpStatus;
 
@@ -15,7 +11,6 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import static com.oursaviorgames.backend.service.OfyService.ofy;
 import static com.oursaviorgames.backend.utils.Utils.decodeBase64String;
 
 public class PlayServlet extends BaseServlet {
@@ -45,14 +40,13 @@ public class PlayServlet extends BaseServlet {
             return;
         }
 
-        //TODO: add cache to user agent parser.
-        UserAgentStringParser uaParser = UADetectorServiceFactory.getResourceModuleParser();
-        ReadableUserAgent userAgent = uaParser.parse(userAgentStr);
-        final boolean isUserAgentAndroid =
-                userAgent.getOperatingSystem().getFamily().equals(OperatingSystemFamily.ANDROID);
+        final boolean isUserAgentAndroid = UserAgentUtils.isAndroid(userAgentStr);
 
         // Find requested Game.
-        Game requestedGame = findGameEntity(gameId);
+        //TODO: show a more specific error to the user if game is
+        // simply not published, or gameId is actually not found.
+        GameService.GameLink requestedGame =
+                GameService.GameServiceFactory.createInstance().getGameLink(gameId);
         if (requestedGame == null) {
             //TODO: show user a better 404.
             resp.sendError(HttpStatus.SC_NOT_FOUND, "Game with id " + gameId + " not found");
@@ -66,7 +60,7 @@ public class PlayServlet extends BaseServlet {
             final String originUrl = requestedGame.getOriginUrl();
             if (originUrl != null) {
                 resp.setStatus(HttpStatus.SC_MOVED_PERMANENTLY);
-                resp.sendRedirect(requestedGame.getOriginUrl());
+                resp.sendRedirect(originUrl);
             } else {
                 //TODO: tell the user that the game is only playable on our app.
                 resp.sendError(HttpStatus.SC_NOT_FOUND, "Redirect link not found");
@@ -74,16 +68,4 @@ public class PlayServlet extends BaseServlet {
         }
     }
 
-    /**
-     * Retrieves game entity with gameId.
-     * If game is not found or is not published, returns null.
-     */
-    private Game findGameEntity(long gameId) {
-        //TODO: show a more specific error to the user if game is
-        //TODO: implement this in GameSerivce
-        // simply not published, or gameId is actually not found.
-        Game game = ofy().load().key(Game.createKeyFromId(gameId)).now();
-        return (game != null && game.isPublished())? game : null;
-    }
-
 }
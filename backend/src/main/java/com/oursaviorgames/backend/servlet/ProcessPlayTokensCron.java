@@ -1,148 +1,124 @@
 package com.oursaviorgames.backend.servlet;
 
-import com.google.appengine.api.datastore.Cursor;
-import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.ReadPolicy;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
-import com.googlecode.objectify.cmd.Query;
+import com.googlecode.objectify.Key;
 
 import java.io.IOException;
-import java.util.Date;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.oursaviorgames.backend.CacheNameSpace;
 import com.oursaviorgames.backend.model.datastore.Game;
-import com.oursaviorgames.backend.model.datastore.PlaySnapshot;
-import com.oursaviorgames.backend.model.datastore.PlayToken;
-import com.oursaviorgames.backend.service.ExtraGameService;
-import com.oursaviorgames.backend.service.GameService;
+import com.oursaviorgames.backend.service.PlayCounterService;
+import com.oursaviorgames.backend.utils.DateUtils;
+import com.oursaviorgames.backend.utils.MemcacheUtils;
 
 import static com.oursaviorgames.backend.service.OfyService.ofy;
+import static com.oursaviorgames.backend.utils.LogUtils.LOGI;
 import static com.oursaviorgames.backend.utils.LogUtils.LOGW;
 import static com.oursaviorgames.backend.utils.LogUtils.makeLogTag;
 
 
 /**
  * Processes {@link com.oursaviorgames.backend.model.datastore.PlayToken}s
+ * <p>
+ * Splits the uncounted play-tokens into shards of game ids and fans out
+ * one {@link AggregatePlayTokensWorker} task per shard.
  */
 public class ProcessPlayTokensCron extends HttpServlet {
 
     private static final String TAG = makeLogTag(ProcessPlayTokensCron.class);
 
     /**
-     * Chunk size to be used by the query.
+     * Maximum number of shards per run.
      */
-    //TODO: optimize the chunk size.
-    private static final int CHUNK_SIZE = 1000;
+    private static final int SHARD_COUNT = 8;
 
     /**
-     * Creates {@link QueryResultIterator} to iterate over a {@link PlayToken}s
-     * which are not counted.
-     * <p>
-     * Result set is sorted by {@link PlayToken#F_GameId} field.
-     *
-     * @param startCursor Start cursor from previous query or null.
+     * Memcache key of the lease held while a run is in progress.
      */
-    private static QueryResultIterator<PlayToken> createQueryResultIterator(String startCursor) {
-        // Builds play-token fetching query with large internal chunk size.
-        Query<PlayToken> query = ofy()
-                .load()
-                .type(PlayToken.class)
-                .filter(PlayToken.F_Counted, false)
-                .order(PlayToken.F_GameId)
-                .chunk(CHUNK_SIZE)
-                .limit(10 * CHUNK_SIZE);
-
-        // Sets start cursor if any from request.
-        if (startCursor != null) {
-            query = query.startAt(Cursor.fromWebSafeString(startCursor));
-        }
+    static final String RUN_LEASE_KEY = "run|lease";
 
-        return query.iterator();
+    /**
+     * How long a run can hold the lease, in seconds.
+     */
+    static final int RUN_LEASE_SECONDS = 55 * 60;
+
+    /**
+     * Releases the run lease if it is still held by {@code owner}.
+     * A lease that expired and was taken by someone else is left alone.
+     */
+    static void releaseRunLease(MemcacheService memcache, Object owner) {
+        if (owner.equals(memcache.get(RUN_LEASE_KEY))) {
+            memcache.delete(RUN_LEASE_KEY);
+        } else {
+            LOGW(TAG, "Run lease is no longer held by " + owner);
+        }
     }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
     throws ServletException, IOException
     {
-        // Get parameters from request.
-        final String startCursor = req.getParameter("cursor");
-
-        final QueryResultIterator<PlayToken> queryIterator = createQueryResultIterator(startCursor);
-
-        // Linked list to hold the snapshotList.
-        final LinkedList<PlaySnapshot> snapshotList = new LinkedList<>();
+        final long runId = DateUtils.getTimeNow();
+        final MemcacheService memcache =
+                MemcacheUtils.getSyncMemcacheWithLog(CacheNameSpace.PLAY_TOKENS_NAMESPACE);
+
+        // Skips this run if the previous one hasn't finished yet.
+        if (!memcache.put(RUN_LEASE_KEY, runId, Expiration.byDeltaSeconds(RUN_LEASE_SECONDS),
+                MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            LOGW(TAG, "Previous run is still in progress");
+            resp.setStatus(HttpServletResponse.SC_OK);
+            return;
+        }
 
-        // Flag for the possibility of further more play-tokens in the datastore.
-        boolean continu = false;
+        // Moves plays counted in memcache into counters, to be rolled up by the workers.
+        PlayCounterService.PlayCounterServiceFactory.createInstance().flush();
 
-        // Iterates over the play-tokens and creates snapshotList.
-        while(queryIterator.hasNext()) {
-            PlayToken playToken = queryIterator.next();
-            // Creates snapshot for a new game-id.
-            if (snapshotList.isEmpty() || playToken.getGameId() != snapshotList.getLast().getGameId()) {
-                PlaySnapshot snapshot = new PlaySnapshot(playToken.getGameId());
-                snapshotList.add(snapshot);
+        // Game ids are sorted by the keys-only query.
+        List<Key<Game>> gameKeys = ofy()
+                .consistency(ReadPolicy.Consistency.EVENTUAL)
+                .load()
+                .type(Game.class)
+                .keys()
+                .list();
+        final int shardCount = Math.max(1, Math.min(SHARD_COUNT, gameKeys.size()));
+
+        // Shards cover the whole id space, so that tokens of
+        // unknown games are counted as well.
+        List<TaskOptions> tasks = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            TaskOptions task = TaskOptions.Builder
+                    .withUrl(AggregatePlayTokensWorker.URL)
+                    .param(AggregatePlayTokensWorker.PARAM_RUN_ID, Long.toString(runId))
+                    .param(AggregatePlayTokensWorker.PARAM_SHARD_COUNT, Integer.toString(shardCount))
+                    .param(AggregatePlayTokensWorker.PARAM_SHARD, Integer.toString(i));
+            if (i > 0) {
+                long from = gameKeys.get(i * gameKeys.size() / shardCount).getId();
+                task.param(AggregatePlayTokensWorker.PARAM_FROM, Long.toString(from));
             }
-            // Updates the last snapshot in the linked list.
-            snapshotList.getLast().updateCounter(playToken.getPlayDuration());
-            // Sets playToken as counted.
-            playToken.setCounted();
-            ofy().save().entity(playToken);
-
-            continu = true;
-        }
-
-        // Processing snapshotList if any was created.
-        // Saves the snapshotList into the datastore.
-        ofy().save().entities(snapshotList).now();
-
-        // For each snapshot, update game's play count.
-        for (PlaySnapshot snapshot : snapshotList) {
-            Game game = ofy().load().key(Game.createKeyFromId(snapshot.getGameId())).now();
-            if (game == null) {
-                LOGW(TAG, "Null game entity with id(" + snapshot.getGameId() + ")");
-            } else {
-                game.updateStats(snapshot.getPlayCount(), snapshot.getPlayDuration());
-                game.setHotScore(hotscore(game.getDatePublished(), game.getPlayCount()));
-                ofy().save().entity(game);
+            if (i < shardCount - 1) {
+                long to = gameKeys.get((i + 1) * gameKeys.size() / shardCount).getId();
+                task.param(AggregatePlayTokensWorker.PARAM_TO, Long.toString(to));
             }
+            tasks.add(task.method(TaskOptions.Method.POST));
         }
 
-        // Sets the OK response before queueing the next job.
-        resp.setStatus(HttpServletResponse.SC_OK);
-
-        // If there are no more tokens to be processed, update game caches,
-        // else add a new job to process remaining tokens.
-        if (!continu) {
-            recacheAllGames();
-        } else {
-            Cursor cursor = queryIterator.getCursor();
-            Queue queue = QueueFactory.getDefaultQueue();
-            queue.add(TaskOptions.Builder
-                    .withUrl("/cron/processPlayTokens")
-                    .param("cursor", cursor.toWebSafeString())
-                    .method(TaskOptions.Method.GET));
-        }
-    }
-
-    // Re-caches all games caches
-    private void recacheAllGames() {
-        GameService.GameServiceFactory.createInstance().reCache();
-        ExtraGameService.ExtraGameServiceFactory.getInstance().forceRecache();
-    }
+        Queue queue = QueueFactory.getDefaultQueue();
+        queue.add(tasks);
+        LOGI(TAG, "Started run " + runId + " with " + shardCount + " shards");
 
-    private static long hotscore(Date publishedDate, long playCount) {
-        long age = (publishedDate.getTime() / 1000l) - 1415804779; // age in seconds.
-        long ageFactor = age / 45000l;
-        double o = Math.log10(Math.max(playCount, 1l)) * 500.0;
-        return (long) o + ageFactor;
+        resp.setStatus(HttpServletResponse.SC_OK);
     }
 
 }
-
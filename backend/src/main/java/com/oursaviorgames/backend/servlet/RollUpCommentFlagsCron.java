@@ -0,0 +1,45 @@
+package com.oursaviorgames.backend.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.oursaviorgames.backend.service.CommentService;
+
+import static com.oursaviorgames.backend.utils.LogUtils.LOGI;
+import static com.oursaviorgames.backend.utils.LogUtils.makeLogTag;
+
+/**
+ * Rolls new {@link com.oursaviorgames.backend.model.datastore.CommentFlag}s
+ * into the flag counts of their comments.
+ */
+public class RollUpCommentFlagsCron extends HttpServlet {
+
+    private static final String TAG = makeLogTag(RollUpCommentFlagsCron.class);
+
+    /**
+     * Maximum number of batches rolled up by a single run.
+     */
+    private static final int MAX_BATCHES = 20;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+    throws ServletException, IOException
+    {
+        final CommentService commentService = CommentService.CommentServiceFactory.createInstance();
+        int rolledUp = 0;
+        for (int i = 0; i < MAX_BATCHES; i++) {
+            int count = commentService.rollUpFlags();
+            rolledUp += count;
+            if (count < CommentService.FLAG_ROLLUP_BATCH_SIZE) {
+                break;
+            }
+        }
+        LOGI(TAG, "Rolled up " + rolledUp + " flags");
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.oursaviorgames.backend.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.oursaviorgames.backend.service.PlayCounterService;
+
+import static com.oursaviorgames.backend.utils.LogUtils.LOGI;
+import static com.oursaviorgames.backend.utils.LogUtils.makeLogTag;
+
+/**
+ * Drains the pull queue of sampled plays into
+ * {@link com.oursaviorgames.backend.model.datastore.PlayToken}s.
+ */
+public class SaveSampledPlaysCron extends HttpServlet {
+
+    private static final String TAG = makeLogTag(SaveSampledPlaysCron.class);
+
+    /**
+     * Maximum number of batches drained by a single run.
+     */
+    private static final int MAX_BATCHES = 20;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+    throws ServletException, IOException
+    {
+        final PlayCounterService playCounterService = PlayCounterService.PlayCounterServiceFactory.createInstance();
+        int drained = 0;
+        for (int i = 0; i < MAX_BATCHES; i++) {
+            int count = playCounterService.saveSampledPlays();
+            drained += count;
+            if (count < PlayCounterService.DRAIN_BATCH_SIZE) {
+                break;
+            }
+        }
+        LOGI(TAG, "Drained " + drained + " tasks");
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.oursaviorgames.backend.servlet;
 
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesService;
 import com.google.appengine.api.images.ImagesServiceFactory;
@@ -8,7 +9,6 @@ import com.google.appengine.api.images.ImagesServiceFailureException;
 import com.google.appengine.api.images.Transform;
 import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
-import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
 import com.google.appengine.tools.cloudstorage.RetryParams;
@@ -19,6 +19,10 @@ import org.apache.http.HttpStatus;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -28,11 +32,12 @@ import javax.servlet.http.HttpServletResponse;
 import com.oursaviorgames.backend.auth.AuthorizationHeaders;
 import com.oursaviorgames.backend.auth.User;
 import com.oursaviorgames.backend.gcs.CloudStorage;
+import com.oursaviorgames.backend.gcs.DeleteFilesTask;
 import com.oursaviorgames.backend.gcs.GcsFile;
 import com.oursaviorgames.backend.model.datastore.UserProfile;
+import com.oursaviorgames.backend.service.CommentService;
 import com.oursaviorgames.backend.service.UserService;
 import com.oursaviorgames.backend.utils.AuthUtils;
-import com.oursaviorgames.backend.utils.TextUtils;
 
 import static com.oursaviorgames.backend.service.OfyService.ofy;
 import static com.oursaviorgames.backend.utils.LogUtils.LOGE;
@@ -43,6 +48,7 @@ import static com.oursaviorgames.backend.utils.TextUtils.emptyStringIfNull;
  * Handles users uploading pictures.
  * <p>
  * Re-sizes and stores profile picture and a thumbnail in WEBP format,
+ * and deletes the previous pictures on the task queue.
  */
 public class UploadProfilePicServlet extends HttpServlet {
 
@@ -70,6 +76,26 @@ public class UploadProfilePicServlet extends HttpServlet {
             .totalRetryPeriodMillis(15000)
             .build());
 
+    /**
+     * Reads the request content into a single array, without reading more than {@link #MAX_CONTENT_SIZE}.
+     * @return Request content, or null if it is larger than {@link #MAX_CONTENT_SIZE}.
+     */
+    private static byte[] readContent(HttpServletRequest httpRequest) throws IOException {
+        final int contentLength = httpRequest.getContentLength();
+        if (contentLength > MAX_CONTENT_SIZE) {
+            return null;
+        }
+        final InputStream in = httpRequest.getInputStream();
+        if (contentLength >= 0) {
+            byte[] content = new byte[contentLength];
+            ByteStreams.readFully(in, content);
+            return content;
+        }
+        // Content length is unknown.
+        byte[] content = ByteStreams.toByteArray(ByteStreams.limit(in, MAX_CONTENT_SIZE + 1));
+        return (content.length > MAX_CONTENT_SIZE) ? null : content;
+    }
+
     @Override
     public void doPost(HttpServletRequest httpRequest, HttpServletResponse httpResponse)
             throws ServletException, IOException {
@@ -89,24 +115,25 @@ public class UploadProfilePicServlet extends HttpServlet {
         // Reads image data from request.
         final byte[] imageData;
         try {
-            InputStream safeInputStream = ByteStreams.limit(httpRequest.getInputStream(), MAX_CONTENT_SIZE);
-            imageData = ByteStreams.toByteArray(safeInputStream);
+            imageData = readContent(httpRequest);
         } catch (IOException e) {
             LOGE(TAG, emptyStringIfNull(e.getMessage()));
             httpResponse.setStatus(HttpStatus.SC_INTERNAL_SERVER_ERROR);
             return;
         }
+        if (imageData == null) {
+            LOGE(TAG, "Image data larger than " + MAX_CONTENT_SIZE + " bytes");
+            httpResponse.setStatus(HttpStatus.SC_REQUEST_TOO_LONG);
+            return;
+        }
 
-        // Transforms the image and stores it in Google Cloud Storage.
-        final Image newImage;
-        final Image thumbnailImage;
+        // Transforms the image.
+        // The thumbnail is made from the resized image, while the resized image is stored.
+        final ImagesService imagesService = ImagesServiceFactory.getImagesService();
+        final byte[] newImageData;
+        final Future<Image> pendingThumbnail;
         try {
-            final ImagesService imagesService = ImagesServiceFactory.getImagesService();
-
-            // We need to make a copy of the image data for creating the thumbnail image,
-            // since ImagesService corrupts the original Image object.
             final Image image = ImagesServiceFactory.makeImage(imageData);
-            final Image imageCopy = ImagesServiceFactory.makeImage(imageData);
 
             int maxDimen = Math.max(image.getHeight(), image.getWidth());
             Transform resize;
@@ -117,10 +144,13 @@ public class UploadProfilePicServlet extends HttpServlet {
                 resize = ImagesServiceFactory.makeResize(image.getWidth(), image.getHeight());
             }
 
-            newImage = imagesService.applyTransform(resize, image, ImagesService.OutputEncoding.WEBP);
+            // ImagesService replaces the data of the transformed Image object,
+            // so the resized data is kept before making the thumbnail from it.
+            final Image newImage = imagesService.applyTransform(resize, image, ImagesService.OutputEncoding.WEBP);
+            newImageData = newImage.getImageData();
 
             Transform thumbnailResize = ImagesServiceFactory.makeResize(THUMBNAIL_DIMENS_PX, THUMBNAIL_DIMENS_PX, false);
-            thumbnailImage = imagesService.applyTransform(thumbnailResize, imageCopy, ImagesService.OutputEncoding.WEBP);
+            pendingThumbnail = imagesService.applyTransformAsync(thumbnailResize, newImage, ImagesService.OutputEncoding.WEBP);
 
         } catch (IllegalArgumentException e) {
             // Thrown if imageData is null or invalid.
@@ -134,8 +164,8 @@ public class UploadProfilePicServlet extends HttpServlet {
         }
 
         // Generate new GcsFilename
-        GcsFilename newProfileImageFile = CloudStorage.generateProfileImageFile(userProfile.getId());
-        GcsFilename newThumbImageFile = CloudStorage.getThumbnailProfilePicFile(newProfileImageFile);
+        final GcsFilename newProfileImageFile = CloudStorage.generateProfileImageFile(userProfile.getId());
+        final GcsFilename newThumbImageFile = CloudStorage.getThumbnailProfilePicFile(newProfileImageFile);
 
         // Builds GcsOptions with public-read and cache control.
         final GcsFileOptions fileOptions = new GcsFileOptions.Builder()
@@ -146,41 +176,47 @@ public class UploadProfilePicServlet extends HttpServlet {
 
         // Copy the content of the request as an image to GCS.
         try {
-            // Writing profile picture.
-            GcsOutputChannel outputChannel = gcsService.createOrReplace(newProfileImageFile, fileOptions);
-            outputChannel.write(ByteBuffer.wrap(newImage.getImageData()));
+            // Writes profile picture on another thread, while the thumbnail is made and written.
+            FutureTask<Void> profileImageWrite = new FutureTask<>(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    gcsService.createOrReplace(newProfileImageFile, fileOptions, ByteBuffer.wrap(newImageData));
+                    return null;
+                }
+            });
+            ThreadManager.createThreadForCurrentRequest(profileImageWrite).start();
 
             // Writing thumbnail.
-            GcsOutputChannel thumbnailOutputChannel = gcsService.createOrReplace(newThumbImageFile, fileOptions);
-            thumbnailOutputChannel.write(ByteBuffer.wrap(thumbnailImage.getImageData()));
-
-            // Close both streams.
-            outputChannel.close();
-            thumbnailOutputChannel.close();
-
-            // Delete old profile image and thumbnail if any.
-            try {
-                if (userProfile.getProfileImageFile() != null) {
-                    final GcsFilename oldProfileImage = userProfile.getProfileImageFile().createGcsFileName();
-                    final GcsFilename oldThumbnailImage = CloudStorage.getThumbnailProfilePicFile(oldProfileImage);
-                    gcsService.delete(oldProfileImage);
-                    if (oldThumbnailImage != null) gcsService.delete(oldThumbnailImage);
-                }
-            } catch (NullPointerException e) {
-                //TODO: we shouldn't need to catch NullPointerExceptions.
-                LOGE(TAG, e.toString());
-            }
-            // Updates to image files finished successfully.
-            // Update user's profile image.
-            userProfile.setProfileImageFile(GcsFile.createGcsFile(newProfileImageFile));
-            ofy().save().entity(userProfile).now();
-            // Success.
-            httpResponse.setStatus(HttpStatus.SC_CREATED);
-        } catch (IOException e) {
-            LOGE(TAG, "Error while copying data");
+            final Image thumbnailImage = pendingThumbnail.get();
+            gcsService.createOrReplace(newThumbImageFile, fileOptions, ByteBuffer.wrap(thumbnailImage.getImageData()));
+
+            profileImageWrite.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGE(TAG, "Interrupted while storing images");
             httpResponse.setStatus(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            return;
+        } catch (ExecutionException | IOException e) {
+            LOGE(TAG, "Error while copying data: " + e);
+            httpResponse.setStatus(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            return;
         }
 
+        // Updates to image files finished successfully.
+        // Update user's profile image.
+        final GcsFile oldProfileImageFile = userProfile.getProfileImageFile();
+        userProfile.setProfileImageFile(GcsFile.createGcsFile(newProfileImageFile));
+        ofy().save().entity(userProfile).now();
+        // Deletes old profile image and thumbnail if any,
+        // only once the profile no longer points to them.
+        if (oldProfileImageFile != null) {
+            final GcsFilename oldProfileImage = oldProfileImageFile.createGcsFileName();
+            DeleteFilesTask.enqueue(oldProfileImage, CloudStorage.getThumbnailProfilePicFile(oldProfileImage));
+        }
+        // Profile thumbnails are cached along with the user's comments.
+        CommentService.CommentServiceFactory.createInstance().invalidateUserComments(userProfile.getKey());
+        // Success.
+        httpResponse.setStatus(HttpStatus.SC_CREATED);
     }
 
 }
@@ -0,0 +1,155 @@
+package com.oursaviorgames.backend.spi;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Sets the ETag and Cache-Control headers registered by endpoints
+ * with {@link #checkNotModified(HttpServletRequest, String, int)},
+ * since endpoints can't set response headers themselves.
+ * <p>
+ * Headers are only set on successful responses.
+ */
+public class HttpCachingFilter implements Filter {
+
+    public static final String HEADER_ETAG          = "ETag";
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    public static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    private static final String ATTR_ETAG          = HttpCachingFilter.class.getName() + ".etag";
+    private static final String ATTR_CACHE_CONTROL = HttpCachingFilter.class.getName() + ".cacheControl";
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        CachingResponse cachingResponse =
+                new CachingResponse((HttpServletRequest) request, (HttpServletResponse) response);
+        chain.doFilter(request, cachingResponse);
+        cachingResponse.setCacheHeaders();
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Registers {@code etag} and {@code maxAgeSeconds} as the caching headers of
+     * the response to {@code request}, and checks them against its If-None-Match header.
+     * @param etag Content version of the response, without quotes.
+     * @param maxAgeSeconds How long clients and intermediaries may serve the response.
+     * @return true if the client already has this version of the response.
+     */
+    static boolean checkNotModified(HttpServletRequest request, String etag, int maxAgeSeconds) {
+        final String quotedETag = quote(etag);
+        request.setAttribute(ATTR_ETAG, quotedETag);
+        request.setAttribute(ATTR_CACHE_CONTROL, getCacheControl(maxAgeSeconds));
+        return matches(request.getHeader(HEADER_IF_NONE_MATCH), quotedETag);
+    }
+
+    static String quote(String etag) {
+        return "\"" + etag + "\"";
+    }
+
+    static String getCacheControl(int maxAgeSeconds) {
+        return "public, max-age=" + maxAgeSeconds;
+    }
+
+    /**
+     * Returns whether If-None-Match header value {@code ifNoneMatch} matches {@code quotedETag}.
+     */
+    private static boolean matches(String ifNoneMatch, String quotedETag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                // Weak comparison is enough for GET requests.
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(quotedETag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the registered caching headers right before the body of a successful response is written.
+     */
+    private static class CachingResponse extends HttpServletResponseWrapper {
+
+        private final HttpServletRequest request;
+        private int     status = SC_OK;
+        private boolean headersSet = false;
+
+        CachingResponse(HttpServletRequest request, HttpServletResponse response) {
+            super(response);
+            this.request = request;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            status = sc;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            status = sc;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            setCacheHeaders();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            setCacheHeaders();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            setCacheHeaders();
+            super.flushBuffer();
+        }
+
+        void setCacheHeaders() {
+            if (headersSet || status != SC_OK || isCommitted()) {
+                return;
+            }
+            headersSet = true;
+            Object etag = request.getAttribute(ATTR_ETAG);
+            if (etag != null) {
+                setHeader(HEADER_ETAG, (String) etag);
+                setHeader(HEADER_CACHE_CONTROL, (String) request.getAttribute(ATTR_CACHE_CONTROL));
+            }
+        }
+    }
+
+}
@@ -13,7 +13,6 @@ import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
 import com.googlecode.objectify.Key;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -24,13 +23,13 @@ import com.oursaviorgames.backend.auth.ValidatedToken;
 import com.oursaviorgames.backend.model.datastore.Comment;
 import com.oursaviorgames.backend.model.datastore.Feedback;
 import com.oursaviorgames.backend.model.datastore.Game;
-import com.oursaviorgames.backend.model.datastore.PlayToken;
 import com.oursaviorgames.backend.model.datastore.UserProfile;
 import com.oursaviorgames.backend.model.request.GameListForm;
 import com.oursaviorgames.backend.model.types.ValidatedUsername;
 import com.oursaviorgames.backend.model.types.ValidationException;
 import com.oursaviorgames.backend.model.response.CommentCollectionResponse;
 import com.oursaviorgames.backend.model.response.CommentResponse;
+import com.oursaviorgames.backend.model.response.GameChangesResponse;
 import com.oursaviorgames.backend.model.response.GameCollectionResponse;
 import com.oursaviorgames.backend.model.response.GameResponse;
 import com.oursaviorgames.backend.model.response.SimpleResponse;
@@ -39,6 +38,7 @@ import com.oursaviorgames.backend.service.ExtraGameService;
 import com.oursaviorgames.backend.service.GameService;
 import com.oursaviorgames.backend.service.UserService;
 import com.oursaviorgames.backend.service.InvalidPageTokenException;
+import com.oursaviorgames.backend.service.PlayCounterService;
 import com.oursaviorgames.backend.service.UsernameNotUniqueException;
 import com.oursaviorgames.backend.utils.AuthUtils;
 import com.oursaviorgames.backend.utils.EmailUtils;
@@ -67,11 +67,29 @@ public class MobileApiEndpoint {
 
     private static final String TAG = LogUtils.makeLogTag(MobileApiEndpoint.class);
 
+    /**
+     * How long clients and intermediaries may serve a response without revalidating it, in seconds.
+     * Game lists change at most hourly, while comments change with every post.
+     */
+    private static final int GAME_LIST_MAX_AGE = 5 * 60;
+    private static final int COMMENTS_MAX_AGE  = 30;
+
+    /**
+     * Returns a page of games sorted by {@code sortOrder}.
+     * <p>
+     * Responds with 304 Not Modified if the request's If-None-Match header
+     * holds the ETag of the current version of the page.
+     */
     @ApiMethod(name="games.list", path = "games/{sort}", httpMethod = HttpMethod.GET)
-    public GameCollectionResponse getGameList(@Named("sort") GameService.SortOrder sortOrder,
+    public GameCollectionResponse getGameList(HttpServletRequest httpRequest,
+                                              @Named("sort") GameService.SortOrder sortOrder,
                                               @Nullable @Named("token") String nextPageToken)
-    throws BadRequestException {
+    throws BadRequestException, NotModifiedException {
         GameService gameService = GameService.GameServiceFactory.createInstance();
+        final String etag = gameService.getGameListVersion(sortOrder, nextPageToken);
+        if (HttpCachingFilter.checkNotModified(httpRequest, etag, GAME_LIST_MAX_AGE)) {
+            throw new NotModifiedException(etag, GAME_LIST_MAX_AGE);
+        }
         try {
             switch (sortOrder) {
                 case POPULAR:
@@ -114,6 +132,25 @@ public class MobileApiEndpoint {
         return gameService.getGames(gameIds);
     }
 
+    /**
+     * Returns games whose metadata, stats or published state changed after
+     * {@code since}, so that clients can sync their saved games.
+     * <p>
+     * Games that are no longer published are returned by id only.
+     * @param since Token returned by the last sync, or null for all games.
+     * @throws BadRequestException if {@code since} is invalid.
+     */
+    @ApiMethod(name = "games.changes", path = "games/changes", httpMethod = HttpMethod.GET)
+    public GameChangesResponse getGameChanges(@Nullable @Named("since") String since)
+            throws BadRequestException {
+        GameService gameService = GameService.GameServiceFactory.createInstance();
+        try {
+            return gameService.getGameChanges(since);
+        } catch (InvalidPageTokenException e) {
+            throw new BadRequestException("since (" + since + ") is invalid");
+        }
+    }
+
     /**
      * Endpoint for sending feedback.
      * @param message Feedback message.
@@ -135,6 +172,8 @@ public class MobileApiEndpoint {
 
     /**
      * Endpoint for submitting a list of play-tokens.
+     * <p>
+     * Plays are counted in memcache, and invalid plays are ignored.
      */
     @ApiMethod(name=  "playtokens.send", path = "playtokens", httpMethod = HttpMethod.POST)
     public void uploadPlayTokens(HttpServletRequest httpRequest, PlayTokenListWrapper playTokenListWrapper)
@@ -143,13 +182,12 @@ public class MobileApiEndpoint {
         User user = AuthUtils.throwIfNotAuthenticated(httpRequest);
         // Gets the client ip address.
         String ipAddress = AuthUtils.getIpAddress(httpRequest);
-        // Gets the list of play tokens and stores them in datastore.
-        List<PlayToken> playTokens = new ArrayList<>(playTokenListWrapper.getList().size());
-        for (PlayToken.PlayTokenForm playTokenFrom : playTokenListWrapper.getList()) {
-            playTokens.add(new PlayToken(playTokenFrom, UserProfile.createKey(user), ipAddress));
+        if (playTokenListWrapper == null) {
+            return;
         }
-        //TODO: create a playtoken service.
-        ofy().save().entities(playTokens);
+        // Counts the plays.
+        PlayCounterService playCounterService = PlayCounterService.PlayCounterServiceFactory.createInstance();
+        playCounterService.recordPlays(playTokenListWrapper.getList(), UserProfile.createKey(user), ipAddress);
     }
 
     //////////////////////////////////////////////
@@ -299,15 +337,23 @@ public class MobileApiEndpoint {
      * @param nextPageToken A nextPageToken supplied by a previous call to this function,
      *              to get the next page of comments.
      * @return
+     * @throws NotModifiedException if the request's If-None-Match header holds
+     *              the ETag of the current version of the page.
      */
     @ApiMethod(name = "comments.list", path = "comments", httpMethod = ApiMethod.HttpMethod.GET)
-    public CommentCollectionResponse getComments(@Named("gameId") long gameId,
+    public CommentCollectionResponse getComments(HttpServletRequest httpRequest,
+                                                 @Named("gameId") long gameId,
                                                  @Nullable @Named("nextPageToken") String nextPageToken)
-            throws NotFoundException, BadRequestException {
+            throws NotFoundException, BadRequestException, NotModifiedException {
         Key<Game> gameKey = Game.createKeyFromId(gameId);
         CommentService commentService = CommentService.CommentServiceFactory.createInstance();
         try {
             Page<CommentResponse> resultPage = commentService.getComments(nextPageToken, gameKey);
+            // Pages that may be stale are served without an ETag.
+            final String etag = resultPage.getVersion();
+            if (etag != null && HttpCachingFilter.checkNotModified(httpRequest, etag, COMMENTS_MAX_AGE)) {
+                throw new NotModifiedException(etag, COMMENTS_MAX_AGE);
+            }
             return new CommentCollectionResponse(resultPage.getItems(), resultPage.getToken());
         } catch (NotFoundException e) {
             LOGW(TAG, e.getMessage());
@@ -0,0 +1,25 @@
+package com.oursaviorgames.backend.spi;
+
+import com.google.api.server.spi.ServiceException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HTTP 304 Not Modified.
+ */
+public class NotModifiedException extends ServiceException {
+
+    private final Map<String, String> headers = new HashMap<>();
+
+    public NotModifiedException(String etag, int maxAgeSeconds) {
+        super(304, "Not modified");
+        headers.put(HttpCachingFilter.HEADER_ETAG, HttpCachingFilter.quote(etag));
+        headers.put(HttpCachingFilter.HEADER_CACHE_CONTROL, HttpCachingFilter.getCacheControl(maxAgeSeconds));
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+}
@@ -0,0 +1,151 @@
+package com.oursaviorgames.backend.stats;
+
+import com.google.common.util.concurrent.AtomicLongMap;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-instance counters of API calls made while serving requests,
+ * aggregated by request operation.
+ * <p>
+ * Counter names are of the form {@code <api package>.<api method>.<counter>},
+ * for example {@code datastore_v3.Get.calls}.
+ */
+public final class ApiStats {
+
+    public static final String REQUESTS         = "requests";
+    public static final String CALLS            = "calls";
+    public static final String MILLIS           = "millis";
+    public static final String REQUEST_BYTES    = "request_bytes";
+    public static final String CACHE_HITS       = "memcache.hits";
+    public static final String CACHE_MISSES     = "memcache.misses";
+
+    private static final ConcurrentMap<String, AtomicLongMap<String>> sOperations = new ConcurrentHashMap<>();
+
+    /**
+     * Counters of the current request, shared with threads started by it.
+     */
+    private static final InheritableThreadLocal<RequestStats> sCurrent = new InheritableThreadLocal<>();
+
+    private ApiStats() {
+    }
+
+    /**
+     * Starts counting API calls of this thread under {@code operation}.
+     */
+    public static RequestStats beginRequest(String operation) {
+        RequestStats stats = new RequestStats(operation);
+        sCurrent.set(stats);
+        return stats;
+    }
+
+    /**
+     * Stops counting API calls of this thread, and adds {@code stats} to the instance counters.
+     */
+    public static void endRequest(RequestStats stats) {
+        sCurrent.remove();
+        AtomicLongMap<String> counters = sOperations.get(stats.getOperation());
+        if (counters == null) {
+            sOperations.putIfAbsent(stats.getOperation(), AtomicLongMap.<String>create());
+            counters = sOperations.get(stats.getOperation());
+        }
+        counters.incrementAndGet(REQUESTS);
+        for (Map.Entry<String, Long> counter : stats.getCounters().entrySet()) {
+            counters.addAndGet(counter.getKey(), counter.getValue());
+        }
+    }
+
+    /**
+     * Returns counters of the current request, or null if this thread is not serving a request.
+     */
+    public static RequestStats current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Returns a copy of the instance counters, by operation.
+     */
+    public static Map<String, Map<String, Long>> getOperations() {
+        Map<String, Map<String, Long>> operations = new TreeMap<>();
+        for (Map.Entry<String, AtomicLongMap<String>> operation : sOperations.entrySet()) {
+            operations.put(operation.getKey(), new TreeMap<>(operation.getValue().asMap()));
+        }
+        return operations;
+    }
+
+    /**
+     * Resets the instance counters.
+     */
+    public static void reset() {
+        sOperations.clear();
+    }
+
+    /**
+     * Counters of a single request.
+     */
+    public static final class RequestStats {
+
+        private volatile String operation;
+        private final AtomicLongMap<String> counters = AtomicLongMap.create();
+
+        private RequestStats(String operation) {
+            this.operation = operation;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        /**
+         * Counts the request under {@code operation} instead, once it is known to differ.
+         */
+        void setOperation(String operation) {
+            this.operation = operation;
+        }
+
+        /**
+         * Counts an API call.
+         * @param millis Call latency, or a negative value if it isn't known yet.
+         */
+        public void recordCall(String api, int requestBytes, long millis) {
+            counters.incrementAndGet(api + "." + CALLS);
+            counters.addAndGet(api + "." + REQUEST_BYTES, requestBytes);
+            if (millis >= 0) {
+                recordLatency(api, millis);
+            }
+        }
+
+        public void recordLatency(String api, long millis) {
+            counters.addAndGet(api + "." + MILLIS, millis);
+        }
+
+        public void recordCacheLookups(int hits, int misses) {
+            counters.addAndGet(CACHE_HITS, hits);
+            counters.addAndGet(CACHE_MISSES, misses);
+        }
+
+        /**
+         * Returns a copy of the counters.
+         */
+        public Map<String, Long> getCounters() {
+            return new TreeMap<>(counters.asMap());
+        }
+
+        /**
+         * Returns the counters as a single log line of {@code name=value} pairs.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("op=").append(operation);
+            for (Map.Entry<String, Long> counter : getCounters().entrySet()) {
+                sb.append(' ').append(counter.getKey()).append('=').append(counter.getValue());
+            }
+            return sb.toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.oursaviorgames.backend.stats;
+
+import com.google.appengine.api.memcache.MemcacheService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Counts memcache hits and misses of the current request in {@link ApiStats}.
+ */
+public class InstrumentedMemcache implements InvocationHandler {
+
+    private final MemcacheService memcache;
+
+    private InstrumentedMemcache(MemcacheService memcache) {
+        this.memcache = memcache;
+    }
+
+    /**
+     * Returns {@code memcache} counting the hits and misses of its {@code get} and {@code getAll} calls.
+     */
+    public static MemcacheService wrap(MemcacheService memcache) {
+        return (MemcacheService) Proxy.newProxyInstance(MemcacheService.class.getClassLoader(),
+                new Class<?>[]{MemcacheService.class}, new InstrumentedMemcache(memcache));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final Object result;
+        try {
+            result = method.invoke(memcache, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+        final ApiStats.RequestStats stats = ApiStats.current();
+        if (stats != null) {
+            if (method.getName().equals("get") && args.length == 1) {
+                stats.recordCacheLookups(result != null ? 1 : 0, result != null ? 0 : 1);
+            } else if (method.getName().equals("getAll") && args.length == 1) {
+                int hits = ((Map<?, ?>) result).size();
+                stats.recordCacheLookups(hits, ((Collection<?>) args[0]).size() - hits);
+            }
+        }
+        return result;
+    }
+
+}
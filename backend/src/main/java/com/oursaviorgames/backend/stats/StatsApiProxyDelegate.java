@@ -0,0 +1,129 @@
+package com.oursaviorgames.backend.stats;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.util.concurrent.ForwardingFuture;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link ApiProxy.Delegate} that counts the API calls of the current request in {@link ApiStats}.
+ * <p>
+ * Latency of asynchronous calls is counted when their result is first read.
+ */
+public class StatsApiProxyDelegate implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+    private final ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+    public StatsApiProxyDelegate(ApiProxy.Delegate<ApiProxy.Environment> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Installs a {@code StatsApiProxyDelegate} in front of the current delegate, unless one is already installed.
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized void install() {
+        ApiProxy.Delegate<ApiProxy.Environment> current = ApiProxy.getDelegate();
+        if (current != null && !(current instanceof StatsApiProxyDelegate)) {
+            ApiProxy.setDelegate(new StatsApiProxyDelegate(current));
+        }
+    }
+
+    @Override
+    public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName, String methodName,
+                               byte[] request) throws ApiProxy.ApiProxyException {
+        final ApiStats.RequestStats stats = ApiStats.current();
+        if (stats == null) {
+            return delegate.makeSyncCall(environment, packageName, methodName, request);
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            return delegate.makeSyncCall(environment, packageName, methodName, request);
+        } finally {
+            stats.recordCall(getApiName(packageName, methodName), request.length,
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName, String methodName,
+                                        byte[] request, ApiProxy.ApiConfig apiConfig) {
+        final Future<byte[]> future = delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        final ApiStats.RequestStats stats = ApiStats.current();
+        if (stats == null) {
+            return future;
+        }
+        final String api = getApiName(packageName, methodName);
+        stats.recordCall(api, request.length, -1l);
+        return new TimedFuture(future, stats, api);
+    }
+
+    @Override
+    public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+        delegate.log(environment, record);
+    }
+
+    @Override
+    public void flushLogs(ApiProxy.Environment environment) {
+        delegate.flushLogs(environment);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+        return delegate.getRequestThreads(environment);
+    }
+
+    private static String getApiName(String packageName, String methodName) {
+        return packageName + "." + methodName;
+    }
+
+    /**
+     * Counts time until the result of an asynchronous call is first read.
+     */
+    private static class TimedFuture extends ForwardingFuture.SimpleForwardingFuture<byte[]> {
+
+        private final long start = System.currentTimeMillis();
+        private final ApiStats.RequestStats stats;
+        private final String api;
+        private volatile boolean recorded;
+
+        TimedFuture(Future<byte[]> future, ApiStats.RequestStats stats, String api) {
+            super(future);
+            this.stats = stats;
+            this.api = api;
+        }
+
+        @Override
+        public byte[] get() throws InterruptedException, ExecutionException {
+            try {
+                return super.get();
+            } finally {
+                record();
+            }
+        }
+
+        @Override
+        public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            try {
+                return super.get(timeout, unit);
+            } finally {
+                if (isDone()) {
+                    record();
+                }
+            }
+        }
+
+        private void record() {
+            if (!recorded) {
+                recorded = true;
+                stats.recordLatency(api, System.currentTimeMillis() - start);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.oursaviorgames.backend.stats;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import static com.oursaviorgames.backend.utils.LogUtils.LOGI;
+import static com.oursaviorgames.backend.utils.LogUtils.makeLogTag;
+
+/**
+ * Counts API calls of each request in {@link ApiStats}, and logs them in a single line.
+ * <p>
+ * Endpoints requests are counted under their API method name, other requests
+ * under their servlet mapping. Requests for unknown paths are counted together,
+ * so that the number of operations stays bounded.
+ */
+public class StatsFilter implements Filter {
+
+    private static final String TAG = makeLogTag(StatsFilter.class);
+
+    private static final String SPI_PATH = "/_ah/spi/";
+
+    /**
+     * Operation of requests that are responded to with 404 Not Found.
+     */
+    public static final String UNKNOWN_OPERATION = "unknown";
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        StatsApiProxyDelegate.install();
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        ApiStats.RequestStats stats = ApiStats.beginRequest(getOperation((HttpServletRequest) request));
+        StatusResponse statusResponse = new StatusResponse((HttpServletResponse) response);
+        try {
+            chain.doFilter(request, statusResponse);
+        } finally {
+            if (statusResponse.status == HttpServletResponse.SC_NOT_FOUND) {
+                stats.setOperation(UNKNOWN_OPERATION);
+            }
+            ApiStats.endRequest(stats);
+            LOGI(TAG, stats.toString());
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Returns name of the operation of {@code request}.
+     */
+    static String getOperation(HttpServletRequest request) {
+        final String uri = request.getRequestURI();
+        if (uri.startsWith(SPI_PATH)) {
+            // '/_ah/spi/<api class>.<api method>'
+            return uri.substring(uri.lastIndexOf('.') + 1);
+        }
+        // Servlets mapped to a path prefix, such as '/play/*', get a path info.
+        if (request.getPathInfo() != null) {
+            return request.getServletPath() + "/*";
+        }
+        return request.getServletPath();
+    }
+
+    /**
+     * Records the status code set by the servlet.
+     */
+    private static class StatusResponse extends HttpServletResponseWrapper {
+
+        int status = SC_OK;
+
+        StatusResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int sc, String sm) {
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            status = sc;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            status = sc;
+            super.sendError(sc, msg);
+        }
+
+    }
+
+}
@@ -4,8 +4,6 @@ import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.UnauthorizedException;
 import com.google.appengine.api.utils.SystemProperty;
 
-import java.util.List;
-
 import javax.servlet.http.HttpServletRequest;
 
 import com.oursaviorgames.backend.auth.Authorization;
@@ -14,9 +12,8 @@ import com.oursaviorgames.backend.auth.User;
 import com.oursaviorgames.backend.auth.UserAuthenticator;
 import com.oursaviorgames.backend.auth.ValidatedToken;
 import com.oursaviorgames.backend.http.HttpHeaderException;
-import com.oursaviorgames.backend.model.datastore.Admin;
+import com.oursaviorgames.backend.service.AdminService;
 
-import static com.oursaviorgames.backend.service.OfyService.ofy;
 import static com.oursaviorgames.backend.utils.LogUtils.LOGI;
 
 /**
@@ -109,13 +106,7 @@ public class AuthUtils {
         if (user == null) {
             return false;
         }
-        List<Admin> admins = ofy().load().type(Admin.class).list();
-        for (Admin admin : admins) {
-            if (user.getUserId().equals(admin.getUserId())) {
-                return true;
-            }
-        }
-        return false;
+        return AdminService.AdminServiceFactory.createInstance().isAdmin(user.getUserId());
     }
 
 }
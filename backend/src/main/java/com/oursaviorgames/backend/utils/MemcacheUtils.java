@@ -6,6 +6,8 @@ import com.google.appengine.api.memcache.MemcacheServiceFactory;
 
 import java.util.logging.Level;
 
+import com.oursaviorgames.backend.stats.InstrumentedMemcache;
+
 /**
  * Memcache utility functions.
  * {@link https://cloud.google.com/appengine/docs/java/memcache/}.
@@ -18,7 +20,7 @@ public class MemcacheUtils {
      * @return synchronous MemcacheService.
      */
     public static MemcacheService getSyncMemcacheWithLog(String namespace) {
-        MemcacheService syncCache  = MemcacheServiceFactory.getMemcacheService(namespace);
+        MemcacheService syncCache  = InstrumentedMemcache.wrap(MemcacheServiceFactory.getMemcacheService(namespace));
         syncCache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
         return syncCache;
     }
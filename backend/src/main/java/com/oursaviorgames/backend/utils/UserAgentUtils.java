@@ -0,0 +1,49 @@
+package com.oursaviorgames.backend.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import net.sf.uadetector.OperatingSystemFamily;
+import net.sf.uadetector.UserAgentStringParser;
+import net.sf.uadetector.service.UADetectorServiceFactory;
+
+/**
+ * User-Agent utility functions.
+ * <p>
+ * Parsing a User-Agent is expensive, so results are kept in a bounded in-instance cache.
+ */
+public class UserAgentUtils {
+
+    /**
+     * Maximum number of User-Agents cached per instance.
+     */
+    private static final int CACHE_SIZE = 5000;
+
+    private static final UserAgentStringParser sParser = UADetectorServiceFactory.getResourceModuleParser();
+
+    private static final Cache<String, OperatingSystemFamily> sOsFamilies = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build();
+
+    /**
+     * Returns operating system family of {@code userAgent}.
+     * @param userAgent User-Agent header value.
+     */
+    public static OperatingSystemFamily getOperatingSystemFamily(String userAgent) {
+        OperatingSystemFamily family = sOsFamilies.getIfPresent(userAgent);
+        if (family == null) {
+            family = sParser.parse(userAgent).getOperatingSystem().getFamily();
+            sOsFamilies.put(userAgent, family);
+        }
+        return family;
+    }
+
+    /**
+     * Whether {@code userAgent} runs on Android.
+     * @param userAgent User-Agent header value.
+     */
+    public static boolean isAndroid(String userAgent) {
+        return getOperatingSystemFamily(userAgent) == OperatingSystemFamily.ANDROID;
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.oursaviorgames.backend.test;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.oursaviorgames.backend.memcache.LocalCache;
+import com.oursaviorgames.backend.model.datastore.Admin;
+import com.oursaviorgames.backend.service.AdminService;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link AdminService}.
+ */
+public class AdminServiceTest {
+
+    final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(
+                    new LocalDatastoreServiceTestConfig()
+                            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0),
+                    new LocalMemcacheServiceTestConfig());
+
+    Closeable objectifyCloseable;
+
+    AdminService adminService;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        objectifyCloseable = ObjectifyService.begin();
+        LocalCache.clearAll();
+        adminService = AdminService.AdminServiceFactory.createInstance();
+    }
+
+    @After
+    public void tearDown() {
+        objectifyCloseable.close();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testCachedAdminsAreInvalidatedOnChange() {
+        assertFalse(adminService.isAdmin("user_id"));
+
+        adminService.addAdmin(new Admin("user_id", "name", "email"));
+        assertTrue(adminService.isAdmin("user_id"));
+        assertFalse(adminService.isAdmin("other_user_id"));
+
+        adminService.removeAdmin("user_id");
+        assertFalse(adminService.isAdmin("user_id"));
+    }
+
+}
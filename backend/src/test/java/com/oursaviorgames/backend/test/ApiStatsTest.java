@@ -0,0 +1,146 @@
+package com.oursaviorgames.backend.test;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.oursaviorgames.backend.model.datastore.Admin;
+import com.oursaviorgames.backend.stats.ApiStats;
+import com.oursaviorgames.backend.stats.StatsApiProxyDelegate;
+import com.oursaviorgames.backend.stats.StatsFilter;
+import com.oursaviorgames.backend.utils.MemcacheUtils;
+
+import static com.oursaviorgames.backend.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link ApiStats} counters.
+ */
+public class ApiStatsTest {
+
+    final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(
+                    new LocalDatastoreServiceTestConfig()
+                            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0),
+                    new LocalMemcacheServiceTestConfig());
+
+    Closeable objectifyCloseable;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        objectifyCloseable = ObjectifyService.begin();
+        StatsApiProxyDelegate.install();
+        ApiStats.reset();
+    }
+
+    @After
+    public void tearDown() {
+        objectifyCloseable.close();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testRequestCallsAreCountedByOperation() {
+        ApiStats.RequestStats stats = ApiStats.beginRequest("operation");
+        ofy().save().entity(new Admin("user_id", "name", "email")).now();
+        MemcacheService memcache = MemcacheUtils.getSyncMemcacheWithLog("namespace");
+        memcache.put("key", "value");
+        memcache.get("key");
+        memcache.getAll(Arrays.asList("key", "missing_key", "other_missing_key"));
+        ApiStats.endRequest(stats);
+
+        // Not counted outside a request.
+        memcache.get("key");
+
+        Map<String, Long> counters = ApiStats.getOperations().get("operation");
+        assertEquals(1l, (long) counters.get(ApiStats.REQUESTS));
+        assertEquals(1l, (long) counters.get("datastore_v3.Put." + ApiStats.CALLS));
+        assertTrue(counters.get("datastore_v3.Put." + ApiStats.REQUEST_BYTES) > 0);
+        assertEquals(2l, (long) counters.get(ApiStats.CACHE_HITS));
+        assertEquals(2l, (long) counters.get(ApiStats.CACHE_MISSES));
+    }
+
+    @Test
+    public void testRequestsAreCountedByServletMapping() throws IOException, ServletException {
+        filter("/play", "/123", HttpServletResponse.SC_OK);
+        filter("/play", "/456", HttpServletResponse.SC_OK);
+        filter("/photos", null, HttpServletResponse.SC_CREATED);
+        filter("/wp-login.php", null, HttpServletResponse.SC_NOT_FOUND);
+        filter("/.env", null, HttpServletResponse.SC_NOT_FOUND);
+
+        Map<String, Map<String, Long>> operations = ApiStats.getOperations();
+        assertEquals(3, operations.size());
+        assertEquals(2l, (long) operations.get("/play/*").get(ApiStats.REQUESTS));
+        assertEquals(1l, (long) operations.get("/photos").get(ApiStats.REQUESTS));
+        assertEquals(2l, (long) operations.get(StatsFilter.UNKNOWN_OPERATION).get(ApiStats.REQUESTS));
+    }
+
+    /**
+     * Passes a request for {@code servletPath} and {@code pathInfo} through {@link StatsFilter},
+     * responding with {@code status}.
+     */
+    private static void filter(final String servletPath, final String pathInfo, final int status)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getRequestURI":
+                                return servletPath + ((pathInfo == null) ? "" : pathInfo);
+                            case "getServletPath":
+                                return servletPath;
+                            case "getPathInfo":
+                                return pathInfo;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+        HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+        new StatsFilter().doFilter(request, response, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse resp) throws IOException {
+                if (status == HttpServletResponse.SC_NOT_FOUND) {
+                    ((HttpServletResponse) resp).sendError(status);
+                } else {
+                    ((HttpServletResponse) resp).setStatus(status);
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.oursaviorgames.backend.test;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.oursaviorgames.backend.memcache.CacheSerializer;
+import com.oursaviorgames.backend.model.datastore.Developer;
+import com.oursaviorgames.backend.model.datastore.Game;
+import com.oursaviorgames.backend.model.response.GameCollectionResponse;
+import com.oursaviorgames.backend.model.response.GameResponse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link CacheSerializer}.
+ */
+public class CacheSerializerTest {
+
+    final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+    final CacheSerializer serializer = CacheSerializer.builder()
+            .register(1, GameCollectionResponse.class, GameCollectionResponse.CODEC)
+            .register(2, long[].class, CacheSerializer.LONG_ARRAY)
+            .build();
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testEncodedValuesAreDecoded() throws IOException {
+        GameCollectionResponse response = createResponse(50);
+        Object encoded = serializer.encode(response);
+        assertTrue(encoded instanceof byte[]);
+        assertTrue(((byte[]) encoded).length < javaSerializedSize(response));
+
+        GameCollectionResponse decoded = (GameCollectionResponse) serializer.decode(encoded);
+        assertEquals(response.getNextPageToken(), decoded.getNextPageToken());
+        assertEquals(response.getItems().size(), decoded.getItems().size());
+        Iterator<GameResponse> expected = response.getItems().iterator();
+        for (GameResponse game : decoded.getItems()) {
+            GameResponse expectedGame = expected.next();
+            assertEquals(expectedGame.gameId, game.gameId);
+            assertEquals(expectedGame.title, game.title);
+            assertEquals(expectedGame.shortDescription, game.shortDescription);
+            assertEquals(expectedGame.developerId, game.developerId);
+            assertEquals(expectedGame.datePublished, game.datePublished);
+            assertEquals(expectedGame.originUrl, game.originUrl);
+        }
+
+        long[] gameIds = {1l, 2l, Long.MAX_VALUE};
+        assertArrayEquals(gameIds, (long[]) serializer.decode(serializer.encode(gameIds)));
+    }
+
+    @Test
+    public void testValuesWithoutCodecAreNotEncoded() {
+        assertSame("value", serializer.encode("value"));
+        assertSame("value", serializer.decode("value"));
+        assertNull(serializer.encode(null));
+        assertNull(serializer.decode(null));
+    }
+
+    @Test
+    public void testUnknownValuesAreMisses() {
+        byte[] encoded = (byte[]) serializer.encode(new long[]{1l});
+        byte[] newerVersion = encoded.clone();
+        newerVersion[0]++;
+        assertNull(serializer.decode(newerVersion));
+
+        byte[] unknownType = encoded.clone();
+        unknownType[2] = 100;
+        assertNull(serializer.decode(unknownType));
+
+        byte[] truncated = new byte[encoded.length - 4];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        assertNull(serializer.decode(truncated));
+    }
+
+    @Test
+    public void testTypeIdsAreUnique() {
+        try {
+            CacheSerializer.builder()
+                    .register(1, GameCollectionResponse.class, GameCollectionResponse.CODEC)
+                    .register(1, long[].class, CacheSerializer.LONG_ARRAY);
+            fail("Registered a type id twice");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private static GameCollectionResponse createResponse(int size) {
+        Developer developer = new Developer(1l, "developer", "developer@example.com", "http://example.com");
+        Key<Developer> developerKey = Key.create(Developer.class, 1l);
+        List<GameResponse> games = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Game game = new Game(i + 1l, developerKey, "game " + i);
+            game.setShortDescription("A short description of game " + i);
+            game.setOriginUrl("http://example.com/games/" + i);
+            game.setPublished(true);
+            games.add(new GameResponse(game, developer));
+        }
+        return GameCollectionResponse.builder().setItems(games).setNextPageToken("1:1").build();
+    }
+
+    private static int javaSerializedSize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(value);
+        out.close();
+        return bytes.size();
+    }
+
+}
@@ -0,0 +1,313 @@
+package com.oursaviorgames.backend.test;
+
+import com.google.api.server.spi.response.ForbiddenException;
+import com.google.api.server.spi.response.NotFoundException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.Iterables;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.oursaviorgames.backend.auth.IdentityProvider;
+import com.oursaviorgames.backend.model.datastore.Comment;
+import com.oursaviorgames.backend.model.datastore.Developer;
+import com.oursaviorgames.backend.model.datastore.Game;
+import com.oursaviorgames.backend.model.datastore.UserProfile;
+import com.oursaviorgames.backend.model.response.CommentResponse;
+import com.oursaviorgames.backend.model.types.ValidatedUsername;
+import com.oursaviorgames.backend.model.types.ValidationException;
+import com.oursaviorgames.backend.service.CommentService;
+import com.oursaviorgames.backend.service.InvalidPageTokenException;
+import com.oursaviorgames.backend.service.Page;
+import com.oursaviorgames.backend.service.UserService;
+import com.oursaviorgames.backend.service.UsernameNotUniqueException;
+import com.oursaviorgames.backend.stats.ApiStats;
+import com.oursaviorgames.backend.stats.StatsApiProxyDelegate;
+
+import static com.oursaviorgames.backend.service.OfyService.factory;
+import static com.oursaviorgames.backend.service.OfyService.ofy;
+import static com.oursaviorgames.backend.test.TestUtils.randomString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the paged comment cache of {@link CommentService}.
+ */
+public class CommentServiceCacheTest {
+
+    final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(
+                    new LocalDatastoreServiceTestConfig()
+                            .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    Closeable objectifyCloseable;
+
+    CommentService commentService;
+    UserProfile    user;
+    Game           game;
+
+    @Before
+    public void setUp() throws ValidationException {
+        helper.setUp();
+        objectifyCloseable = ObjectifyService.begin();
+        StatsApiProxyDelegate.install();
+        ApiStats.reset();
+        commentService = CommentService.CommentServiceFactory.createInstance();
+
+        user = new UserProfile(new ValidatedUsername("username"), "provider_user_id",
+                IdentityProvider.FACEBOOK, UserProfile.Gender.FEMALE, "name", "device_id");
+        ofy().save().entity(user).now();
+
+        Key<Developer> developerKey = factory().allocateId(Developer.class);
+        Key<Game> gameKey = factory().allocateId(Game.class);
+        Developer developer = new Developer(developerKey.getId(), "devname", "devemail", "devwebsite");
+        game = new Game(gameKey.getId(), developerKey, "game_title");
+        ofy().save().entities(developer, game).now();
+    }
+
+    @After
+    public void tearDown() {
+        objectifyCloseable.close();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testAllCommentsAreReturnedAcrossCachedAndCursorPages()
+            throws NotFoundException, InvalidPageTokenException {
+        final int totalComments = CommentService.COMMENTS_PER_PAGE * (CommentService.PAGES_TO_CACHE + 2);
+        addComments(totalComments);
+
+        List<CommentResponse> allComments = new ArrayList<>();
+        String nextPageToken = null;
+        int page = 0;
+        do {
+            Page<CommentResponse> result = commentService.getComments(nextPageToken, game.getKey());
+            nextPageToken = result.getToken();
+            allComments.addAll(result.getItems());
+            if (page < CommentService.PAGES_TO_CACHE - 1) {
+                assertEquals("page" + (page + 1), nextPageToken);
+            } else if (nextPageToken != null) {
+                assertFalse(nextPageToken.startsWith("page"));
+            }
+            page++;
+        } while (nextPageToken != null);
+
+        assertEquals(totalComments, allComments.size());
+    }
+
+    @Test
+    public void testKeysetPagesReturnTiedCommentsOnceAndAreCached()
+            throws NotFoundException, InvalidPageTokenException {
+        final int totalComments = CommentService.COMMENTS_PER_PAGE * (CommentService.PAGES_TO_CACHE + 2) + 1;
+        addComments(totalComments);
+        // Gives all the comments the same timestamp, so only their ids order them.
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Date timestamp = new Date();
+        for (Entity entity : datastore.prepare(new Query(Comment.class.getSimpleName())).asIterable()) {
+            entity.setProperty(Comment.F_Timestamp, timestamp);
+            datastore.put(entity);
+        }
+        ofy().clear();
+
+        Set<Long> commentIds = new HashSet<>();
+        String keysetToken = null;
+        String nextPageToken = null;
+        int page = 0;
+        do {
+            Page<CommentResponse> result = commentService.getComments(nextPageToken, game.getKey());
+            for (CommentResponse comment : result.getItems()) {
+                assertTrue(commentIds.add(comment.commentId));
+            }
+            nextPageToken = result.getToken();
+            if (page >= CommentService.PAGES_TO_CACHE - 1 && nextPageToken != null) {
+                assertTrue(nextPageToken.startsWith("k"));
+                keysetToken = nextPageToken;
+            }
+            page++;
+        } while (nextPageToken != null);
+        assertEquals(totalComments, commentIds.size());
+
+        ApiStats.RequestStats stats = ApiStats.beginRequest("getComments");
+        Page<CommentResponse> deepPage = commentService.getComments(keysetToken, game.getKey());
+        ApiStats.endRequest(stats);
+        // Cached pages are served without any datastore queries.
+        assertNull(ApiStats.getOperations().get("getComments").get("datastore_v3.RunQuery." + ApiStats.CALLS));
+        assertEquals(1, deepPage.getItems().size());
+        assertNull(deepPage.getToken());
+    }
+
+    @Test
+    public void testCachedPagesAreRebuiltAfterInvalidation()
+            throws NotFoundException, InvalidPageTokenException {
+        addComments(CommentService.COMMENTS_PER_PAGE * 2);
+
+        // Warms up the first two pages.
+        Page<CommentResponse> firstPage = commentService.getComments(null, game.getKey());
+        commentService.getComments(firstPage.getToken(), game.getKey());
+
+        Comment newest = new Comment(user.getKey(), game.getKey(), "newest");
+        ofy().save().entity(newest).now();
+        commentService.forceRecache(game.getKey());
+
+        firstPage = commentService.getComments(null, game.getKey());
+        assertEquals(newest.getId(), firstPage.getItems().iterator().next().commentId);
+
+        // Rebuilt second page starts where the rebuilt first page ends.
+        Page<CommentResponse> secondPage = commentService.getComments(firstPage.getToken(), game.getKey());
+        assertEquals(CommentService.COMMENTS_PER_PAGE, secondPage.getItems().size());
+        Page<CommentResponse> thirdPage = commentService.getComments(secondPage.getToken(), game.getKey());
+        assertEquals(1, thirdPage.getItems().size());
+        assertNull(thirdPage.getToken());
+    }
+
+    @Test
+    public void testPostedCommentIsPatchedIntoCachedPages()
+            throws NotFoundException, InvalidPageTokenException {
+        addComments(CommentService.COMMENTS_PER_PAGE * 2);
+        Page<CommentResponse> firstPage = commentService.getComments(null, game.getKey());
+        commentService.getComments(firstPage.getToken(), game.getKey());
+
+        CommentResponse posted = commentService.postComment(user.getKey(), game.getKey(), "newest");
+        assertNotNull(posted);
+
+        ApiStats.RequestStats stats = ApiStats.beginRequest("getComments");
+        firstPage = commentService.getComments(null, game.getKey());
+        Page<CommentResponse> secondPage = commentService.getComments(firstPage.getToken(), game.getKey());
+        ApiStats.endRequest(stats);
+        // Cached pages are served without any datastore queries.
+        assertNull(ApiStats.getOperations().get("getComments").get("datastore_v3.RunQuery." + ApiStats.CALLS));
+
+        // Page boundaries don't move, the first page grows instead.
+        assertEquals(posted.commentId, firstPage.getItems().iterator().next().commentId);
+        assertEquals(CommentService.COMMENTS_PER_PAGE + 1, firstPage.getItems().size());
+        assertEquals(CommentService.COMMENTS_PER_PAGE, secondPage.getItems().size());
+        Set<Long> commentIds = new HashSet<>();
+        for (CommentResponse comment : Iterables.concat(firstPage.getItems(), secondPage.getItems())) {
+            commentIds.add(comment.commentId);
+        }
+        assertEquals(CommentService.COMMENTS_PER_PAGE * 2 + 1, commentIds.size());
+    }
+
+    @Test
+    public void testEditedAndDeletedCommentsArePatchedInCachedPages()
+            throws NotFoundException, InvalidPageTokenException, ForbiddenException {
+        addComments(CommentService.COMMENTS_PER_PAGE * 2);
+        Page<CommentResponse> firstPage = commentService.getComments(null, game.getKey());
+        Page<CommentResponse> secondPage = commentService.getComments(firstPage.getToken(), game.getKey());
+        final long deletedId = firstPage.getItems().iterator().next().commentId;
+        final long editedId = Iterables.getLast(secondPage.getItems()).commentId;
+
+        commentService.deleteComment(user.getKey(), Comment.createKeyFromId(deletedId));
+        commentService.editComment(user.getKey(), Comment.createKeyFromId(editedId), "edited");
+
+        ApiStats.RequestStats stats = ApiStats.beginRequest("getComments");
+        firstPage = commentService.getComments(null, game.getKey());
+        secondPage = commentService.getComments(firstPage.getToken(), game.getKey());
+        ApiStats.endRequest(stats);
+        // Cached pages are served without any datastore queries.
+        assertNull(ApiStats.getOperations().get("getComments").get("datastore_v3.RunQuery." + ApiStats.CALLS));
+
+        assertEquals(CommentService.COMMENTS_PER_PAGE - 1, firstPage.getItems().size());
+        for (CommentResponse comment : firstPage.getItems()) {
+            assertFalse(comment.commentId == deletedId);
+        }
+        CommentResponse edited = Iterables.getLast(secondPage.getItems());
+        assertEquals(editedId, edited.commentId);
+        assertEquals("edited", edited.message);
+    }
+
+    @Test
+    public void testFlagsAreRolledUpIntoCachedPages()
+            throws NotFoundException, InvalidPageTokenException {
+        addComments(1);
+        Page<CommentResponse> page = commentService.getComments(null, game.getKey());
+        final Key<Comment> commentKey = Comment.createKeyFromId(page.getItems().iterator().next().commentId);
+
+        final int flagCount = 6;
+        for (long userId = 1; userId <= flagCount; userId++) {
+            assertTrue(commentService.flagComment(Key.create(UserProfile.class, userId), commentKey));
+        }
+        assertFalse(commentService.flagComment(Key.create(UserProfile.class, 1l), commentKey));
+        // Flags are not counted until they are rolled up.
+        ofy().clear();
+        assertEquals(0, ofy().load().key(commentKey).now().getFlagInappropriateCount());
+
+        assertEquals(flagCount, commentService.rollUpFlags());
+        assertEquals(0, commentService.rollUpFlags());
+        ofy().clear();
+        assertEquals(flagCount, ofy().load().key(commentKey).now().getFlagInappropriateCount());
+
+        ApiStats.RequestStats stats = ApiStats.beginRequest("getComments");
+        page = commentService.getComments(null, game.getKey());
+        ApiStats.endRequest(stats);
+        // The flagged comment is patched into the cached page, so nothing is queried.
+        assertNull(ApiStats.getOperations().get("getComments").get("datastore_v3.RunQuery." + ApiStats.CALLS));
+        assertTrue(page.getItems().iterator().next().flagged);
+    }
+
+    @Test
+    public void testPagesCachedInTheLegacyFormatAreRebuilt()
+            throws NotFoundException, InvalidPageTokenException {
+        addComments(1);
+        // Pages were cached as plain Page objects under the same keys.
+        Page<CommentResponse> legacyPage = new Page<>();
+        legacyPage.setItems(new ArrayList<CommentResponse>());
+        MemcacheServiceFactory.getMemcacheService(CommentService.CACHE_NAMESPACE)
+                .put(game.getId() + "|page0", legacyPage);
+
+        assertEquals(1, commentService.getComments(null, game.getKey()).getItems().size());
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testFlaggingMissingCommentFails() throws NotFoundException {
+        commentService.flagComment(user.getKey(), Comment.createKeyFromId(1l));
+    }
+
+    @Test
+    public void testCachedPagesShowEditedUsername()
+            throws NotFoundException, InvalidPageTokenException, ValidationException, UsernameNotUniqueException {
+        addComments(1);
+        Page<CommentResponse> page = commentService.getComments(null, game.getKey());
+        assertEquals("username", page.getItems().iterator().next().authorUsername);
+
+        UserService userService = UserService.UserServiceFactory.createInstance();
+        userService.editUserProfile(user.getKey(), new ValidatedUsername("new_username"));
+
+        page = commentService.getComments(null, game.getKey());
+        assertEquals("new_username", page.getItems().iterator().next().authorUsername);
+    }
+
+    @Test(expected = InvalidPageTokenException.class)
+    public void testPageTokenBeyondCachedPagesIsInvalid()
+            throws NotFoundException, InvalidPageTokenException {
+        commentService.getComments("page" + CommentService.PAGES_TO_CACHE, game.getKey());
+    }
+
+    private void addComments(int count) {
+        for (int i = 0; i < count; i++) {
+            ofy().save().entity(new Comment(user.getKey(), game.getKey(), randomString(20))).now();
+        }
+    }
+
+}
@@ -36,13 +36,18 @@ import com.oursaviorgames.backend.model.datastore.UserProfile;
 import com.oursaviorgames.backend.model.response.CommentCollectionResponse;
 import com.oursaviorgames.backend.model.response.CommentResponse;
 import com.oursaviorgames.backend.service.CommentService;
+import com.oursaviorgames.backend.spi.HttpCachingFilter;
 import com.oursaviorgames.backend.spi.MobileApiEndpoint;
+import com.oursaviorgames.backend.spi.NotModifiedException;
 
 import static com.oursaviorgames.backend.service.OfyService.factory;
 import static com.oursaviorgames.backend.service.OfyService.ofy;
 import static com.oursaviorgames.backend.test.TestUtils.randomString;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyString;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -93,6 +98,9 @@ public class CommentsEndpointTest {
         expect(request.getHeader(AuthorizationHeaders.AUTHORIZATION)).andReturn(ACCESS_TOKEN).anyTimes();
         expect(request.getHeader(AuthorizationHeaders.IDENTITY_PROVIDER)).andReturn(IDENTITY_PROVIDER.getDomain()).anyTimes();
         expect(request.getHeader(AuthorizationHeaders.USER_ID)).andReturn(null).anyTimes();
+        expect(request.getHeader(HttpCachingFilter.HEADER_IF_NONE_MATCH)).andReturn(null).anyTimes();
+        request.setAttribute(anyString(), anyObject());
+        expectLastCall().anyTimes();
         replay(request);
 
         request2 = createMock(HttpServletRequest.class);
@@ -161,7 +169,7 @@ public class CommentsEndpointTest {
     }
 
     @Test
-    public void testPostGetManyCommentsForOneGame() throws BadRequestException, ForbiddenException, UnauthorizedException, ConflictException, NotFoundException {
+    public void testPostGetManyCommentsForOneGame() throws BadRequestException, ForbiddenException, UnauthorizedException, ConflictException, NotFoundException, NotModifiedException {
         // Insert 1000 comments for a game
         final int TOTAL_COMMENTS = CommentService.PAGES_TO_CACHE * CommentService.COMMENTS_PER_PAGE * 10;
         for (int i = 0; i < TOTAL_COMMENTS; i++) {
@@ -178,7 +186,7 @@ public class CommentsEndpointTest {
         String nextPageToken = null;
         // First we get the cached pages.
         for (int i = 0; i < CommentService.PAGES_TO_CACHE; i++) {
-            CommentCollectionResponse response = endpoint.getComments(game.getId(), nextPageToken);
+            CommentCollectionResponse response = endpoint.getComments(request, game.getId(), nextPageToken);
             nextPageToken = response.getNextPageToken();
             commentCollectionResponse.add(response.getItems());
 
@@ -192,7 +200,7 @@ public class CommentsEndpointTest {
         }
         // Query rest of the comments using datastore cursors.
         while (nextPageToken != null) {
-            CommentCollectionResponse response = endpoint.getComments(game.getId(), nextPageToken);
+            CommentCollectionResponse response = endpoint.getComments(request, game.getId(), nextPageToken);
             nextPageToken = response.getNextPageToken();
             commentCollectionResponse.add(response.getItems());
             if (nextPageToken != null) {
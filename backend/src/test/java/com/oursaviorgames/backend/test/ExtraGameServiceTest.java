@@ -0,0 +1,93 @@
+package com.oursaviorgames.backend.test;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.oursaviorgames.backend.memcache.LocalCache;
+import com.oursaviorgames.backend.model.datastore.Developer;
+import com.oursaviorgames.backend.model.datastore.Game;
+import com.oursaviorgames.backend.model.response.GameResponse;
+import com.oursaviorgames.backend.service.ExtraGameService;
+
+import static com.oursaviorgames.backend.service.OfyService.factory;
+import static com.oursaviorgames.backend.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link ExtraGameService} spotlight selection.
+ */
+public class ExtraGameServiceTest {
+
+    final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(
+                    new LocalDatastoreServiceTestConfig()
+                            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0),
+                    new LocalMemcacheServiceTestConfig());
+
+    Closeable objectifyCloseable;
+
+    ExtraGameService extraGameService;
+    List<Long>       gameIds;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        objectifyCloseable = ObjectifyService.begin();
+        LocalCache.clearAll();
+        extraGameService = ExtraGameService.ExtraGameServiceFactory.getInstance();
+
+        Key<Developer> developerKey = factory().allocateId(Developer.class);
+        ofy().save().entity(new Developer(developerKey.getId(), "devname", "devemail", "devwebsite")).now();
+        gameIds = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Game game = new Game(factory().allocateId(Game.class).getId(), developerKey, "title" + i);
+            game.setPublished(true);
+            ofy().save().entity(game).now();
+            gameIds.add(game.getId());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        objectifyCloseable.close();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testSpotlightGameIsTheOnlyGameNotExcluded() {
+        for (Long gameId : gameIds) {
+            List<Long> exclude = new ArrayList<>(gameIds);
+            exclude.remove(gameId);
+            GameResponse game = extraGameService.getSpotlightGame(exclude);
+            assertNotNull(game);
+            assertEquals(gameId.longValue(), game.gameId);
+        }
+    }
+
+    @Test
+    public void testSpotlightGameIsNullWhenAllGamesAreExcluded() {
+        assertNull(extraGameService.getSpotlightGame(gameIds));
+    }
+
+    @Test
+    public void testRandomGameIsPublished() {
+        GameResponse game = extraGameService.getRandomGame();
+        assertNotNull(game);
+        assertTrue(gameIds.contains(game.gameId));
+    }
+
+}
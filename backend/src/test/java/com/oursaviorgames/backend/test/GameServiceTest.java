@@ -0,0 +1,278 @@
+package com.oursaviorgames.backend.test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.oursaviorgames.backend.memcache.LocalCache;
+import com.oursaviorgames.backend.model.datastore.Developer;
+import com.oursaviorgames.backend.model.datastore.Game;
+import com.oursaviorgames.backend.model.response.GameChangesResponse;
+import com.oursaviorgames.backend.model.response.GameCollectionResponse;
+import com.oursaviorgames.backend.model.response.GameResponse;
+import com.oursaviorgames.backend.service.GameService;
+import com.oursaviorgames.backend.service.InvalidPageTokenException;
+
+import static com.oursaviorgames.backend.service.OfyService.factory;
+import static com.oursaviorgames.backend.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link GameService} game lists.
+ */
+public class GameServiceTest {
+
+    final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(
+                    new LocalDatastoreServiceTestConfig()
+                            .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    Closeable objectifyCloseable;
+
+    GameService gameService;
+    Key<Developer> developerKey;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        objectifyCloseable = ObjectifyService.begin();
+        LocalCache.clearAll();
+        gameService = GameService.GameServiceFactory.createInstance();
+
+        developerKey = factory().allocateId(Developer.class);
+        ofy().save().entity(new Developer(developerKey.getId(), "devname", "devemail", "devwebsite")).now();
+    }
+
+    @After
+    public void tearDown() {
+        objectifyCloseable.close();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testOnlyPublishedGamesAreReturnedInRequestedOrder() {
+        Game first = saveGame("first", true);
+        Game unpublished = saveGame("unpublished", false);
+        Game second = saveGame("second", true);
+
+        List<Long> ids = Arrays.asList(second.getId(), unpublished.getId(), 12345l, first.getId());
+        List<GameResponse> games = new ArrayList<>(gameService.getGames(ids).getItems());
+
+        assertEquals(2, games.size());
+        assertEquals(second.getId(), games.get(0).gameId);
+        assertEquals(first.getId(), games.get(1).gameId);
+        assertEquals("devname", games.get(0).developerName);
+    }
+
+    @Test
+    public void testCachedGamesAreRefreshedByReCache() {
+        Game game = saveGame("title", true);
+        List<Long> ids = Arrays.asList(game.getId());
+        assertEquals(0, gameService.getGames(ids).getItems().iterator().next().hotScore);
+
+        game.setHotScore(10);
+        ofy().save().entity(game).now();
+        assertEquals(0, gameService.getGames(ids).getItems().iterator().next().hotScore);
+
+        gameService.reCache();
+        assertEquals(10, gameService.getGames(ids).getItems().iterator().next().hotScore);
+    }
+
+    @Test
+    public void testGameListPagesCoverAllPublishedGames() throws InvalidPageTokenException {
+        final int totalGames = GameService.ITEMS_PER_PAGE * 2 + 1;
+        for (int i = 0; i < totalGames; i++) {
+            saveGame("title" + i, true);
+        }
+        saveGame("unpublished", false);
+
+        GameCollectionResponse firstPage = gameService.getNewGames(null);
+        assertEquals(GameService.ITEMS_PER_PAGE, firstPage.getItems().size());
+        GameCollectionResponse secondPage = gameService.getNewGames(firstPage.getNextPageToken());
+        assertEquals(GameService.ITEMS_PER_PAGE, secondPage.getItems().size());
+        GameCollectionResponse thirdPage = gameService.getNewGames(secondPage.getNextPageToken());
+        assertEquals(1, thirdPage.getItems().size());
+        assertNull(thirdPage.getNextPageToken());
+    }
+
+    @Test
+    public void testPageTokensKeepTheirSnapshotAfterReCache() throws InvalidPageTokenException {
+        List<Game> games = new ArrayList<>();
+        for (int i = 0; i < GameService.ITEMS_PER_PAGE + 1; i++) {
+            games.add(saveGame("title" + i, true));
+        }
+        GameCollectionResponse firstPage = gameService.getPopularGames(null);
+        Set<Long> seen = new HashSet<>();
+        for (GameResponse game : firstPage.getItems()) {
+            seen.add(game.gameId);
+        }
+
+        // Re-ranks the games in reverse.
+        for (int i = 0; i < games.size(); i++) {
+            games.get(i).setHotScore(i);
+        }
+        ofy().save().entities(games).now();
+        gameService.reCache();
+
+        GameCollectionResponse secondPage = gameService.getPopularGames(firstPage.getNextPageToken());
+        assertEquals(1, secondPage.getItems().size());
+        assertFalse(seen.contains(secondPage.getItems().iterator().next().gameId));
+    }
+
+    @Test
+    public void testRefreshRankingsKeepsListsWhenOrderIsUnchanged() throws InvalidPageTokenException {
+        Game first = saveGame("first", true);
+        first.setHotScore(10);
+        ofy().save().entity(first).now();
+        Game second = saveGame("second", true);
+        assertEquals(first.getId(), gameService.getPopularGames(null).getItems().iterator().next().gameId);
+
+        assertFalse(gameService.refreshRankings());
+
+        second.setHotScore(20);
+        ofy().save().entity(second).now();
+        assertTrue(gameService.refreshRankings());
+        GameCollectionResponse games = gameService.getPopularGames(null);
+        assertEquals(second.getId(), games.getItems().iterator().next().gameId);
+    }
+
+    @Test
+    public void testListsShowNewPlayCountsWhenOrderIsUnchanged() throws InvalidPageTokenException {
+        Game game = saveGame("title", true);
+        assertEquals(0, gameService.getPopularGames(null).getItems().iterator().next().playCount);
+
+        game.updateStats(5, 50l);
+        ofy().save().entity(game).now();
+        assertFalse(gameService.refreshRankings());
+        assertEquals(5, gameService.getPopularGames(null).getItems().iterator().next().playCount);
+    }
+
+    @Test
+    public void testGameLinksAreRefreshedByReCache() {
+        Game game = saveGame("title", false);
+        assertNull(gameService.getGameLink(game.getId()));
+        assertNull(gameService.getGameLink(12345l));
+
+        game.setPublished(true);
+        game.setOriginUrl("http://example.com");
+        ofy().save().entity(game).now();
+        assertNull(gameService.getGameLink(game.getId()));
+
+        gameService.reCache();
+        assertEquals("http://example.com", gameService.getGameLink(game.getId()).getOriginUrl());
+    }
+
+    @Test
+    public void testGameChangesAreReturnedSinceToken() throws InvalidPageTokenException {
+        Game first = saveGame("first", true);
+        Game unpublished = saveGame("unpublished", false);
+
+        GameChangesResponse changes = gameService.getGameChanges(null);
+        assertEquals(1, changes.getItems().size());
+        assertEquals(first.getId(), changes.getItems().iterator().next().gameId);
+        assertEquals(Arrays.asList(unpublished.getId()), new ArrayList<>(changes.getRemovedGameIds()));
+        assertTrue(changes.isUpToDate());
+        // Recent changes are not skipped by the next sync.
+        assertTrue(Long.parseLong(changes.getToken()) < first.getChangeVersion());
+
+        Game second = saveGame("second", true);
+        final String sinceToken = Long.toString(unpublished.getChangeVersion());
+        changes = gameService.getGameChanges(sinceToken);
+        assertEquals(1, changes.getItems().size());
+        assertEquals(second.getId(), changes.getItems().iterator().next().gameId);
+        assertTrue(changes.getRemovedGameIds().isEmpty());
+        assertEquals(sinceToken, changes.getToken());
+    }
+
+    @Test
+    public void testGameChangesPageThroughGamesSharingAVersion()
+            throws InvalidPageTokenException, EntityNotFoundException {
+        Set<Long> gameIds = new HashSet<>();
+        for (int i = 0; i <= GameService.MAX_CHANGES; i++) {
+            gameIds.add(saveGame("title" + i, true).getId());
+        }
+        // Games saved on different instances at once share a change version.
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        for (Long gameId : gameIds) {
+            Entity entity = datastore.get(Game.createKeyFromId(gameId).getRaw());
+            entity.setProperty(Game.F_ChangeVersion, Game.toChangeVersion(1000l));
+            datastore.put(entity);
+        }
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+        ofy().clear();
+
+        GameChangesResponse changes = gameService.getGameChanges(null);
+        assertEquals(GameService.MAX_CHANGES, changes.getItems().size());
+        assertFalse(changes.isUpToDate());
+        Set<Long> changedIds = new HashSet<>();
+        for (GameResponse game : changes.getItems()) {
+            changedIds.add(game.gameId);
+        }
+
+        changes = gameService.getGameChanges(changes.getToken());
+        assertEquals(1, changes.getItems().size());
+        assertTrue(changes.isUpToDate());
+        changedIds.add(changes.getItems().iterator().next().gameId);
+        assertEquals(gameIds, changedIds);
+    }
+
+    @Test
+    public void testGamesWithoutChangeVersionAreBackfilled()
+            throws InvalidPageTokenException, EntityNotFoundException {
+        Game game = saveGame("title", true);
+        // Saved before change versions.
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = datastore.get(game.getKey().getRaw());
+        entity.removeProperty(Game.F_ChangeVersion);
+        datastore.put(entity);
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+        ofy().clear();
+        assertTrue(gameService.getGameChanges(null).getItems().isEmpty());
+
+        assertNull(gameService.backfillChangeVersions(null));
+        ofy().clear();
+        GameChangesResponse changes = gameService.getGameChanges(null);
+        assertEquals(1, changes.getItems().size());
+        assertEquals((long) game.getId(), changes.getItems().iterator().next().gameId);
+    }
+
+    @Test(expected = InvalidPageTokenException.class)
+    public void testMalformedChangesTokenIsInvalid() throws InvalidPageTokenException {
+        gameService.getGameChanges("1.x");
+    }
+
+    @Test(expected = InvalidPageTokenException.class)
+    public void testMalformedPageTokenIsInvalid() throws InvalidPageTokenException {
+        gameService.getPopularGames("not_a_token");
+    }
+
+    private Game saveGame(String title, boolean published) {
+        Game game = new Game(factory().allocateId(Game.class).getId(), developerKey, title);
+        game.setPublished(published);
+        ofy().save().entity(game).now();
+        return game;
+    }
+
+}
@@ -0,0 +1,213 @@
+package com.oursaviorgames.backend.test;
+
+import com.google.api.server.spi.ServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.oursaviorgames.backend.auth.IdentityProvider;
+import com.oursaviorgames.backend.model.datastore.Developer;
+import com.oursaviorgames.backend.model.datastore.Game;
+import com.oursaviorgames.backend.model.datastore.UserProfile;
+import com.oursaviorgames.backend.model.types.ValidatedUsername;
+import com.oursaviorgames.backend.model.types.ValidationException;
+import com.oursaviorgames.backend.service.CommentService;
+import com.oursaviorgames.backend.spi.HttpCachingFilter;
+import com.oursaviorgames.backend.spi.MobileApiEndpoint;
+import com.oursaviorgames.backend.spi.NotModifiedException;
+
+import static com.oursaviorgames.backend.service.OfyService.factory;
+import static com.oursaviorgames.backend.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests conditional GETs of endpoints through {@link HttpCachingFilter}.
+ */
+public class HttpCachingFilterTest {
+
+    final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(
+                    new LocalDatastoreServiceTestConfig()
+                            .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    final MobileApiEndpoint endpoint = new MobileApiEndpoint();
+    final HttpCachingFilter filter   = new HttpCachingFilter();
+
+    Closeable objectifyCloseable;
+
+    UserProfile user;
+    Game        game;
+
+    @Before
+    public void setUp() throws ValidationException {
+        helper.setUp();
+        objectifyCloseable = ObjectifyService.begin();
+
+        user = new UserProfile(new ValidatedUsername("username"), "provider_user_id",
+                IdentityProvider.FACEBOOK, UserProfile.Gender.FEMALE, "name", "device_id");
+        ofy().save().entity(user).now();
+
+        Key<Developer> developerKey = factory().allocateId(Developer.class);
+        Key<Game> gameKey = factory().allocateId(Game.class);
+        Developer developer = new Developer(developerKey.getId(), "devname", "devemail", "devwebsite");
+        game = new Game(gameKey.getId(), developerKey, "game_title");
+        ofy().save().entities(developer, game).now();
+    }
+
+    @After
+    public void tearDown() {
+        objectifyCloseable.close();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testCommentsAreNotModifiedUntilTheyChange() throws Exception {
+        CommentService commentService = CommentService.CommentServiceFactory.createInstance();
+        commentService.postComment(user.getKey(), game.getKey(), "first");
+
+        Map<String, String> headers = getComments(null, HttpServletResponse.SC_OK);
+        final String etag = headers.get(HttpCachingFilter.HEADER_ETAG);
+        assertNotNull(etag);
+        assertEquals("public, max-age=30", headers.get(HttpCachingFilter.HEADER_CACHE_CONTROL));
+
+        try {
+            endpoint.getComments(createRequest(etag, new HashMap<String, Object>()), game.getId(), null);
+            fail("Unchanged comments were returned");
+        } catch (NotModifiedException e) {
+            assertEquals(304, e.getStatusCode());
+            assertEquals(etag, e.getHeaders().get(HttpCachingFilter.HEADER_ETAG));
+        }
+
+        commentService.postComment(user.getKey(), game.getKey(), "second");
+        headers = getComments(etag, HttpServletResponse.SC_OK);
+        assertFalse(etag.equals(headers.get(HttpCachingFilter.HEADER_ETAG)));
+    }
+
+    @Test
+    public void testStalePagesAreServedWithoutETag() throws Exception {
+        CommentService commentService = CommentService.CommentServiceFactory.createInstance();
+        commentService.postComment(user.getKey(), game.getKey(), "first");
+        final String etag = getComments(null, HttpServletResponse.SC_OK).get(HttpCachingFilter.HEADER_ETAG);
+
+        // Another request holds the rebuild lease, so the stale copy is served.
+        commentService.forceRecache(game.getKey());
+        MemcacheServiceFactory.getMemcacheService(CommentService.CACHE_NAMESPACE)
+                .put(game.getId() + "|page0|lease", Boolean.TRUE);
+        Map<String, String> headers = getComments(etag, HttpServletResponse.SC_OK);
+        assertNull(headers.get(HttpCachingFilter.HEADER_ETAG));
+        assertNull(headers.get(HttpCachingFilter.HEADER_CACHE_CONTROL));
+    }
+
+    @Test
+    public void testErrorResponsesAreNotCached() throws Exception {
+        Map<String, String> headers = getComments(null, HttpServletResponse.SC_NOT_FOUND);
+        assertNull(headers.get(HttpCachingFilter.HEADER_ETAG));
+        assertNull(headers.get(HttpCachingFilter.HEADER_CACHE_CONTROL));
+    }
+
+    /**
+     * Gets the first page of comments through the filter, and returns the response headers.
+     * @param status Status code of the response written by the endpoint.
+     */
+    private Map<String, String> getComments(String ifNoneMatch, final int status)
+            throws IOException, ServletException {
+        final HttpServletRequest request = createRequest(ifNoneMatch, new HashMap<String, Object>());
+        final Map<String, String> headers = new HashMap<>();
+        filter.doFilter(request, createResponse(headers), new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse resp) throws IOException {
+                try {
+                    endpoint.getComments((HttpServletRequest) req, game.getId(), null);
+                } catch (ServiceException e) {
+                    throw new IOException(e);
+                }
+                HttpServletResponse httpResponse = (HttpServletResponse) resp;
+                if (status == HttpServletResponse.SC_OK) {
+                    httpResponse.setStatus(status);
+                    httpResponse.getWriter().write("{}");
+                } else {
+                    httpResponse.sendError(status);
+                }
+            }
+        });
+        return headers;
+    }
+
+    private static HttpServletRequest createRequest(final String ifNoneMatch, final Map<String, Object> attributes) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getHeader":
+                                return HttpCachingFilter.HEADER_IF_NONE_MATCH.equals(args[0]) ? ifNoneMatch : null;
+                            case "getAttribute":
+                                return attributes.get(args[0]);
+                            case "setAttribute":
+                                attributes.put((String) args[0], args[1]);
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+    private static HttpServletResponse createResponse(final Map<String, String> headers) {
+        final PrintWriter writer = new PrintWriter(new StringWriter());
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "setHeader":
+                                headers.put((String) args[0], (String) args[1]);
+                                return null;
+                            case "getWriter":
+                                return writer;
+                            case "isCommitted":
+                                return false;
+                            case "setStatus":
+                            case "sendError":
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.oursaviorgames.backend.test;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.oursaviorgames.backend.memcache.LocalCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link LocalCache}.
+ */
+public class LocalCacheTest {
+
+    @After
+    public void tearDown() {
+        LocalCache.clearAll();
+    }
+
+    @Test
+    public void testEntriesOfOtherVersionsAreDropped() {
+        LocalCache localCache = LocalCache.getInstance("namespace");
+        localCache.put("key", "value", 1l);
+        assertEquals("value", localCache.get("key", 1l));
+        assertNull(localCache.get("key", 2l));
+        assertNull(localCache.get("key", 1l));
+    }
+
+    @Test
+    public void testInstancesAreSharedPerNamespace() {
+        assertSame(LocalCache.getInstance("namespace"), LocalCache.getInstance("namespace"));
+        LocalCache.getInstance("namespace").put("key", "value", 1l);
+        assertNull(LocalCache.getInstance("other_namespace").get("key", 1l));
+    }
+
+    @Test
+    public void testVersionCheckIsDueOnlyAfterInterval() {
+        LocalCache localCache = LocalCache.getInstance("namespace");
+        assertTrue(localCache.isVersionCheckDue());
+        localCache.setVersion(5l);
+        assertFalse(localCache.isVersionCheckDue());
+        assertEquals(5l, localCache.getVersion());
+    }
+
+}
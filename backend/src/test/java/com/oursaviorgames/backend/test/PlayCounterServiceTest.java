@@ -0,0 +1,127 @@
+package com.oursaviorgames.backend.test;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.oursaviorgames.backend.model.datastore.Developer;
+import com.oursaviorgames.backend.model.datastore.Game;
+import com.oursaviorgames.backend.model.datastore.PlayCounter;
+import com.oursaviorgames.backend.model.datastore.PlayToken;
+import com.oursaviorgames.backend.model.datastore.UserProfile;
+import com.oursaviorgames.backend.service.PlayCounterService;
+
+import static com.oursaviorgames.backend.service.OfyService.factory;
+import static com.oursaviorgames.backend.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link PlayCounterService}.
+ */
+public class PlayCounterServiceTest {
+
+    final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(
+                    new LocalDatastoreServiceTestConfig()
+                            .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig());
+
+    Closeable objectifyCloseable;
+
+    PlayCounterService playCounterService;
+    Key<UserProfile>   userKey;
+    Game               game;
+    Game               otherGame;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        objectifyCloseable = ObjectifyService.begin();
+        playCounterService = PlayCounterService.PlayCounterServiceFactory.createInstance();
+        userKey = Key.create(UserProfile.class, "user_id");
+
+        Key<Developer> developerKey = factory().allocateId(Developer.class);
+        game = new Game(factory().allocateId(Game.class).getId(), developerKey, "game");
+        otherGame = new Game(factory().allocateId(Game.class).getId(), developerKey, "other_game");
+        ofy().save().entities(game, otherGame).now();
+    }
+
+    @After
+    public void tearDown() {
+        objectifyCloseable.close();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testFlushedCountersAddUpToRecordedPlays() {
+        for (int i = 0; i < 10; i++) {
+            List<PlayToken.PlayTokenForm> plays = new ArrayList<>();
+            plays.add(createPlay(game.getId(), 10l));
+            plays.add(createPlay(game.getId(), 5l));
+            plays.add(createPlay(otherGame.getId(), 1l));
+            playCounterService.recordPlays(plays, userKey, "127.0.0.1");
+        }
+        playCounterService.flush();
+
+        // Plays recorded after a flush are kept for the next one.
+        List<PlayToken.PlayTokenForm> plays = new ArrayList<>();
+        plays.add(createPlay(game.getId(), 10l));
+        playCounterService.recordPlays(plays, userKey, "127.0.0.1");
+        playCounterService.flush();
+
+        assertCounted(game.getId(), 21, 160l);
+        assertCounted(otherGame.getId(), 10, 10l);
+    }
+
+    @Test
+    public void testFlushWithoutPlaysCreatesNoCounters() {
+        playCounterService.flush();
+        assertEquals(0, playCounterService.getPendingCounters(null, null).size());
+    }
+
+    @Test
+    public void testInvalidPlaysAreIgnored() {
+        List<PlayToken.PlayTokenForm> plays = new ArrayList<>();
+        plays.add(createPlay(game.getId(), 10l));
+        plays.add(createPlay(game.getId(), -1l));
+        plays.add(new PlayToken.PlayTokenForm());
+        plays.add(null);
+        playCounterService.recordPlays(plays, userKey, "127.0.0.1");
+        playCounterService.flush();
+
+        assertCounted(game.getId(), 1, 10l);
+    }
+
+    private void assertCounted(long gameId, int playCount, long playDuration) {
+        int countedPlays = 0;
+        long countedDuration = 0l;
+        for (PlayCounter counter : playCounterService.getPendingCounters(gameId, gameId + 1)) {
+            countedPlays += counter.getPlayCount();
+            countedDuration += counter.getPlayDuration();
+        }
+        assertEquals(playCount, countedPlays);
+        assertEquals(playDuration, countedDuration);
+    }
+
+    private static PlayToken.PlayTokenForm createPlay(long gameId, long playDuration) {
+        PlayToken.PlayTokenForm play = new PlayToken.PlayTokenForm();
+        play.setGameId(gameId);
+        play.setPlayDuration(playDuration);
+        play.setTimestamp(new Date());
+        return play;
+    }
+
+}
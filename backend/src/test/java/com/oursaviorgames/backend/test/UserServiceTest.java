@@ -0,0 +1,158 @@
+package com.oursaviorgames.backend.test;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.oursaviorgames.backend.auth.IdentityProvider;
+import com.oursaviorgames.backend.memcache.LocalCache;
+import com.oursaviorgames.backend.model.datastore.UserIdentity;
+import com.oursaviorgames.backend.model.datastore.UserProfile;
+import com.oursaviorgames.backend.model.types.ValidatedUsername;
+import com.oursaviorgames.backend.model.types.ValidationException;
+import com.oursaviorgames.backend.service.UserService;
+import com.oursaviorgames.backend.service.UsernameNotUniqueException;
+
+import static com.oursaviorgames.backend.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests username reservations and identities of {@link UserService}.
+ */
+public class UserServiceTest {
+
+    final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(
+                    new LocalDatastoreServiceTestConfig()
+                            .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    Closeable objectifyCloseable;
+
+    UserService userService;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        objectifyCloseable = ObjectifyService.begin();
+        LocalCache.clearAll();
+        userService = UserService.UserServiceFactory.createInstance();
+    }
+
+    @After
+    public void tearDown() {
+        objectifyCloseable.close();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testUsernameIsReservedCaseInsensitively()
+            throws ValidationException, UsernameNotUniqueException, ConflictException {
+        UserProfile user = register("username", "1");
+        assertNotNull(user.getId());
+        try {
+            register("UserName", "2");
+            fail("Registered a taken username");
+        } catch (UsernameNotUniqueException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testEditedUsernameIsReleased()
+            throws ValidationException, UsernameNotUniqueException, ConflictException {
+        UserProfile user = register("username", "1");
+        userService.editUserProfile(user.getKey(), new ValidatedUsername("new_username"));
+        register("username", "2");
+        try {
+            register("new_username", "3");
+            fail("Registered a taken username");
+        } catch (UsernameNotUniqueException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testGeneratedUsernameSkipsTakenUsernames()
+            throws ValidationException, UsernameNotUniqueException, ConflictException {
+        register("user_name", "1");
+        // Registered without a reservation, and backfilled.
+        ofy().save().entity(new UserProfile(new ValidatedUsername("other_name"), "2",
+                IdentityProvider.FACEBOOK, UserProfile.Gender.FEMALE, "name", "device_id")).now();
+        assertNull(userService.backfillUsers(null));
+
+        String username = userService.generateUserName("User Name");
+        assertFalse(username.isEmpty());
+        assertFalse("user_name".equals(username));
+        register(username, "3");
+
+        username = userService.generateUserName("Other Name");
+        assertFalse(username.isEmpty());
+        assertFalse("other_name".equals(username));
+        assertEquals("", userService.generateUserName("x"));
+    }
+
+    @Test
+    public void testBackfillReservesUsernames()
+            throws ValidationException, UsernameNotUniqueException, ConflictException {
+        UserProfile user = new UserProfile(new ValidatedUsername("username"), "1",
+                IdentityProvider.FACEBOOK, UserProfile.Gender.FEMALE, "name", "device_id");
+        ofy().save().entity(user).now();
+        register("other_name", "2");
+
+        assertNull(userService.backfillUsers(null));
+        // Backfilling again keeps the reservations.
+        assertNull(userService.backfillUsers(null));
+        try {
+            register("UserName", "3");
+            fail("Registered a taken username");
+        } catch (UsernameNotUniqueException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testExistingUserIsFoundByIdentity()
+            throws ValidationException, UsernameNotUniqueException, ConflictException {
+        UserProfile user = register("username", "1");
+        assertEquals(user.getId(), userService.findExistingUser(IdentityProvider.FACEBOOK, "1").getId());
+        assertNull(userService.findExistingUser(IdentityProvider.FACEBOOK, "2"));
+        try {
+            register("other_name", "1");
+            fail("Registered an existing user");
+        } catch (ConflictException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testUserWithoutIdentityIsBackfilled() throws ValidationException {
+        UserProfile user = new UserProfile(new ValidatedUsername("username"), "1",
+                IdentityProvider.FACEBOOK, UserProfile.Gender.FEMALE, "name", "device_id");
+        ofy().save().entity(user).now();
+
+        assertNull(userService.backfillUsers(null));
+        assertEquals(user.getId(), userService.findExistingUser(IdentityProvider.FACEBOOK, "1").getId());
+        ofy().clear();
+        UserIdentity identity = ofy().load().key(UserIdentity.createKey(IdentityProvider.FACEBOOK, "1")).now();
+        assertEquals(user.getKey(), identity.getUserKey());
+    }
+
+    private UserProfile register(String username, String providerUserId)
+            throws ValidationException, UsernameNotUniqueException, ConflictException {
+        return userService.registerUser(new ValidatedUsername(username), IdentityProvider.FACEBOOK,
+                providerUserId, UserProfile.Gender.MALE, "name", "device_id");
+    }
+
+}